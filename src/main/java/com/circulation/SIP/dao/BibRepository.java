@@ -0,0 +1,35 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import com.circulation.SIP.messages.Bib;
+
+/**
+ * Bibliographic records created for items.
+ */
+public interface BibRepository {
+    /**
+     * @return the id of the item's bib record, or null
+     */
+    Integer findBibId(String itemIdentifier);
+
+    /**
+     * @return the id of the new bib record, or null if it could not be
+     *         created
+     */
+    Integer createBib(Bib bib);
+}
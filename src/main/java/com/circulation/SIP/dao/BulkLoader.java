@@ -0,0 +1,439 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.circulation.SIP.messages.Bib;
+import com.circulation.SIP.messages.ItemInformationResponse;
+import com.circulation.SIP.messages.PatronInformationResponse;
+import com.circulation.SIP.types.enumerations.CirculationStatus;
+import com.circulation.SIP.types.enumerations.CurrencyType;
+import com.circulation.SIP.types.enumerations.FeeType;
+import com.circulation.SIP.types.enumerations.MediaType;
+import com.circulation.SIP.types.enumerations.SecurityMarker;
+
+/**
+ * Seeds patrons, items and bibs from CSV or JSON Lines files, see
+ * {@link BulkRecordReader}, into a {@link BulkSink}.
+ *
+ * One thread splits the file into chunks of records; the chunks are
+ * parsed and written by a pool of worker threads, with a bounded number
+ * in flight so a slow sink holds back the reader rather than filling the
+ * heap. Progress is logged at a fixed interval.
+ *
+ * Columns are named as in the database tables:
+ * <ul>
+ * <li>patrons: patron_identifier, unavailable_holds_count,
+ * charged_items_count, hold_items_count, fine_items_count,
+ * recall_items_count, overdue_items_count, transaction_date, person_name,
+ * valid_patron, valid_patron_password, fee_amount, email_address</li>
+ * <li>items: item_identifier, transaction_date, hold_queue_length,
+ * due_date, recal_date, hold_pickup_date, title_identifier,
+ * permanent_location, current_location</li>
+ * <li>bibs: item_identifier, title_identifier, patron_identifier</li>
+ * </ul>
+ * Only the identifier is required. Counts default to 0 and the patron
+ * flags to true; dates are yyyy-MM-dd or yyyy-MM-dd HH:mm:ss.
+ */
+public class BulkLoader {
+    private static Log logger = LogFactory.getLog(BulkLoader.class);
+
+    /**
+     * Invalid records logged individually per file, the rest are only
+     * counted.
+     */
+    private static final int MAX_LOGGED_ERRORS = 10;
+
+    public enum Kind {
+        PATRONS, ITEMS, BIBS
+    }
+
+    /**
+     * Counts of one file, updated while it loads.
+     */
+    public static final class Progress {
+        private final Kind kind;
+        private final File file;
+        private final long started = System.nanoTime();
+        private final AtomicLong read = new AtomicLong();
+        private final AtomicLong loaded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private volatile long finished;
+
+        Progress(Kind kind, File file) {
+            this.kind = kind;
+            this.file = file;
+        }
+
+        public long getReadCount() {
+            return read.get();
+        }
+
+        public long getLoadedCount() {
+            return loaded.get();
+        }
+
+        /**
+         * @return records that could not be parsed or written
+         */
+        public long getFailedCount() {
+            return failed.get();
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis((finished != 0 ? finished : System.nanoTime()) - started);
+        }
+
+        public double getLoadedPerSecond() {
+            long millis = getElapsedMillis();
+            return millis == 0 ? 0 : loaded.get() * 1000.0 / millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s from %s: read=%d loaded=%d failed=%d in %.1fs (%.0f/s)",
+                    kind.name().toLowerCase(Locale.ROOT), file.getName(), getReadCount(), getLoadedCount(),
+                    getFailedCount(), getElapsedMillis() / 1000.0, getLoadedPerSecond());
+        }
+    }
+
+    private final BulkSink sink;
+    private final int threads;
+    private final int chunkSize;
+    private long reportIntervalMillis = 5000;
+
+    /**
+     * @param threads   worker threads, e.g. one per core
+     * @param chunkSize records per chunk, the sink writes each chunk as one
+     *                  batch
+     */
+    public BulkLoader(BulkSink sink, int threads, int chunkSize) {
+        this.sink = sink;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    public long getReportIntervalMillis() {
+        return reportIntervalMillis;
+    }
+
+    public void setReportIntervalMillis(long reportIntervalMillis) {
+        this.reportIntervalMillis = reportIntervalMillis;
+    }
+
+    /**
+     * Loads every record of the file, returning once they have all been
+     * written or have failed.
+     */
+    public Progress load(final Kind kind, File file) throws IOException, InterruptedException {
+        final Progress progress = new Progress(kind, file);
+        final AtomicInteger loggedErrors = new AtomicInteger();
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sip-bulk-loader-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sip-bulk-loader-progress");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                logger.info(progress);
+            }
+        }, reportIntervalMillis, reportIntervalMillis, TimeUnit.MILLISECONDS);
+        final Semaphore inFlight = new Semaphore(threads * 2);
+        try (final BulkRecordReader reader = new BulkRecordReader(file)) {
+            List<String> chunk = reader.next(chunkSize);
+            while (!chunk.isEmpty()) {
+                final List<String> records = chunk;
+                final long first = progress.read.get() + 1;
+                progress.read.addAndGet(records.size());
+                inFlight.acquire();
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            writeChunk(kind, reader, records, first, progress, loggedErrors);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+                chunk = reader.next(chunkSize);
+            }
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            reporter.shutdownNow();
+            progress.finished = System.nanoTime();
+        }
+        logger.info(progress);
+        return progress;
+    }
+
+    private void writeChunk(Kind kind, BulkRecordReader reader, List<String> records, long first, Progress progress,
+            AtomicInteger loggedErrors) {
+        List<Object> parsed = new ArrayList<Object>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            try {
+                parsed.add(toRecord(kind, reader.parse(records.get(i))));
+            } catch (IllegalArgumentException ex) {
+                progress.failed.incrementAndGet();
+                if (loggedErrors.incrementAndGet() <= MAX_LOGGED_ERRORS) {
+                    logger.warn("Skipping record " + (first + i) + " of " + progress.file + ": " + ex.getMessage());
+                }
+            }
+        }
+        if (parsed.isEmpty()) {
+            return;
+        }
+        try {
+            write(kind, parsed);
+            progress.loaded.addAndGet(parsed.size());
+        } catch (Exception ex) {
+            progress.failed.addAndGet(parsed.size());
+            if (loggedErrors.incrementAndGet() <= MAX_LOGGED_ERRORS) {
+                logger.error("Failed to write records " + first + " to " + (first + records.size() - 1)
+                        + " of " + progress.file, ex);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(Kind kind, List<?> records) throws Exception {
+        switch (kind) {
+        case PATRONS:
+            sink.writePatrons((List<PatronInformationResponse>) records);
+            break;
+        case ITEMS:
+            sink.writeItems((List<ItemInformationResponse>) records);
+            break;
+        default:
+            sink.writeBibs((List<Bib>) records);
+        }
+    }
+
+    static Object toRecord(Kind kind, Map<String, String> fields) {
+        switch (kind) {
+        case PATRONS:
+            return toPatron(fields);
+        case ITEMS:
+            return toItem(fields);
+        default:
+            return toBib(fields);
+        }
+    }
+
+    static PatronInformationResponse toPatron(Map<String, String> fields) {
+        PatronInformationResponse patron = new PatronInformationResponse();
+        patron.setPatronIdentifier(required(fields, "patron_identifier"));
+        patron.setUnavailableHoldsCount(integer(fields, "unavailable_holds_count"));
+        patron.setChargedItemsCount(integer(fields, "charged_items_count"));
+        patron.setHoldItemsCount(integer(fields, "hold_items_count"));
+        patron.setFineItemsCount(integer(fields, "fine_items_count"));
+        patron.setRecallItemsCount(integer(fields, "recall_items_count"));
+        patron.setOverdueItemsCount(integer(fields, "overdue_items_count"));
+        patron.setTransactionDate(date(fields, "transaction_date"));
+        patron.setPersonalName(fields.get("person_name"));
+        patron.setValidPatron(bool(fields, "valid_patron"));
+        patron.setValidPatronPassword(bool(fields, "valid_patron_password"));
+        patron.setFeeAmount(fields.get("fee_amount"));
+        patron.setEmailAddress(fields.get("email_address"));
+        patron.setCurrencyType(CurrencyType.US_DOLLARS);
+        return patron;
+    }
+
+    static ItemInformationResponse toItem(Map<String, String> fields) {
+        ItemInformationResponse item = new ItemInformationResponse();
+        item.setItemIdentifier(required(fields, "item_identifier"));
+        item.setCirculationStatus(CirculationStatus.AVAILABLE);
+        item.setSecurityMarker(SecurityMarker.OTHER);
+        item.setFeeType(FeeType.OTHER);
+        item.setMediaType(MediaType.OTHER);
+        item.setTransactionDate(date(fields, "transaction_date"));
+        item.setHoldQueueLength(integer(fields, "hold_queue_length"));
+        item.setDueDate(fields.get("due_date"));
+        item.setRecallDate(date(fields, "recal_date"));
+        item.setHoldPickupDate(date(fields, "hold_pickup_date"));
+        item.setTitleIdentifier(fields.get("title_identifier"));
+        item.setPermanentLocation(fields.get("permanent_location"));
+        item.setCurrentLocation(fields.get("current_location"));
+        return item;
+    }
+
+    static Bib toBib(Map<String, String> fields) {
+        Bib bib = new Bib();
+        bib.setItemIdentifier(required(fields, "item_identifier"));
+        bib.setTitleIdentifier(fields.get("title_identifier"));
+        bib.setPatronIdentifier(fields.get("patron_identifier"));
+        return bib;
+    }
+
+    private static String required(Map<String, String> fields, String column) {
+        String value = fields.get(column);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException("Missing " + column);
+        }
+        return value.trim();
+    }
+
+    private static Integer integer(Map<String, String> fields, String column) {
+        String value = fields.get(column);
+        try {
+            return value == null ? 0 : Integer.valueOf(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid " + column + " " + value);
+        }
+    }
+
+    private static Boolean bool(Map<String, String> fields, String column) {
+        String value = fields.get(column);
+        if (value == null) {
+            return Boolean.TRUE;
+        }
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+        case "true":
+        case "y":
+        case "yes":
+        case "1":
+            return Boolean.TRUE;
+        case "false":
+        case "n":
+        case "no":
+        case "0":
+            return Boolean.FALSE;
+        default:
+            throw new IllegalArgumentException("Invalid " + column + " " + value);
+        }
+    }
+
+    private static Date date(Map<String, String> fields, String column) {
+        String value = fields.get(column);
+        if (value == null) {
+            return null;
+        }
+        try {
+            value = value.trim();
+            if (value.length() == 10) {
+                return new Date(java.sql.Date.valueOf(value).getTime());
+            }
+            return new Date(Timestamp.valueOf(value.replace('T', ' ')).getTime());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid " + column + " " + value);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: BulkLoader [-threads n] [-chunk n] [-snapshot file] [-properties file]"
+                + " (patrons|items|bibs) file ...");
+        System.err.println("  loads into the database configured by the properties file or system properties,");
+        System.err.println("  or with -snapshot into an in-memory repository snapshot, see MessageHandlerDummyImpl");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunkSize = 1000;
+        File snapshot = null;
+        Properties properties = new Properties();
+        List<Kind> kinds = new ArrayList<Kind>();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-") && i + 1 == args.length) {
+                usage();
+            }
+            if ("-threads".equals(args[i])) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-chunk".equals(args[i])) {
+                chunkSize = Integer.parseInt(args[++i]);
+            } else if ("-snapshot".equals(args[i])) {
+                snapshot = new File(args[++i]);
+            } else if ("-properties".equals(args[i])) {
+                try (InputStream in = new FileInputStream(args[++i])) {
+                    properties.load(in);
+                }
+            } else if (i + 1 < args.length) {
+                try {
+                    kinds.add(Kind.valueOf(args[i].toUpperCase(Locale.ROOT)));
+                } catch (IllegalArgumentException ex) {
+                    usage();
+                }
+                files.add(new File(args[++i]));
+            } else {
+                usage();
+            }
+        }
+        if (kinds.isEmpty()) {
+            usage();
+        }
+
+        BulkSink sink;
+        InMemoryRepositories repositories = null;
+        if (snapshot != null) {
+            repositories = new InMemoryRepositories(snapshot);
+            sink = new InMemoryBulkSink(repositories);
+        } else {
+            String url = properties.getProperty(ConnectionPool.PROP_URL, System.getProperty(ConnectionPool.PROP_URL, PulDao.DEFAULT_URL));
+            properties.setProperty(ConnectionPool.PROP_URL, JdbcBulkSink.withBatchRewrite(url));
+            properties.setProperty(ConnectionPool.PROP_MAX_SIZE, Integer.toString(threads));
+            sink = new JdbcBulkSink(PulDao.createPool(properties));
+        }
+        try {
+            BulkLoader loader = new BulkLoader(sink, threads, chunkSize);
+            for (int i = 0; i < kinds.size(); i++) {
+                loader.load(kinds.get(i), files.get(i));
+            }
+        } finally {
+            sink.close();
+            if (repositories != null) {
+                repositories.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the records of a CSV or JSON Lines file for {@link BulkLoader}.
+ *
+ * Splitting the file into records is sequential and cheap; parsing a
+ * record into its fields with {@link #parse(String)} is left to the
+ * caller so it can be spread over several threads.
+ *
+ * A CSV file starts with a header naming its columns; fields may be
+ * quoted as in RFC 4180, including line breaks. A JSON Lines file holds
+ * one flat object per line whose values are strings, numbers, booleans
+ * or null. Column and key names are not case sensitive.
+ */
+public class BulkRecordReader implements Closeable {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    public enum Format {
+        CSV, JSONL;
+
+        /**
+         * @return JSONL for files named *.json or *.jsonl, otherwise CSV
+         */
+        public static Format of(File file) {
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            return name.endsWith(".jsonl") || name.endsWith(".json") ? JSONL : CSV;
+        }
+    }
+
+    private final Format format;
+    private final BufferedReader in;
+    private final String[] header;
+    private long line;
+
+    public BulkRecordReader(File file) throws IOException {
+        this(file, Format.of(file));
+    }
+
+    public BulkRecordReader(File file, Format format) throws IOException {
+        this.format = format;
+        this.in = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET), 256 * 1024);
+        if (format == Format.CSV) {
+            String first = next();
+            if (first == null) {
+                throw new IOException("Missing header in " + file);
+            }
+            if (first.startsWith("\uFEFF")) {
+                first = first.substring(1);
+            }
+            List<String> columns = splitCsv(first);
+            header = new String[columns.size()];
+            for (int i = 0; i < header.length; i++) {
+                header[i] = columns.get(i).trim().toLowerCase(Locale.ROOT);
+            }
+        } else {
+            header = null;
+        }
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @return number of lines read so far
+     */
+    public long getLine() {
+        return line;
+    }
+
+    /**
+     * @return the next record, unparsed, or null at the end of the file
+     */
+    public String next() throws IOException {
+        String record = in.readLine();
+        while (record != null && record.trim().isEmpty()) {
+            line++;
+            record = in.readLine();
+        }
+        if (record == null) {
+            return null;
+        }
+        line++;
+        if (format == Format.CSV && !balanced(record)) {
+            // a quoted field continues on the next line
+            StringBuilder builder = new StringBuilder(record);
+            do {
+                String more = in.readLine();
+                if (more == null) {
+                    throw new IOException("Unterminated quoted field at line " + line);
+                }
+                line++;
+                builder.append('\n').append(more);
+            } while (!balanced(builder));
+            record = builder.toString();
+        }
+        return record;
+    }
+
+    /**
+     * @return up to max records, empty at the end of the file
+     */
+    public List<String> next(int max) throws IOException {
+        List<String> records = new ArrayList<String>(max);
+        String record;
+        while (records.size() < max && (record = next()) != null) {
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static boolean balanced(CharSequence text) {
+        int quotes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '"') {
+                quotes++;
+            }
+        }
+        return quotes % 2 == 0;
+    }
+
+    /**
+     * @return the fields of a record by lower case column name, null
+     *         values are left out
+     * @throws IllegalArgumentException if the record is malformed
+     */
+    public Map<String, String> parse(String record) {
+        return format == Format.CSV ? parseCsv(record) : parseJson(record);
+    }
+
+    private Map<String, String> parseCsv(String record) {
+        List<String> values = splitCsv(record);
+        if (values.size() > header.length) {
+            throw new IllegalArgumentException(values.size() + " fields, header has " + header.length);
+        }
+        Map<String, String> fields = new HashMap<String, String>();
+        for (int i = 0; i < values.size(); i++) {
+            if (!values.get(i).isEmpty()) {
+                fields.put(header[i], values.get(i));
+            }
+        }
+        return fields;
+    }
+
+    static List<String> splitCsv(String record) {
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    value.append(c);
+                } else if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else if (c != '\r') {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    static Map<String, String> parseJson(String record) {
+        Map<String, String> fields = new HashMap<String, String>();
+        int[] pos = {skipSpace(record, 0)};
+        expect(record, pos, '{');
+        if (peek(record, pos) == '}') {
+            pos[0]++;
+        } else {
+            while (true) {
+                String key = jsonString(record, pos);
+                expect(record, pos, ':');
+                String value = jsonValue(record, pos);
+                if (value != null) {
+                    fields.put(key.toLowerCase(Locale.ROOT), value);
+                }
+                char c = peek(record, pos);
+                pos[0]++;
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    throw new IllegalArgumentException("Expected , or } at " + (pos[0] - 1));
+                }
+            }
+        }
+        if (skipSpace(record, pos[0]) != record.length()) {
+            throw new IllegalArgumentException("Trailing characters at " + pos[0]);
+        }
+        return fields;
+    }
+
+    private static int skipSpace(String text, int pos) {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static char peek(String text, int[] pos) {
+        pos[0] = skipSpace(text, pos[0]);
+        if (pos[0] >= text.length()) {
+            throw new IllegalArgumentException("Unexpected end of record");
+        }
+        return text.charAt(pos[0]);
+    }
+
+    private static void expect(String text, int[] pos, char expected) {
+        if (peek(text, pos) != expected) {
+            throw new IllegalArgumentException("Expected " + expected + " at " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static String jsonValue(String text, int[] pos) {
+        char c = peek(text, pos);
+        if (c == '"') {
+            return jsonString(text, pos);
+        }
+        if (c == '{' || c == '[') {
+            throw new IllegalArgumentException("Nested value at " + pos[0]);
+        }
+        int start = pos[0];
+        while (pos[0] < text.length() && ",} \t\r\n".indexOf(text.charAt(pos[0])) < 0) {
+            pos[0]++;
+        }
+        String literal = text.substring(start, pos[0]);
+        if (literal.isEmpty()) {
+            throw new IllegalArgumentException("Missing value at " + start);
+        }
+        return "null".equals(literal) ? null : literal;
+    }
+
+    private static String jsonString(String text, int[] pos) {
+        expect(text, pos, '"');
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            if (pos[0] >= text.length()) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            char c = text.charAt(pos[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (pos[0] >= text.length()) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            char escaped = text.charAt(pos[0]++);
+            switch (escaped) {
+            case 'b':
+                value.append('\b');
+                break;
+            case 'f':
+                value.append('\f');
+                break;
+            case 'n':
+                value.append('\n');
+                break;
+            case 'r':
+                value.append('\r');
+                break;
+            case 't':
+                value.append('\t');
+                break;
+            case 'u':
+                if (pos[0] + 4 > text.length()) {
+                    throw new IllegalArgumentException("Invalid escape at " + (pos[0] - 2));
+                }
+                value.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+                pos[0] += 4;
+                break;
+            default:
+                value.append(escaped);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,39 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.circulation.SIP.messages.Bib;
+import com.circulation.SIP.messages.ItemInformationResponse;
+import com.circulation.SIP.messages.PatronInformationResponse;
+
+/**
+ * Destination of the records loaded by {@link BulkLoader}. Chunks of
+ * records are written concurrently from several threads.
+ */
+public interface BulkSink extends AutoCloseable {
+    void writePatrons(List<PatronInformationResponse> patrons) throws Exception;
+
+    void writeItems(List<ItemInformationResponse> items) throws Exception;
+
+    void writeBibs(List<Bib> bibs) throws Exception;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,169 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stops calls to a database that keeps failing, so callers fail at once
+ * instead of each waiting for a timeout.
+ *
+ * After failureThreshold consecutive failures the breaker opens and
+ * rejects calls for openMillis. It then lets one trial call through: its
+ * success closes the breaker, its failure opens it again.
+ */
+public class CircuitBreaker {
+    private static Log logger = LogFactory.getLog(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private volatile State state = State.CLOSED;
+    private final AtomicInteger failures = new AtomicInteger();
+    // guarded by this
+    private long openedAt;
+    private long trialStartedAt;
+    private boolean trialInFlight;
+
+    private final AtomicLong trips = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param name             used in log messages
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openMillis       how long calls are rejected before a trial
+     *                         call is let through
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Invalid failure threshold " + failureThreshold);
+        }
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return true if the call may go ahead, in which case its outcome must
+     *         be recorded
+     */
+    public boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (state == State.OPEN && now - openedAt >= openMillis) {
+                state = State.HALF_OPEN;
+                trialInFlight = false;
+            }
+            // a trial whose outcome was never recorded does not block the
+            // next one for longer than the open interval
+            if (state == State.HALF_OPEN && (!trialInFlight || now - trialStartedAt >= openMillis)) {
+                trialInFlight = true;
+                trialStartedAt = now;
+                return true;
+            }
+            if (state == State.CLOSED) {
+                return true;
+            }
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public void recordSuccess() {
+        if (state == State.CLOSED) {
+            if (failures.get() != 0) {
+                failures.set(0);
+            }
+            return;
+        }
+        synchronized (this) {
+            if (state == State.HALF_OPEN) {
+                state = State.CLOSED;
+                failures.set(0);
+                logger.info(name + " is available again");
+            }
+        }
+    }
+
+    public void recordFailure() {
+        if (state == State.CLOSED && failures.incrementAndGet() < failureThreshold) {
+            return;
+        }
+        synchronized (this) {
+            if (state == State.OPEN || state == State.CLOSED && failures.get() < failureThreshold) {
+                // a call let through before the breaker opened, or the
+                // count was reset by a success meanwhile
+                return;
+            }
+            if (state == State.CLOSED) {
+                trips.incrementAndGet();
+                logger.warn(name + " failed " + failures.get() + " times in a row, rejecting calls for " + openMillis + "ms");
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            trialInFlight = false;
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return true while calls are rejected; a breaker whose open interval
+     *         has passed is open until its trial call succeeds
+     */
+    public boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * @return number of times the breaker opened after being closed
+     */
+    public long getTripCount() {
+        return trips.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + state + " trips=" + trips.get() + " rejected=" + rejected.get();
+    }
+}
@@ -0,0 +1,651 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded pool of JDBC connections.
+ *
+ * At most maxSize connections are open at once, callers beyond that wait
+ * up to the acquire timeout for one to be returned. Connections handed out
+ * are proxies whose close() returns the connection to the pool. Idle
+ * connections are reused most recently used first, validated before reuse
+ * once they have been idle for a while, and closed by a background sweep
+ * when idle for longer than the idle timeout, down to minSize.
+ *
+ * Statements created through the connections are given the query timeout,
+ * and an optional circuit breaker counts query timeouts and connection
+ * failures and, once it opens, makes getConnection() fail at once. Waiting
+ * too long for a connection from the pool is not counted, as it only means
+ * the pool is busy.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static Log logger = LogFactory.getLog(ConnectionPool.class);
+
+    private static final String PREFIX = "com.circulation.SIP.dao.";
+
+    public static final String PROP_URL = PREFIX + "url";
+    public static final String PROP_USERNAME = PREFIX + "username";
+    public static final String PROP_PASSWORD = PREFIX + "password";
+    public static final String PROP_MIN_SIZE = PREFIX + "pool.minSize";
+    public static final String PROP_MAX_SIZE = PREFIX + "pool.maxSize";
+    public static final String PROP_ACQUIRE_TIMEOUT = PREFIX + "pool.acquireTimeoutMillis";
+    public static final String PROP_IDLE_TIMEOUT = PREFIX + "pool.idleTimeoutSeconds";
+    public static final String PROP_VALIDATION_INTERVAL = PREFIX + "pool.validationIntervalMillis";
+    public static final String PROP_STATEMENT_CACHE_SIZE = PREFIX + "pool.statementCacheSize";
+    public static final String PROP_QUERY_TIMEOUT = PREFIX + "pool.queryTimeoutSeconds";
+    /**
+     * Consecutive failures that open the circuit breaker, 0 for none.
+     */
+    public static final String PROP_BREAKER_FAILURES = PREFIX + "breaker.failureThreshold";
+    public static final String PROP_BREAKER_OPEN = PREFIX + "breaker.openMillis";
+
+    /**
+     * Seconds a validation query may take.
+     */
+    private static final int VALIDATION_TIMEOUT = 5;
+
+    /**
+     * A pooled physical connection.
+     */
+    private static final class PooledConnection {
+        final Connection connection;
+        final StatementCache statements;
+        long lastUsed;
+        boolean broken;
+
+        PooledConnection(Connection connection, StatementCache statements) {
+            this.connection = connection;
+            this.statements = statements;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeout;
+    private final long idleTimeout;
+    private final long validationInterval;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+    private final AtomicInteger open = new AtomicInteger();
+    private final ScheduledExecutorService sweeper;
+    private volatile boolean closed;
+    private volatile int statementCacheSize = 32;
+    private volatile int queryTimeout;
+    private volatile boolean readOnly;
+    private volatile CircuitBreaker circuitBreaker;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    /**
+     * @param acquireTimeout     milliseconds to wait for a connection
+     * @param idleTimeout        milliseconds after which an idle connection
+     *                           above minSize is closed
+     * @param validationInterval milliseconds a connection may be idle before
+     *                           it is validated on reuse
+     */
+    public ConnectionPool(String url, String username, String password, int minSize, int maxSize,
+            long acquireTimeout, long idleTimeout, long validationInterval) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size " + minSize + ".." + maxSize);
+        }
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.acquireTimeout = acquireTimeout;
+        this.idleTimeout = idleTimeout;
+        this.validationInterval = validationInterval;
+        this.permits = new Semaphore(maxSize, true);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sip-connection-pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long sweepInterval = Math.max(1000, idleTimeout / 2);
+        this.sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, 0, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a pool configured by the {@code PROP_*} keys of the
+     * properties, falling back to system properties of the same name.
+     */
+    public static ConnectionPool create(Properties properties, String defaultUrl, String defaultUsername, String defaultPassword) {
+        return create(properties, null, defaultUrl, defaultUsername, defaultPassword);
+    }
+
+    /**
+     * Creates a pool configured by the {@code PROP_*} keys with the prefix
+     * in place of "com.circulation.SIP.dao.", e.g.
+     * "com.circulation.SIP.dao.replica.url" for the prefix
+     * "com.circulation.SIP.dao.replica.". Keys that are not set fall back to
+     * the {@code PROP_*} key itself.
+     */
+    public static ConnectionPool create(Properties properties, String prefix, String defaultUrl, String defaultUsername,
+            String defaultPassword) {
+        int maxSize = Integer.parseInt(property(properties, prefix, PROP_MAX_SIZE, "10"));
+        ConnectionPool pool = new ConnectionPool(
+                property(properties, prefix, PROP_URL, defaultUrl),
+                property(properties, prefix, PROP_USERNAME, defaultUsername),
+                property(properties, prefix, PROP_PASSWORD, defaultPassword),
+                Math.min(maxSize, Integer.parseInt(property(properties, prefix, PROP_MIN_SIZE, "1"))),
+                maxSize,
+                Long.parseLong(property(properties, prefix, PROP_ACQUIRE_TIMEOUT, "5000")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(property(properties, prefix, PROP_IDLE_TIMEOUT, "300"))),
+                Long.parseLong(property(properties, prefix, PROP_VALIDATION_INTERVAL, "1000")));
+        pool.setStatementCacheSize(Integer.parseInt(property(properties, prefix, PROP_STATEMENT_CACHE_SIZE, "32")));
+        pool.setQueryTimeout(Integer.parseInt(property(properties, prefix, PROP_QUERY_TIMEOUT, "10")));
+        int failureThreshold = Integer.parseInt(property(properties, prefix, PROP_BREAKER_FAILURES, "5"));
+        if (failureThreshold > 0) {
+            pool.setCircuitBreaker(new CircuitBreaker("Database " + pool.url, failureThreshold,
+                    Long.parseLong(property(properties, prefix, PROP_BREAKER_OPEN, "10000"))));
+        }
+        return pool;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * @param statementCacheSize prepared statements kept open per
+     *                           connection, 0 to not cache; applies to
+     *                           connections opened afterwards
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * @param queryTimeout seconds a statement may run before the driver
+     *                     cancels it, 0 for no limit; set on each statement
+     *                     created afterwards, which may override it
+     */
+    public void setQueryTimeout(int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @param readOnly marks connections opened afterwards read only, for a
+     *                 pool of a replica
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return false while the circuit breaker rejects connections
+     */
+    public boolean isAvailable() {
+        CircuitBreaker breaker = circuitBreaker;
+        return breaker == null || !breaker.isOpen();
+    }
+
+    static String property(Properties properties, String key, String defaultValue) {
+        String value = properties == null ? null : properties.getProperty(key);
+        return value != null ? value.trim() : System.getProperty(key, defaultValue);
+    }
+
+    private static String property(Properties properties, String prefix, String key, String defaultValue) {
+        if (prefix != null) {
+            String value = property(properties, prefix + key.substring(PREFIX.length()), null);
+            if (value != null) {
+                return value;
+            }
+        }
+        return property(properties, key, defaultValue);
+    }
+
+    /**
+     * @return a connection, to be closed by the caller to return it
+     * @throws SQLTimeoutException if none became available within the
+     *                             acquire timeout
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null && !breaker.allowRequest()) {
+            throw new SQLTransientConnectionException("Database " + url + " is unavailable, not trying for up to "
+                    + breaker.getOpenMillis() + "ms");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+                recordWait(System.nanoTime() - start);
+                timeouts.incrementAndGet();
+                // the pool is busy, not the database, so the breaker is not told
+                throw new SQLTimeoutException("No database connection available within " + acquireTimeout + "ms ("
+                        + maxSize + " in use)");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", ex);
+        }
+        recordWait(System.nanoTime() - start);
+        try {
+            PooledConnection pooled = take();
+            acquired.incrementAndGet();
+            return wrap(pooled, breaker);
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            recordFailure(breaker);
+            throw ex;
+        }
+    }
+
+    private static void recordSuccess(CircuitBreaker breaker) {
+        if (breaker != null) {
+            breaker.recordSuccess();
+        }
+    }
+
+    private static void recordFailure(CircuitBreaker breaker) {
+        if (breaker != null) {
+            breaker.recordFailure();
+        }
+    }
+
+    private PooledConnection take() throws SQLException {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - pooled.lastUsed < validationInterval || isValid(pooled.connection)) {
+                return pooled;
+            }
+            invalid.incrementAndGet();
+            discard(pooled);
+        }
+        return open();
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = username == null ?
+                DriverManager.getConnection(url) : DriverManager.getConnection(url, username, password);
+        if (readOnly) {
+            try {
+                connection.setReadOnly(true);
+            } catch (SQLException ex) {
+                connection.close();
+                throw ex;
+            }
+        }
+        open.incrementAndGet();
+        created.incrementAndGet();
+        int cacheSize = statementCacheSize;
+        return new PooledConnection(connection, cacheSize > 0 ? new StatementCache(cacheSize, statementHits, statementMisses) : null);
+    }
+
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        open.decrementAndGet();
+        if (pooled.statements != null) {
+            pooled.statements.close();
+        }
+        try {
+            pooled.connection.close();
+        } catch (SQLException ex) {
+            logger.debug("Failed to close database connection", ex);
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        try {
+            if (!pooled.broken && !pooled.connection.getAutoCommit()) {
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            pooled.broken = true;
+        }
+        if (closed || pooled.broken) {
+            discard(pooled);
+        } else {
+            if (pooled.statements != null) {
+                pooled.statements.reset();
+            }
+            pooled.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        }
+        permits.release();
+    }
+
+    /**
+     * @param breaker told of timeouts and connection failures while the
+     *                connection is used, and of success when it is returned
+     *                without any
+     */
+    private Connection wrap(final PooledConnection pooled, final CircuitBreaker breaker) {
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[] { Connection.class },
+                new InvocationHandler() {
+                    private boolean released;
+                    private volatile boolean failed;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("close")) {
+                            synchronized (this) {
+                                if (!released) {
+                                    released = true;
+                                    release(pooled);
+                                    if (!failed) {
+                                        recordSuccess(breaker);
+                                    }
+                                }
+                            }
+                            return null;
+                        } else if (name.equals("isClosed")) {
+                            synchronized (this) {
+                                if (released) {
+                                    return true;
+                                }
+                            }
+                        } else if (name.equals("equals")) {
+                            return proxy == args[0];
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (name.equals("toString")) {
+                            return "Pooled " + pooled.connection;
+                        }
+                        synchronized (this) {
+                            if (released) {
+                                throw new SQLException("Connection has been returned to the pool");
+                            }
+                        }
+                        try {
+                            Object result;
+                            if (name.equals("prepareStatement") && pooled.statements != null && isCacheable(method)) {
+                                int autoGeneratedKeys = args.length > 1 ? (Integer) args[1] : Statement.NO_GENERATED_KEYS;
+                                result = pooled.statements.prepare(pooled.connection, (Connection) proxy, (String) args[0], autoGeneratedKeys);
+                            } else {
+                                result = method.invoke(pooled.connection, args);
+                            }
+                            if (result instanceof Statement) {
+                                return track((Statement) result, method.getReturnType());
+                            }
+                            return result;
+                        } catch (InvocationTargetException ex) {
+                            Throwable cause = ex.getCause();
+                            if (cause instanceof SQLException) {
+                                failed((SQLException) cause);
+                            }
+                            throw cause;
+                        } catch (SQLException ex) {
+                            failed(ex);
+                            throw ex;
+                        }
+                    }
+
+                    private void failed(SQLException ex) {
+                        if (isFatal(ex)) {
+                            pooled.broken = true;
+                        }
+                        if ((isFatal(ex) || isTimeout(ex)) && !failed) {
+                            failed = true;
+                            recordFailure(breaker);
+                        }
+                    }
+
+                    /**
+                     * Sets the query timeout of the statement and returns a
+                     * proxy that reports its timeouts and connection
+                     * failures like those of the connection.
+                     */
+                    private Object track(final Statement statement, Class<?> type) throws SQLException {
+                        int timeout = queryTimeout;
+                        if (timeout > 0) {
+                            statement.setQueryTimeout(timeout);
+                        }
+                        return Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[] { type },
+                                new InvocationHandler() {
+                                    @Override
+                                    public Object invoke(Object statementProxy, Method method, Object[] args) throws Throwable {
+                                        String name = method.getName();
+                                        if (name.equals("equals")) {
+                                            return statementProxy == args[0];
+                                        } else if (name.equals("hashCode")) {
+                                            return System.identityHashCode(statementProxy);
+                                        }
+                                        try {
+                                            return method.invoke(statement, args);
+                                        } catch (InvocationTargetException ex) {
+                                            Throwable cause = ex.getCause();
+                                            if (cause instanceof SQLException) {
+                                                failed((SQLException) cause);
+                                            }
+                                            throw cause;
+                                        }
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * @return true for prepareStatement(sql) and
+     *         prepareStatement(sql, autoGeneratedKeys)
+     */
+    private static boolean isCacheable(Method method) {
+        Class<?>[] types = method.getParameterTypes();
+        return types.length == 1 || types.length == 2 && types[1] == int.class;
+    }
+
+    /**
+     * @return true for errors after which the connection cannot be used,
+     *         SQL state class 08
+     */
+    private static boolean isFatal(SQLException ex) {
+        String state = ex.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+
+    /**
+     * @return true for a statement cancelled by its query timeout, which
+     *         MySQL reports with SQL state 70100
+     */
+    private static boolean isTimeout(SQLException ex) {
+        return ex instanceof SQLTimeoutException || "70100".equals(ex.getSQLState());
+    }
+
+    private void recordWait(long nanos) {
+        totalWaitNanos.addAndGet(nanos);
+        long max = maxWaitNanos.get();
+        while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    /**
+     * Closes connections idle for longer than the idle timeout, oldest
+     * first, and opens connections up to the minimum size.
+     */
+    void sweep() {
+        long now = System.currentTimeMillis();
+        PooledConnection oldest;
+        while (open.get() > minSize && (oldest = idle.peekLast()) != null && now - oldest.lastUsed > idleTimeout) {
+            if (idle.removeLastOccurrence(oldest)) {
+                discard(oldest);
+            }
+        }
+        try {
+            while (!closed && open.get() < minSize && permits.tryAcquire()) {
+                try {
+                    idle.offerLast(open());
+                } finally {
+                    permits.release();
+                }
+            }
+        } catch (SQLException ex) {
+            logger.warn("Cannot open database connection to " + url + ": " + ex.getMessage());
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return connections open, in use or idle
+     */
+    public int getOpenCount() {
+        return open.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    /**
+     * @return number of callers waiting for a connection
+     */
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return idle connections discarded because they failed validation
+     */
+    public long getInvalidCount() {
+        return invalid.get();
+    }
+
+    /**
+     * @return prepared statements reused from a connection's cache
+     */
+    public long getStatementHitCount() {
+        return statementHits.get();
+    }
+
+    public long getStatementMissCount() {
+        return statementMisses.get();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = acquired.get() + timeouts.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Closes the idle connections now and the others as they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        sweeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    @Override
+    public String toString() {
+        CircuitBreaker breaker = circuitBreaker;
+        return String.format("open=%d active=%d idle=%d waiting=%d acquired=%d created=%d timeouts=%d invalid=%d avgWait=%.2fms maxWait=%.2fms statementHits=%d statementMisses=%d",
+                getOpenCount(), getActiveCount(), getIdleCount(), getWaitingCount(), getAcquiredCount(), getCreatedCount(),
+                getTimeoutCount(), getInvalidCount(), getAverageWaitMillis(), getMaxWaitMillis(), getStatementHitCount(), getStatementMissCount())
+                + (breaker == null ? "" : " breaker=" + breaker.getState() + " trips=" + breaker.getTripCount()
+                        + " rejected=" + breaker.getRejectedCount());
+    }
+}
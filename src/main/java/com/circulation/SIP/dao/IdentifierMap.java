@@ -0,0 +1,103 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A concurrent map keyed by patron or item identifier.
+ *
+ * Barcodes are usually numeric, so identifiers that are the canonical
+ * decimal form of a long, i.e. without sign or leading zeros, are held in
+ * a {@link LongKeyedMap}; any other identifier in an ordinary concurrent
+ * map.
+ */
+public class IdentifierMap<V> {
+    private final LongKeyedMap<V> numeric = new LongKeyedMap<V>();
+    private final ConcurrentHashMap<String, V> other = new ConcurrentHashMap<String, V>();
+
+    /**
+     * @return the identifier as a long, or -1 if it is not the canonical
+     *         form of a non-negative long
+     */
+    static long numericKey(String identifier) {
+        int length = identifier.length();
+        if (length == 0 || length > 18 || (length > 1 && identifier.charAt(0) == '0')) {
+            return -1;
+        }
+        long key = 0;
+        for (int i = 0; i < length; i++) {
+            char c = identifier.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            key = key * 10 + (c - '0');
+        }
+        return key;
+    }
+
+    public V get(String identifier) {
+        if (identifier == null) {
+            return null;
+        }
+        long key = numericKey(identifier);
+        return key >= 0 ? numeric.get(key) : other.get(identifier);
+    }
+
+    public V put(String identifier, V value) {
+        long key = numericKey(identifier);
+        return key >= 0 ? numeric.put(key, value) : other.put(identifier, value);
+    }
+
+    public V remove(String identifier) {
+        if (identifier == null) {
+            return null;
+        }
+        long key = numericKey(identifier);
+        return key >= 0 ? numeric.remove(key) : other.remove(identifier);
+    }
+
+    public int size() {
+        return numeric.size() + other.size();
+    }
+
+    /**
+     * @return a copy of the mappings
+     */
+    public List<Map.Entry<String, V>> entries() {
+        final List<Map.Entry<String, V>> entries = new ArrayList<Map.Entry<String, V>>(size());
+        numeric.forEach(new LongKeyedMap.Visitor<V>() {
+            @Override
+            public void visit(long key, V value) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<String, V>(Long.toString(key), value));
+            }
+        });
+        for (Map.Entry<String, V> entry : other.entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<String, V>(entry));
+        }
+        return entries;
+    }
+
+    public void clear() {
+        numeric.clear();
+        other.clear();
+    }
+}
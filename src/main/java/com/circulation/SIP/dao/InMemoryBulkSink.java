@@ -0,0 +1,62 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.util.List;
+
+import com.circulation.SIP.messages.Bib;
+import com.circulation.SIP.messages.ItemInformationResponse;
+import com.circulation.SIP.messages.PatronInformationResponse;
+
+/**
+ * Loads records into {@link InMemoryRepositories}.
+ */
+public class InMemoryBulkSink implements BulkSink {
+    private final InMemoryRepositories repositories;
+
+    public InMemoryBulkSink(InMemoryRepositories repositories) {
+        this.repositories = repositories;
+    }
+
+    @Override
+    public void writePatrons(List<PatronInformationResponse> patrons) {
+        for (PatronInformationResponse patron : patrons) {
+            repositories.putPatron(patron);
+        }
+    }
+
+    @Override
+    public void writeItems(List<ItemInformationResponse> items) {
+        for (ItemInformationResponse item : items) {
+            repositories.putItem(item);
+        }
+    }
+
+    @Override
+    public void writeBibs(List<Bib> bibs) {
+        for (Bib bib : bibs) {
+            repositories.createBib(bib);
+        }
+    }
+
+    /**
+     * The repositories stay open.
+     */
+    @Override
+    public void close() {
+    }
+}
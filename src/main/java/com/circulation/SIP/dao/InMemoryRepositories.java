@@ -0,0 +1,370 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.circulation.SIP.messages.Bib;
+import com.circulation.SIP.messages.CheckOut;
+import com.circulation.SIP.messages.ItemInformationResponse;
+import com.circulation.SIP.messages.PatronInformationResponse;
+
+/**
+ * Repositories held in memory, for tests and load runs without a
+ * database.
+ *
+ * Records are kept in {@link IdentifierMap}s and copies are handed out,
+ * so callers may change what they get. The contents can be saved to and
+ * restored from a snapshot file.
+ */
+public class InMemoryRepositories implements Repositories, PatronRepository, ItemRepository, LoanRepository, BibRepository, LoginRepository {
+    private static Log logger = LogFactory.getLog(InMemoryRepositories.class);
+
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int LOAN_LOCKS = 64;
+    private static final int RESET_INTERVAL = 1024;
+
+    private final IdentifierMap<PatronInformationResponse> patrons = new IdentifierMap<PatronInformationResponse>();
+    private final IdentifierMap<ItemInformationResponse> items = new IdentifierMap<ItemInformationResponse>();
+    private final IdentifierMap<Loan> loans = new IdentifierMap<Loan>();
+    // items on loan by patron identifier; sets left empty are not removed,
+    // as that would race with a concurrent check out to the patron
+    private final Map<String, Set<String>> loansByPatron = new ConcurrentHashMap<String, Set<String>>();
+    // changes to the loan of an item are made holding the item's lock
+    private final Object[] loanLocks = new Object[LOAN_LOCKS];
+    private final TransactionIdGenerator transactionIds = new TransactionIdGenerator(0);
+    private final IdentifierMap<Integer> bibs = new IdentifierMap<Integer>();
+    private final Map<String, String> logins = new ConcurrentHashMap<String, String>();
+    private final AtomicInteger lastBibId = new AtomicInteger();
+    private final File snapshot;
+
+    public InMemoryRepositories() {
+        this.snapshot = null;
+        initLoanLocks();
+    }
+
+    /**
+     * Restores the snapshot if the file exists, and saves one to it when
+     * closed.
+     */
+    public InMemoryRepositories(File snapshot) throws IOException {
+        this.snapshot = snapshot;
+        initLoanLocks();
+        if (snapshot.exists()) {
+            restore(snapshot);
+        }
+    }
+
+    private void initLoanLocks() {
+        for (int i = 0; i < LOAN_LOCKS; i++) {
+            loanLocks[i] = new Object();
+        }
+    }
+
+    private Object loanLock(String itemIdentifier) {
+        return loanLocks[(itemIdentifier.hashCode() & Integer.MAX_VALUE) % LOAN_LOCKS];
+    }
+
+    @Override
+    public PatronRepository patrons() {
+        return this;
+    }
+
+    @Override
+    public ItemRepository items() {
+        return this;
+    }
+
+    @Override
+    public LoanRepository loans() {
+        return this;
+    }
+
+    @Override
+    public BibRepository bibs() {
+        return this;
+    }
+
+    @Override
+    public LoginRepository logins() {
+        return this;
+    }
+
+    public void putPatron(PatronInformationResponse patron) {
+        patrons.put(patron.getPatronIdentifier(), (PatronInformationResponse) patron.clone());
+    }
+
+    public void putItem(ItemInformationResponse item) {
+        items.put(item.getItemIdentifier(), (ItemInformationResponse) item.clone());
+    }
+
+    public void putLogin(String userName, String password) {
+        logins.put(userName, password);
+    }
+
+    public int getPatronCount() {
+        return patrons.size();
+    }
+
+    public int getItemCount() {
+        return items.size();
+    }
+
+    public int getLoanCount() {
+        return loans.size();
+    }
+
+    @Override
+    public PatronInformationResponse findPatron(String patronIdentifier) {
+        PatronInformationResponse patron = patrons.get(patronIdentifier);
+        return patron == null ? null : (PatronInformationResponse) patron.clone();
+    }
+
+    @Override
+    public ItemInformationResponse findItem(String itemIdentifier) {
+        ItemInformationResponse item = items.get(itemIdentifier);
+        return item == null ? null : (ItemInformationResponse) item.clone();
+    }
+
+    @Override
+    public boolean checkOut(CheckOut checkOut) {
+        String itemIdentifier = checkOut.getItemIdentifier();
+        if (itemIdentifier == null) {
+            return false;
+        }
+        Loan loan = new Loan(transactionIds.next(), String.valueOf(checkOut.getPatronIdentifier()), itemIdentifier,
+                new Date(), checkOut.getNbDueDate(), 0);
+        synchronized (loanLock(itemIdentifier)) {
+            Loan previous = loans.put(itemIdentifier, loan);
+            if (previous != null) {
+                unindex(previous);
+            }
+            index(loan);
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean checkIn(String itemIdentifier) {
+        synchronized (loanLock(itemIdentifier)) {
+            Loan loan = loans.remove(itemIdentifier);
+            if (loan == null) {
+                return false;
+            }
+            unindex(loan);
+            return true;
+        }
+    }
+
+    private void index(Loan loan) {
+        Set<String> items = loansByPatron.get(loan.getPatronIdentifier());
+        if (items == null) {
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            items = loansByPatron.putIfAbsent(loan.getPatronIdentifier(), created);
+            if (items == null) {
+                items = created;
+            }
+        }
+        items.add(loan.getItemIdentifier());
+    }
+
+    private void unindex(Loan loan) {
+        Set<String> items = loansByPatron.get(loan.getPatronIdentifier());
+        if (items != null) {
+            items.remove(loan.getItemIdentifier());
+        }
+    }
+
+    @Override
+    public Loan findLoan(String itemIdentifier) {
+        return loans.get(itemIdentifier);
+    }
+
+    @Override
+    public List<Loan> findLoans(String patronIdentifier) {
+        Set<String> items = loansByPatron.get(patronIdentifier);
+        if (items == null) {
+            return Collections.emptyList();
+        }
+        List<Loan> result = new ArrayList<Loan>(items.size());
+        for (String itemIdentifier : items) {
+            Loan loan = loans.get(itemIdentifier);
+            // the index may briefly lag a concurrent change of borrower
+            if (loan != null && loan.getPatronIdentifier().equals(patronIdentifier)) {
+                result.add(loan);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Loan renew(String patronIdentifier, String itemIdentifier, Date dueDate) {
+        synchronized (loanLock(itemIdentifier)) {
+            Loan loan = loans.get(itemIdentifier);
+            if (loan == null || !loan.getPatronIdentifier().equals(patronIdentifier)) {
+                return null;
+            }
+            Loan renewed = loan.renew(dueDate);
+            loans.put(itemIdentifier, renewed);
+            return renewed;
+        }
+    }
+
+    @Override
+    public List<Loan> renewAll(String patronIdentifier, Date dueDate) {
+        Set<String> items = loansByPatron.get(patronIdentifier);
+        if (items == null) {
+            return Collections.emptyList();
+        }
+        List<Loan> renewed = new ArrayList<Loan>(items.size());
+        for (String itemIdentifier : items) {
+            Loan loan = renew(patronIdentifier, itemIdentifier, dueDate);
+            if (loan != null) {
+                renewed.add(loan);
+            }
+        }
+        return renewed;
+    }
+
+    @Override
+    public Integer findBibId(String itemIdentifier) {
+        return bibs.get(itemIdentifier);
+    }
+
+    @Override
+    public Integer createBib(Bib bib) {
+        if (bib.getItemIdentifier() == null) {
+            return null;
+        }
+        Integer bibId = lastBibId.incrementAndGet();
+        bibs.put(bib.getItemIdentifier(), bibId);
+        return bibId;
+    }
+
+    @Override
+    public boolean validateLogin(String userName, String password) {
+        return userName != null && password != null && password.equals(logins.get(userName));
+    }
+
+    /**
+     * Writes the contents to a file, replacing it only once complete.
+     */
+    public void snapshot(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+            out.writeInt(SNAPSHOT_VERSION);
+            writeEntries(out, patrons.entries());
+            writeEntries(out, items.entries());
+            writeEntries(out, loans.entries());
+            writeEntries(out, bibs.entries());
+            out.writeInt(logins.size());
+            for (Map.Entry<String, String> login : logins.entrySet()) {
+                out.writeObject(login.getKey());
+                out.writeObject(login.getValue());
+            }
+            out.writeInt(lastBibId.get());
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static <V> void writeEntries(ObjectOutputStream out, List<Map.Entry<String, V>> entries) throws IOException {
+        out.writeInt(entries.size());
+        int written = 0;
+        for (Map.Entry<String, V> entry : entries) {
+            out.writeObject(entry.getKey());
+            out.writeObject(entry.getValue());
+            if (++written % RESET_INTERVAL == 0) {
+                // records are independent, so the stream need not remember
+                // them, only the class descriptors written once per batch
+                out.reset();
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents with those of a snapshot.
+     */
+    public void restore(File file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            int version = in.readInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            readEntries(in, patrons);
+            readEntries(in, items);
+            readEntries(in, loans);
+            loansByPatron.clear();
+            for (Map.Entry<String, Loan> loan : loans.entries()) {
+                index(loan.getValue());
+            }
+            readEntries(in, bibs);
+            logins.clear();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                logins.put((String) in.readObject(), (String) in.readObject());
+            }
+            lastBibId.set(in.readInt());
+        } catch (ClassNotFoundException | ClassCastException ex) {
+            throw new IOException("Invalid snapshot " + file, ex);
+        }
+        logger.info("Restored " + patrons.size() + " patrons and " + items.size() + " items from " + file);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void readEntries(ObjectInputStream in, IdentifierMap<V> map) throws IOException, ClassNotFoundException {
+        map.clear();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            map.put((String) in.readObject(), (V) in.readObject());
+        }
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Saves a snapshot if this was created with a snapshot file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (snapshot != null) {
+            snapshot(snapshot);
+        }
+    }
+}
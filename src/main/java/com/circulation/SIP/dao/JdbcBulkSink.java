@@ -0,0 +1,165 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+import java.util.List;
+
+import com.circulation.SIP.messages.Bib;
+import com.circulation.SIP.messages.ItemInformationResponse;
+import com.circulation.SIP.messages.PatronInformationResponse;
+
+/**
+ * Loads records into the database, each chunk as one JDBC batch in one
+ * transaction.
+ *
+ * The MySQL driver only sends a batch as a single multi-row insert when
+ * the URL sets rewriteBatchedStatements, see
+ * {@link #withBatchRewrite(String)}; otherwise every row is still a round
+ * trip of its own.
+ */
+public class JdbcBulkSink implements BulkSink {
+    private static final String INSERT_PATRON = "Insert into patron (patron_identifier, unavailable_holds_count,"
+            + " charged_Items_count, hold_Items_count, fine_Items_count, recall_Items_count, overdue_Items_count,"
+            + " transaction_date, person_name, valid_patron, valid_Patron_password, fee_amount, email_address)"
+            + " values (?,?,?,?,?,?,?,?,?,?,?,?,?)";
+    private static final String INSERT_ITEM = "Insert into item (item_identifier, transaction_date, hold_queue_length,"
+            + " due_date, recal_date, hold_pickup_date, title_identifier, permanent_location, current_location)"
+            + " values (?,?,?,?,?,?,?,?,?)";
+
+    private final ConnectionPool pool;
+
+    /**
+     * @param pool connections to load with, as many as there are loader
+     *             threads
+     */
+    public JdbcBulkSink(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the JDBC URL with rewriteBatchedStatements set
+     */
+    public static String withBatchRewrite(String url) {
+        if (url.contains("rewriteBatchedStatements=")) {
+            return url;
+        }
+        return url + (url.indexOf('?') < 0 ? '?' : '&') + "rewriteBatchedStatements=true";
+    }
+
+    @Override
+    public void writePatrons(List<PatronInformationResponse> patrons) throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_PATRON)) {
+                for (PatronInformationResponse patron : patrons) {
+                    statement.setString(1, patron.getPatronIdentifier());
+                    setInteger(statement, 2, patron.getUnavailableHoldsCount());
+                    setInteger(statement, 3, patron.getChargedItemsCount());
+                    setInteger(statement, 4, patron.getHoldItemsCount());
+                    setInteger(statement, 5, patron.getFineItemsCount());
+                    setInteger(statement, 6, patron.getRecallItemsCount());
+                    setInteger(statement, 7, patron.getOverdueItemsCount());
+                    setDate(statement, 8, patron.getTransactionDate());
+                    statement.setString(9, patron.getPersonalName());
+                    setBoolean(statement, 10, patron.isValidPatron());
+                    setBoolean(statement, 11, patron.isValidPatronPassword());
+                    statement.setString(12, patron.getFeeAmount());
+                    statement.setString(13, patron.getEmailAddress());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    @Override
+    public void writeItems(List<ItemInformationResponse> items) throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_ITEM)) {
+                for (ItemInformationResponse item : items) {
+                    statement.setString(1, item.getItemIdentifier());
+                    setDate(statement, 2, item.getTransactionDate());
+                    setInteger(statement, 3, item.getHoldQueueLength());
+                    statement.setString(4, item.getDueDate());
+                    setDate(statement, 5, item.getRecallDate());
+                    setDate(statement, 6, item.getHoldPickupDate());
+                    statement.setString(7, item.getTitleIdentifier());
+                    statement.setString(8, item.getPermanentLocation());
+                    statement.setString(9, item.getCurrentLocation());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    @Override
+    public void writeBibs(List<Bib> bibs) throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(PulDao.INSERT_BIB)) {
+                for (Bib bib : bibs) {
+                    PulDao.bindBib(statement, bib);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    private static void setInteger(PreparedStatement statement, int index, Integer value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.INTEGER);
+        } else {
+            statement.setInt(index, value);
+        }
+    }
+
+    private static void setBoolean(PreparedStatement statement, int index, Boolean value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.BOOLEAN);
+        } else {
+            statement.setBoolean(index, value);
+        }
+    }
+
+    private static void setDate(PreparedStatement statement, int index, Date value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.TIMESTAMP);
+        } else {
+            statement.setTimestamp(index, new Timestamp(value.getTime()));
+        }
+    }
+
+    /**
+     * Closes the pool.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
@@ -0,0 +1,145 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import com.circulation.SIP.messages.Bib;
+import com.circulation.SIP.messages.CheckOut;
+import com.circulation.SIP.messages.ItemInformationResponse;
+import com.circulation.SIP.messages.PatronInformationResponse;
+
+/**
+ * Repositories in the MySQL database, through {@link PulDao}.
+ */
+public class JdbcRepositories implements Repositories, PatronRepository, ItemRepository, LoanRepository, BibRepository, LoginRepository {
+    private final PulDao dao;
+
+    public JdbcRepositories() {
+        this(new PulDao());
+    }
+
+    public JdbcRepositories(PulDao dao) {
+        this.dao = dao;
+    }
+
+    @Override
+    public PatronRepository patrons() {
+        return this;
+    }
+
+    @Override
+    public ItemRepository items() {
+        return this;
+    }
+
+    @Override
+    public LoanRepository loans() {
+        return this;
+    }
+
+    @Override
+    public BibRepository bibs() {
+        return this;
+    }
+
+    @Override
+    public LoginRepository logins() {
+        return this;
+    }
+
+    @Override
+    public PatronInformationResponse findPatron(String patronIdentifier) {
+        PatronInformationResponse patron = dao.findPatronByPatronId(patronIdentifier);
+        // PulDao answers an empty response when there is no row
+        return patron.getPatronIdentifier() == null ? null : patron;
+    }
+
+    @Override
+    public ItemInformationResponse findItem(String itemIdentifier) {
+        ItemInformationResponse item = dao.findItemByItemId(itemIdentifier);
+        return item.getItemIdentifier() == null ? null : item;
+    }
+
+    @Override
+    public boolean checkOut(CheckOut checkOut) {
+        return dao.checkoutItem(checkOut);
+    }
+
+    @Override
+    public boolean checkOutDurably(CheckOut checkOut) {
+        return dao.checkoutItem(checkOut, true);
+    }
+
+    @Override
+    public Boolean checkIn(String itemIdentifier) {
+        return dao.checkInItem(itemIdentifier);
+    }
+
+    @Override
+    public Loan findLoan(String itemIdentifier) {
+        return dao.findLoan(itemIdentifier);
+    }
+
+    @Override
+    public List<Loan> findLoans(String patronIdentifier) {
+        return dao.findLoansByPatronId(patronIdentifier);
+    }
+
+    @Override
+    public Loan renew(String patronIdentifier, String itemIdentifier, Date dueDate) {
+        return dao.renewItem(patronIdentifier, itemIdentifier, dueDate);
+    }
+
+    @Override
+    public List<Loan> renewAll(String patronIdentifier, Date dueDate) {
+        return dao.renewAllItems(patronIdentifier, dueDate);
+    }
+
+    @Override
+    public Integer findBibId(String itemIdentifier) {
+        return dao.findBibByItemId(itemIdentifier);
+    }
+
+    @Override
+    public Integer createBib(Bib bib) {
+        return dao.createBib(bib);
+    }
+
+    @Override
+    public boolean validateLogin(String userName, String password) {
+        return dao.validateLogin(userName, password);
+    }
+
+    /**
+     * @return false while the primary database's circuit breaker is open;
+     *         lookups may still be answered by a replica
+     */
+    @Override
+    public boolean isAvailable() {
+        return PulDao.isAvailable();
+    }
+
+    /**
+     * The connection pool is shared by all PulDao instances and is not
+     * closed.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,84 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * An item on loan to a patron.
+ */
+public class Loan implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long transactionId;
+    private final String patronIdentifier;
+    private final String itemIdentifier;
+    private final long checkOutDate;
+    private final Long dueDate;
+    private final int renewalCount;
+
+    /**
+     * @param dueDate null if the loan has no due date
+     */
+    public Loan(long transactionId, String patronIdentifier, String itemIdentifier, Date checkOutDate, Date dueDate,
+            int renewalCount) {
+        this.transactionId = transactionId;
+        this.patronIdentifier = patronIdentifier;
+        this.itemIdentifier = itemIdentifier;
+        this.checkOutDate = checkOutDate.getTime();
+        this.dueDate = dueDate == null ? null : dueDate.getTime();
+        this.renewalCount = renewalCount;
+    }
+
+    public long getTransactionId() {
+        return transactionId;
+    }
+
+    public String getPatronIdentifier() {
+        return patronIdentifier;
+    }
+
+    public String getItemIdentifier() {
+        return itemIdentifier;
+    }
+
+    public Date getCheckOutDate() {
+        return new Date(checkOutDate);
+    }
+
+    public Date getDueDate() {
+        return dueDate == null ? null : new Date(dueDate);
+    }
+
+    public int getRenewalCount() {
+        return renewalCount;
+    }
+
+    /**
+     * @return this loan due at the new date, with one more renewal
+     */
+    public Loan renew(Date newDueDate) {
+        return new Loan(transactionId, patronIdentifier, itemIdentifier, new Date(checkOutDate), newDueDate, renewalCount + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "Loan[" + transactionId + " item=" + itemIdentifier + " patron=" + patronIdentifier
+                + " due=" + getDueDate() + " renewals=" + renewalCount + "]";
+    }
+}
@@ -0,0 +1,81 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import com.circulation.SIP.messages.CheckOut;
+
+/**
+ * Items on loan to patrons.
+ *
+ * Each item has at most one active loan. Checking out an item still on
+ * loan closes its current loan first, as when a returned item was not
+ * checked in.
+ */
+public interface LoanRepository {
+    /**
+     * @return false if the loan could not be recorded
+     */
+    boolean checkOut(CheckOut checkOut);
+
+    /**
+     * Records the loan like {@link #checkOut(CheckOut)}, but returns true
+     * only once it is stored, for repositories that may acknowledge a
+     * check out before.
+     *
+     * @return false if the loan could not be recorded
+     */
+    default boolean checkOutDurably(CheckOut checkOut) {
+        return checkOut(checkOut);
+    }
+
+    /**
+     * Closes the item's active loan.
+     *
+     * @return true if the item was on loan, false if it was not, or null if
+     *         the loan could not be closed
+     */
+    Boolean checkIn(String itemIdentifier);
+
+    /**
+     * @return the item's active loan, or null
+     */
+    Loan findLoan(String itemIdentifier);
+
+    /**
+     * @return the active loans of the patron, or null if they could not be
+     *         looked up
+     */
+    List<Loan> findLoans(String patronIdentifier);
+
+    /**
+     * Extends the item's active loan to the patron.
+     *
+     * @return the renewed loan, or null if the item is not on loan to the
+     *         patron
+     */
+    Loan renew(String patronIdentifier, String itemIdentifier, Date dueDate);
+
+    /**
+     * Extends every active loan of the patron.
+     *
+     * @return the renewed loans, or null if they could not be renewed
+     */
+    List<Loan> renewAll(String patronIdentifier, Date dueDate);
+}
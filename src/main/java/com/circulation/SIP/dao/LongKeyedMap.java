@@ -0,0 +1,247 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A concurrent map from primitive long keys to values, without boxing the
+ * keys or allocating an entry per mapping.
+ *
+ * The map is split into segments, each an open addressing table with
+ * linear probing. Reads are optimistic and take no lock unless they race
+ * with a write to the same segment.
+ */
+public class LongKeyedMap<V> {
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Receives the mappings of {@link LongKeyedMap#forEach}.
+     */
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    /**
+     * The arrays of one segment, replaced together when it grows.
+     */
+    private static final class Table {
+        final long[] keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+    }
+
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        volatile Table table = new Table(INITIAL_CAPACITY);
+        int size;
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public LongKeyedMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Segment segment(int hash) {
+        return segments[(hash >>> 26) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * @return the slot of the key, or of the empty slot ending its probe
+     */
+    private static int find(Table table, long key, int hash) {
+        int mask = table.keys.length - 1;
+        int index = hash & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            if (table.values[index] == null || table.keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        long stamp = segment.lock.tryOptimisticRead();
+        Object value = lookup(segment.table, key, hash);
+        if (!segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                value = lookup(segment.table, key, hash);
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return (V) value;
+    }
+
+    private static Object lookup(Table table, long key, int hash) {
+        int index = find(table, key, hash);
+        if (index < 0) {
+            return null;
+        }
+        Object value = table.values[index];
+        return value != null && table.keys[index] == key ? value : null;
+    }
+
+    /**
+     * @return the previous value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            Table table = segment.table;
+            int index = find(table, key, hash);
+            Object previous = table.values[index];
+            if (previous == null) {
+                if ((segment.size + 1) * 2 > table.keys.length) {
+                    table = resize(segment, table.keys.length * 2);
+                    index = find(table, key, hash);
+                }
+                table.keys[index] = key;
+                segment.size++;
+            }
+            table.values[index] = value;
+            return (V) previous;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the removed value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            Table table = segment.table;
+            int index = find(table, key, hash);
+            Object previous = table.values[index];
+            if (previous == null) {
+                return null;
+            }
+            // shift the rest of the probe sequence back over the hole
+            int mask = table.keys.length - 1;
+            int hole = index;
+            int next = (hole + 1) & mask;
+            while (table.values[next] != null) {
+                int home = hash(table.keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    table.keys[hole] = table.keys[next];
+                    table.values[hole] = table.values[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            table.values[hole] = null;
+            table.keys[hole] = 0;
+            segment.size--;
+            return (V) previous;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    private static Table resize(Segment segment, int capacity) {
+        Table old = segment.table;
+        Table table = new Table(capacity);
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.values[i] != null) {
+                int index = find(table, old.keys[i], hash(old.keys[i]));
+                table.keys[index] = old.keys[i];
+                table.values[index] = old.values[i];
+            }
+        }
+        segment.table = table;
+        return table;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Visits the mappings one segment at a time, each segment as of the
+     * moment it is visited.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<V> visitor) {
+        for (Segment segment : segments) {
+            Table copy;
+            long stamp = segment.lock.readLock();
+            try {
+                Table table = segment.table;
+                copy = new Table(table.keys.length);
+                System.arraycopy(table.keys, 0, copy.keys, 0, table.keys.length);
+                System.arraycopy(table.values, 0, copy.values, 0, table.values.length);
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < copy.keys.length; i++) {
+                if (copy.values[i] != null) {
+                    visitor.visit(copy.keys[i], (V) copy.values[i]);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                segment.table = new Table(INITIAL_CAPACITY);
+                segment.size = 0;
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+}
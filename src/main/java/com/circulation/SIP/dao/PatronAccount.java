@@ -0,0 +1,64 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Holds, fines and recalls of one patron, maintained by
+ * {@link PatronSummaries}. Guarded by its own monitor.
+ *
+ * The repositories do not keep these, so unlike a {@link PatronSummary}
+ * an account cannot be rebuilt and is only dropped once it is empty.
+ */
+class PatronAccount {
+    private final Set<String> holds = new LinkedHashSet<String>();
+    private final Set<String> unavailableHolds = new LinkedHashSet<String>();
+    private final Set<String> fines = new LinkedHashSet<String>();
+    private final Set<String> recalls = new LinkedHashSet<String>();
+    // set once the account has been removed from PatronSummaries
+    private boolean removed;
+
+    Set<String> getHolds() {
+        return holds;
+    }
+
+    Set<String> getUnavailableHolds() {
+        return unavailableHolds;
+    }
+
+    Set<String> getFines() {
+        return fines;
+    }
+
+    Set<String> getRecalls() {
+        return recalls;
+    }
+
+    boolean isEmpty() {
+        return holds.isEmpty() && unavailableHolds.isEmpty() && fines.isEmpty() && recalls.isEmpty();
+    }
+
+    boolean isRemoved() {
+        return removed;
+    }
+
+    void setRemoved() {
+        removed = true;
+    }
+}
@@ -0,0 +1,436 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
+import com.circulation.SIP.messages.PatronInformationResponse;
+import com.circulation.SIP.types.flagfields.Summary;
+
+/**
+ * Per patron counts and item lists for Patron Information responses,
+ * kept up to date by the circulation events rather than aggregated from
+ * the loans on each request.
+ *
+ * A patron's charged items are read from the active loans in the
+ * {@link LoanRepository} the first time they are asked for, and from then
+ * on maintained by the events, so answering stays a single lookup however
+ * many loans the patron has. Events only change summaries already built;
+ * until then the loans they write are picked up when it is built. At most
+ * maximumSize summaries are kept, the least recently used are dropped, and
+ * a summary older than the TTL is read again from the loans when it is
+ * next asked for, picking up loans written by other servers.
+ *
+ * Holds, recalls and fines are not kept by the repositories and only live
+ * here, in an account per patron that is dropped once it is empty rather
+ * than when the patron's summary is.
+ */
+public class PatronSummaries {
+    private final LoanRepository loans;
+    private final int maximumSize;
+    private final long ttlMillis;
+    // guarded by itself, in access order
+    private final LinkedHashMap<String, PatronSummary> summaries = new LinkedHashMap<String, PatronSummary>(16, 0.75f, true);
+    // borrower of each item charged to a built summary
+    private final ConcurrentMap<String, String> borrowers = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, PatronAccount> accounts = new ConcurrentHashMap<String, PatronAccount>();
+    // patron each recalled item is recalled from
+    private final ConcurrentMap<String, String> recalledFrom = new ConcurrentHashMap<String, String>();
+    // patrons holding each item, in the order the holds were placed; queues
+    // are only changed inside compute, so one left empty can be removed
+    // without losing a hold placed meanwhile
+    private final ConcurrentMap<String, Queue<String>> holdQueues = new ConcurrentHashMap<String, Queue<String>>();
+
+    /**
+     * Keeps up to 100000 summaries for 5 minutes.
+     */
+    public PatronSummaries(LoanRepository loans) {
+        this(loans, 100000, 300000);
+    }
+
+    /**
+     * @param maximumSize maximum number of patron summaries kept
+     * @param ttlMillis   how long a summary is served before it is read
+     *                    again from the loans
+     */
+    public PatronSummaries(LoanRepository loans, int maximumSize, long ttlMillis) {
+        this.loans = loans;
+        this.maximumSize = maximumSize;
+        this.ttlMillis = ttlMillis;
+    }
+
+    private PatronSummary get(String patronIdentifier) {
+        synchronized (summaries) {
+            return summaries.get(patronIdentifier);
+        }
+    }
+
+    /**
+     * @return the patron's summary, built or read again from the loans if
+     *         it does not exist yet or is older than the TTL
+     */
+    private PatronSummary load(String patronIdentifier) {
+        PatronSummary summary;
+        boolean created = false;
+        synchronized (summaries) {
+            summary = summaries.get(patronIdentifier);
+            if (summary == null) {
+                summary = new PatronSummary();
+                summaries.put(patronIdentifier, summary);
+                created = true;
+            }
+        }
+        if (created) {
+            evict();
+        }
+        // events for the patron wait on the summary until it is built; any
+        // applied before are read back from the loans
+        synchronized (summary) {
+            long now = System.currentTimeMillis();
+            if (summary.getLoaded() == 0 || now - summary.getLoaded() >= ttlMillis) {
+                List<Loan> current = loans.findLoans(patronIdentifier);
+                if (current != null) {
+                    for (String itemIdentifier : summary.getChargedItems()) {
+                        borrowers.remove(itemIdentifier, patronIdentifier);
+                    }
+                    summary.clearCharges();
+                    for (Loan loan : current) {
+                        summary.charge(loan.getItemIdentifier(), loan.getDueDate());
+                        borrowers.put(loan.getItemIdentifier(), patronIdentifier);
+                    }
+                    summary.setLoaded(now);
+                } else if (summary.getLoaded() == 0) {
+                    // try again on the next request; an expired summary is
+                    // served until the loans can be read
+                    synchronized (summaries) {
+                        if (summaries.get(patronIdentifier) == summary) {
+                            summaries.remove(patronIdentifier);
+                        }
+                    }
+                }
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Drops the least recently used summaries beyond the maximum size.
+     */
+    private void evict() {
+        List<Map.Entry<String, PatronSummary>> evicted = null;
+        synchronized (summaries) {
+            Iterator<Map.Entry<String, PatronSummary>> iterator = summaries.entrySet().iterator();
+            while (summaries.size() > maximumSize && iterator.hasNext()) {
+                Map.Entry<String, PatronSummary> eldest = iterator.next();
+                iterator.remove();
+                if (evicted == null) {
+                    evicted = new ArrayList<Map.Entry<String, PatronSummary>>();
+                }
+                evicted.add(eldest);
+            }
+        }
+        if (evicted == null) {
+            return;
+        }
+        for (Map.Entry<String, PatronSummary> entry : evicted) {
+            PatronSummary summary = entry.getValue();
+            synchronized (summary) {
+                for (String itemIdentifier : summary.getChargedItems()) {
+                    borrowers.remove(itemIdentifier, entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the patron's account, created if it does not exist; the
+     *         caller locks it and checks it has not been removed
+     */
+    private PatronAccount account(String patronIdentifier) {
+        PatronAccount account = accounts.get(patronIdentifier);
+        if (account == null) {
+            PatronAccount created = new PatronAccount();
+            account = accounts.putIfAbsent(patronIdentifier, created);
+            if (account == null) {
+                account = created;
+            }
+        }
+        return account;
+    }
+
+    /**
+     * Drops the account if it is empty. The caller holds its monitor.
+     */
+    private void removeIfEmpty(String patronIdentifier, PatronAccount account) {
+        if (account.isEmpty() && !account.isRemoved()) {
+            account.setRemoved();
+            accounts.remove(patronIdentifier, account);
+        }
+    }
+
+    private void addHold(String patronIdentifier, String itemIdentifier, boolean available) {
+        while (true) {
+            PatronAccount account = account(patronIdentifier);
+            synchronized (account) {
+                if (!account.isRemoved()) {
+                    (available ? account.getHolds() : account.getUnavailableHolds()).add(itemIdentifier);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void addRecall(String patronIdentifier, String itemIdentifier) {
+        while (true) {
+            PatronAccount account = account(patronIdentifier);
+            synchronized (account) {
+                if (!account.isRemoved()) {
+                    account.getRecalls().add(itemIdentifier);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void addFine(String patronIdentifier, String itemIdentifier) {
+        while (true) {
+            PatronAccount account = account(patronIdentifier);
+            synchronized (account) {
+                if (!account.isRemoved()) {
+                    account.getFines().add(itemIdentifier);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void removeHold(String patronIdentifier, String itemIdentifier) {
+        PatronAccount account = accounts.get(patronIdentifier);
+        if (account != null) {
+            synchronized (account) {
+                account.getHolds().remove(itemIdentifier);
+                account.getUnavailableHolds().remove(itemIdentifier);
+                removeIfEmpty(patronIdentifier, account);
+            }
+        }
+    }
+
+    private void removeRecall(String patronIdentifier, String itemIdentifier) {
+        PatronAccount account = patronIdentifier == null ? null : accounts.get(patronIdentifier);
+        if (account != null) {
+            synchronized (account) {
+                account.getRecalls().remove(itemIdentifier);
+                removeIfEmpty(patronIdentifier, account);
+            }
+        }
+    }
+
+    /**
+     * Sets the counts of the response, and the item lists asked for by the
+     * summary flags from startItem to endItem, counting from 1.
+     */
+    public void fill(String patronIdentifier, PatronInformationResponse response, Summary summary, Integer startItem,
+            Integer endItem) {
+        PatronSummary patron = load(patronIdentifier);
+        PatronAccount account = accounts.get(patronIdentifier);
+        if (account == null) {
+            account = new PatronAccount();
+        }
+        synchronized (patron) {
+            synchronized (account) {
+                patron.fill(response, account, summary, startItem, endItem, System.currentTimeMillis());
+            }
+        }
+    }
+
+    public void checkedOut(String patronIdentifier, String itemIdentifier, Date dueDate) {
+        if (patronIdentifier == null || itemIdentifier == null) {
+            return;
+        }
+        String previous = borrowers.remove(itemIdentifier);
+        if (previous != null && !previous.equals(patronIdentifier)) {
+            PatronSummary summary = get(previous);
+            if (summary != null) {
+                synchronized (summary) {
+                    summary.discharge(itemIdentifier);
+                }
+            }
+        }
+        removeRecall(recalledFrom.remove(itemIdentifier), itemIdentifier);
+        removeFromHoldQueue(itemIdentifier, patronIdentifier);
+        removeHold(patronIdentifier, itemIdentifier);
+        PatronSummary summary = get(patronIdentifier);
+        if (summary == null) {
+            return;
+        }
+        synchronized (summary) {
+            summary.charge(itemIdentifier, dueDate);
+        }
+        borrowers.put(itemIdentifier, patronIdentifier);
+    }
+
+    /**
+     * An overdue item becomes a fine of its borrower, and the first
+     * unavailable hold on it becomes available. Fines are only seen for
+     * borrowers whose summary is kept.
+     */
+    public void checkedIn(String itemIdentifier) {
+        if (itemIdentifier == null) {
+            return;
+        }
+        String borrower = borrowers.remove(itemIdentifier);
+        PatronSummary summary = borrower == null ? null : get(borrower);
+        if (summary != null) {
+            boolean overdue;
+            synchronized (summary) {
+                overdue = summary.isOverdue(itemIdentifier, System.currentTimeMillis());
+                summary.discharge(itemIdentifier);
+            }
+            if (overdue) {
+                addFine(borrower, itemIdentifier);
+            }
+        }
+        removeRecall(recalledFrom.remove(itemIdentifier), itemIdentifier);
+        Queue<String> queue = holdQueues.get(itemIdentifier);
+        if (queue == null) {
+            return;
+        }
+        for (String patronIdentifier : queue) {
+            PatronAccount holder = accounts.get(patronIdentifier);
+            if (holder != null) {
+                synchronized (holder) {
+                    if (holder.getUnavailableHolds().remove(itemIdentifier)) {
+                        holder.getHolds().add(itemIdentifier);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    public void renewed(String patronIdentifier, String itemIdentifier, Date dueDate) {
+        PatronSummary summary = get(patronIdentifier);
+        if (summary == null) {
+            return;
+        }
+        synchronized (summary) {
+            if (summary.discharge(itemIdentifier)) {
+                summary.charge(itemIdentifier, dueDate);
+            }
+        }
+    }
+
+    public void holdPlaced(final String patronIdentifier, String itemIdentifier) {
+        boolean onLoan = borrowers.containsKey(itemIdentifier) || loans.findLoan(itemIdentifier) != null;
+        holdQueues.compute(itemIdentifier, new BiFunction<String, Queue<String>, Queue<String>>() {
+            @Override
+            public Queue<String> apply(String item, Queue<String> queue) {
+                if (queue == null) {
+                    queue = new ConcurrentLinkedQueue<String>();
+                }
+                if (!queue.contains(patronIdentifier)) {
+                    queue.add(patronIdentifier);
+                }
+                return queue;
+            }
+        });
+        addHold(patronIdentifier, itemIdentifier, !onLoan);
+    }
+
+    public void holdCancelled(String patronIdentifier, String itemIdentifier) {
+        removeFromHoldQueue(itemIdentifier, patronIdentifier);
+        removeHold(patronIdentifier, itemIdentifier);
+    }
+
+    private void removeFromHoldQueue(String itemIdentifier, final String patronIdentifier) {
+        holdQueues.computeIfPresent(itemIdentifier, new BiFunction<String, Queue<String>, Queue<String>>() {
+            @Override
+            public Queue<String> apply(String item, Queue<String> queue) {
+                queue.remove(patronIdentifier);
+                return queue.isEmpty() ? null : queue;
+            }
+        });
+    }
+
+    /**
+     * The item is recalled from its borrower.
+     */
+    public void recalled(String itemIdentifier) {
+        String borrower = borrowers.get(itemIdentifier);
+        if (borrower == null) {
+            Loan loan = loans.findLoan(itemIdentifier);
+            if (loan == null) {
+                return;
+            }
+            borrower = loan.getPatronIdentifier();
+        }
+        String previous = recalledFrom.put(itemIdentifier, borrower);
+        if (previous != null && !previous.equals(borrower)) {
+            removeRecall(previous, itemIdentifier);
+        }
+        addRecall(borrower, itemIdentifier);
+    }
+
+    public void recallCancelled(String itemIdentifier) {
+        removeRecall(recalledFrom.remove(itemIdentifier), itemIdentifier);
+    }
+
+    /**
+     * Clears the fine of the item named by the fee identifier, or all the
+     * patron's fines if there is none.
+     */
+    public void feePaid(String patronIdentifier, String feeIdentifier) {
+        PatronAccount account = accounts.get(patronIdentifier);
+        if (account == null) {
+            return;
+        }
+        synchronized (account) {
+            if (feeIdentifier == null) {
+                account.getFines().clear();
+            } else {
+                account.getFines().remove(feeIdentifier);
+            }
+            removeIfEmpty(patronIdentifier, account);
+        }
+    }
+
+    /**
+     * @return number of patrons whose summary is kept
+     */
+    public int size() {
+        synchronized (summaries) {
+            return summaries.size();
+        }
+    }
+
+    /**
+     * @return number of patrons with holds, fines or recalls
+     */
+    public int getAccountCount() {
+        return accounts.size();
+    }
+}
@@ -0,0 +1,192 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.circulation.SIP.messages.PatronInformationResponse;
+import com.circulation.SIP.types.flagfields.Summary;
+
+/**
+ * Charged items of one patron, built from the active loans and maintained
+ * by {@link PatronSummaries}. Guarded by its own monitor.
+ *
+ * Charged items are kept sorted by due date, so the overdue items are a
+ * prefix of them found by binary search, and a page of any list is a
+ * sub list.
+ */
+class PatronSummary {
+    private static final class ChargedItem implements Comparable<ChargedItem> {
+        final String itemIdentifier;
+        // items without a due date sort last and are never overdue
+        final long dueDate;
+
+        ChargedItem(String itemIdentifier, long dueDate) {
+            this.itemIdentifier = itemIdentifier;
+            this.dueDate = dueDate;
+        }
+
+        @Override
+        public int compareTo(ChargedItem other) {
+            int result = Long.compare(dueDate, other.dueDate);
+            return result != 0 ? result : itemIdentifier.compareTo(other.itemIdentifier);
+        }
+    }
+
+    private final List<ChargedItem> charged = new ArrayList<ChargedItem>();
+    private final Map<String, ChargedItem> chargedByItem = new HashMap<String, ChargedItem>();
+    // when the charged items were last read from the loans, 0 if never
+    private long loaded;
+
+    void charge(String itemIdentifier, java.util.Date dueDate) {
+        discharge(itemIdentifier);
+        ChargedItem item = new ChargedItem(itemIdentifier, dueDate == null ? Long.MAX_VALUE : dueDate.getTime());
+        int index = Collections.binarySearch(charged, item);
+        charged.add(-index - 1, item);
+        chargedByItem.put(itemIdentifier, item);
+    }
+
+    /**
+     * @return true if the item was charged to the patron
+     */
+    boolean discharge(String itemIdentifier) {
+        ChargedItem item = chargedByItem.remove(itemIdentifier);
+        if (item == null) {
+            return false;
+        }
+        charged.remove(Collections.binarySearch(charged, item));
+        return true;
+    }
+
+    boolean isOverdue(String itemIdentifier, long now) {
+        ChargedItem item = chargedByItem.get(itemIdentifier);
+        return item != null && item.dueDate < now;
+    }
+
+    /**
+     * @return number of charged items due before now
+     */
+    private int overdueCount(long now) {
+        int low = 0;
+        int high = charged.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (charged.get(mid).dueDate < now) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    Set<String> getChargedItems() {
+        return chargedByItem.keySet();
+    }
+
+    void clearCharges() {
+        charged.clear();
+        chargedByItem.clear();
+    }
+
+    long getLoaded() {
+        return loaded;
+    }
+
+    void setLoaded(long loaded) {
+        this.loaded = loaded;
+    }
+
+    /**
+     * Sets the counts, and the lists asked for by the summary flags,
+     * limited to the items from startItem to endItem, counting from 1.
+     * The caller holds the account's monitor too.
+     */
+    void fill(PatronInformationResponse response, PatronAccount account, Summary summary, Integer startItem, Integer endItem,
+            long now) {
+        Set<String> holds = account.getHolds();
+        Set<String> unavailableHolds = account.getUnavailableHolds();
+        Set<String> fines = account.getFines();
+        Set<String> recalls = account.getRecalls();
+        int overdue = overdueCount(now);
+        response.setChargedItemsCount(charged.size());
+        response.setOverdueItemsCount(overdue);
+        response.setHoldItemsCount(holds.size());
+        response.setUnavailableHoldsCount(unavailableHolds.size());
+        response.setFineItemsCount(fines.size());
+        response.setRecallItemsCount(recalls.size());
+        if (summary == null) {
+            return;
+        }
+        if (summary.isChargedItems()) {
+            response.setChargedItems(page(charged, 0, charged.size(), startItem, endItem));
+        }
+        if (summary.isOverdueItems()) {
+            response.setOverdueItems(page(charged, 0, overdue, startItem, endItem));
+        }
+        if (summary.isHoldItems()) {
+            response.setHoldItems(page(holds, startItem, endItem));
+        }
+        if (summary.isUnavaibleHolds()) {
+            response.setUnavailableHoldItems(page(unavailableHolds, startItem, endItem));
+        }
+        if (summary.isFineItems()) {
+            response.setFineItems(page(fines, startItem, endItem));
+        }
+        if (summary.isRecallItems()) {
+            response.setRecallItems(page(recalls, startItem, endItem));
+        }
+    }
+
+    private static String[] page(List<ChargedItem> items, int from, int to, Integer startItem, Integer endItem) {
+        int start = startItem == null ? from : Math.max(from, from + startItem - 1);
+        int end = endItem == null ? to : Math.min(to, from + endItem);
+        if (start >= end) {
+            return new String[0];
+        }
+        String[] page = new String[end - start];
+        for (int i = start; i < end; i++) {
+            page[i - start] = items.get(i).itemIdentifier;
+        }
+        return page;
+    }
+
+    private static String[] page(Set<String> items, Integer startItem, Integer endItem) {
+        int start = startItem == null ? 0 : Math.max(0, startItem - 1);
+        int end = endItem == null ? items.size() : Math.min(items.size(), endItem);
+        if (start >= end) {
+            return new String[0];
+        }
+        String[] page = new String[end - start];
+        int index = 0;
+        for (String item : items) {
+            if (index >= end) {
+                break;
+            }
+            if (index >= start) {
+                page[index - start] = item;
+            }
+            index++;
+        }
+        return page;
+    }
+}
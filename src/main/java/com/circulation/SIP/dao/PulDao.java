@@ -4,146 +4,552 @@ import com.circulation.SIP.messages.*;
 import com.circulation.SIP.types.enumerations.*;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /**
  * Created by giris on 3/3/20.
+ *
+ * Loans are kept in the active_loan table, one row per item on loan, and
+ * in the check_out history, see loans.sql next to this class for the
+ * tables and indexes they need.
+ *
+ * Patron, item, bib and login lookups go to a replica if one is configured
+ * with the {@value #REPLICA_PREFIX}url property, other statements to the
+ * primary. The replica pool takes its other settings from the same keys
+ * as the primary's, under the replica prefix, e.g.
+ * {@value #REPLICA_PREFIX}pool.maxSize, falling back to the primary's
+ * value. A MySQL "jdbc:mysql:loadbalance://" URL spreads the lookups over
+ * several replicas.
  */
 public class PulDao {
+    private static Log logger = LogFactory.getLog(PulDao.class);
 
-    public static Connection connection = null;
+    static final String DEFAULT_URL = "jdbc:mysql://172.17.0.2:3306/pul?autoReconnect=true&useSSL=false&serverTimezone=America/New_York&useServerPrepStmts=true&connectTimeout=5000&socketTimeout=30000";
+    static final String DEFAULT_USERNAME = "recap";
+    static final String DEFAULT_PASSWORD = "recap";
 
-    public static Connection getConnection() throws Exception {
-        if (connection == null) {
+    public static final String REPLICA_PREFIX = "com.circulation.SIP.dao.replica.";
+
+    private static volatile ConnectionPool pool;
+    private static volatile ConnectionPool replicaPool;
+    private static volatile WriteBehindQueue writeBehind;
+    private static volatile TransactionIdGenerator transactionIds =
+            new TransactionIdGenerator(Integer.getInteger(TransactionIdGenerator.PROP_NODE_ID, 0));
+
+    /**
+     * Configures the connection pool and write-behind from the server
+     * properties, see the PROP_* keys of {@link ConnectionPool} and
+     * {@link WriteBehindQueue}. Without this they are configured from
+     * system properties when the pool is first used.
+     */
+    public static synchronized void configure(Properties properties) {
+        String nodeId = properties.getProperty(TransactionIdGenerator.PROP_NODE_ID);
+        if (nodeId != null) {
+            transactionIds = new TransactionIdGenerator(Integer.parseInt(nodeId));
+        }
+        ConnectionPool previousPool = pool;
+        ConnectionPool previousReplicaPool = replicaPool;
+        WriteBehindQueue previousWriteBehind = writeBehind;
+        open(properties);
+        if (previousWriteBehind != null) {
+            previousWriteBehind.close();
+        }
+        if (previousPool != null) {
+            previousPool.close();
+        }
+        if (previousReplicaPool != null) {
+            previousReplicaPool.close();
+        }
+    }
+
+    private static void open(Properties properties) {
+        ConnectionPool primary = createPool(properties);
+        replicaPool = createReplicaPool(properties);
+        writeBehind = WriteBehindQueue.create(properties, primary);
+        // published last, getPool() callers then see the others
+        pool = primary;
+    }
+
+    static ConnectionPool createPool(Properties properties) {
+        try {
             Class.forName("com.mysql.jdbc.Driver");
-            connection = DriverManager.getConnection(
-                    "jdbc:mysql://172.17.0.2:3306/pul?autoReconnect=true&useSSL=false&serverTimezone=America/New_York", "recap", "recap");
+        } catch (ClassNotFoundException e) {
+            // another driver, registered through the service loader
+        }
+        return ConnectionPool.create(properties, DEFAULT_URL, DEFAULT_USERNAME, DEFAULT_PASSWORD);
+    }
+
+    /**
+     * @return a read only pool of the replica, or null if none is
+     *         configured
+     */
+    static ConnectionPool createReplicaPool(Properties properties) {
+        if (ConnectionPool.property(properties, REPLICA_PREFIX + "url", null) == null) {
+            return null;
+        }
+        ConnectionPool replica = ConnectionPool.create(properties, REPLICA_PREFIX, null, DEFAULT_USERNAME, DEFAULT_PASSWORD);
+        replica.setReadOnly(true);
+        return replica;
+    }
+
+    public static ConnectionPool getPool() {
+        ConnectionPool result = pool;
+        if (result == null) {
+            synchronized (PulDao.class) {
+                if (pool == null) {
+                    open(null);
+                }
+                result = pool;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the queue batching check out and bib inserts, or null if they
+     *         are written by the calling thread
+     */
+    public static WriteBehindQueue getWriteBehind() {
+        getPool();
+        return writeBehind;
+    }
+
+    /**
+     * @return the pool of the replica lookups go to, or null if they go to
+     *         the primary
+     */
+    public static ConnectionPool getReplicaPool() {
+        getPool();
+        return replicaPool;
+    }
+
+    /**
+     * @return false while the primary's circuit breaker rejects
+     *         connections, when writes fail at once
+     */
+    public static boolean isAvailable() {
+        return getPool().isAvailable();
+    }
+
+    /**
+     * @return a pooled connection, to be closed to return it to the pool
+     */
+    public static Connection getConnection() throws Exception {
+        return getPool().getConnection();
+    }
+
+    /**
+     * @return a pooled connection to the replica, which may lag behind the
+     *         primary, or to the primary if there is no replica or no
+     *         connection to it can be had
+     */
+    public static Connection getReadConnection() throws Exception {
+        ConnectionPool primary = getPool();
+        ConnectionPool replica = replicaPool;
+        if (replica != null) {
+            try {
+                return replica.getConnection();
+            } catch (SQLException e) {
+                // unavailable or exhausted, the primary answers instead
+            }
         }
-        return connection;
+        return primary.getConnection();
     }
 
+    private static final String VALIDATE_LOGIN = "select username from login where username = ? and password = ?";
+
+    // columns are read by position, in the order they are selected
+    private static final String FIND_PATRON = "select unavailable_holds_count, charged_Items_count, hold_Items_count,"
+            + " fine_Items_count, recall_Items_count, overdue_Items_count, transaction_date, person_name, valid_patron,"
+            + " valid_Patron_password, fee_amount, email_address from patron where patron_identifier = ?";
+    private static final int PATRON_UNAVAILABLE_HOLDS_COUNT = 1;
+    private static final int PATRON_CHARGED_ITEMS_COUNT = 2;
+    private static final int PATRON_HOLD_ITEMS_COUNT = 3;
+    private static final int PATRON_FINE_ITEMS_COUNT = 4;
+    private static final int PATRON_RECALL_ITEMS_COUNT = 5;
+    private static final int PATRON_OVERDUE_ITEMS_COUNT = 6;
+    private static final int PATRON_TRANSACTION_DATE = 7;
+    private static final int PATRON_PERSON_NAME = 8;
+    private static final int PATRON_VALID_PATRON = 9;
+    private static final int PATRON_VALID_PATRON_PASSWORD = 10;
+    private static final int PATRON_FEE_AMOUNT = 11;
+    private static final int PATRON_EMAIL_ADDRESS = 12;
+
+    private static final String FIND_ITEM = "select transaction_date, hold_queue_length, due_date, recal_date,"
+            + " hold_pickup_date, title_identifier, permanent_location, current_location from item where item_identifier = ?";
+    private static final int ITEM_TRANSACTION_DATE = 1;
+    private static final int ITEM_HOLD_QUEUE_LENGTH = 2;
+    private static final int ITEM_DUE_DATE = 3;
+    private static final int ITEM_RECALL_DATE = 4;
+    private static final int ITEM_HOLD_PICKUP_DATE = 5;
+    private static final int ITEM_TITLE_IDENTIFIER = 6;
+    private static final int ITEM_PERMANENT_LOCATION = 7;
+    private static final int ITEM_CURRENT_LOCATION = 8;
+
+    private static final String INSERT_CHECK_OUT = "Insert into check_out (transaction_id, transaction_date, patron_identifier, item_identifier,due_date)values (?,?,?,?,?)";
+    private static final String CLOSE_CHECK_OUT = "update check_out set check_in_date = ? where item_identifier = ? and check_in_date is null";
+    private static final String UPSERT_ACTIVE_LOAN = "insert into active_loan (item_identifier, patron_identifier, transaction_id,"
+            + " check_out_date, due_date, renewal_count) values (?,?,?,?,?,0) on duplicate key update"
+            + " patron_identifier = values(patron_identifier), transaction_id = values(transaction_id),"
+            + " check_out_date = values(check_out_date), due_date = values(due_date), renewal_count = 0";
+    private static final String DELETE_ACTIVE_LOAN = "delete from active_loan where item_identifier = ?";
+    private static final String FIND_ACTIVE_LOAN = "select transaction_id, patron_identifier, item_identifier, check_out_date,"
+            + " due_date, renewal_count from active_loan where item_identifier = ?";
+    private static final String FIND_PATRON_LOANS = "select transaction_id, patron_identifier, item_identifier, check_out_date,"
+            + " due_date, renewal_count from active_loan where patron_identifier = ?";
+    private static final int LOAN_TRANSACTION_ID = 1;
+    private static final int LOAN_PATRON_IDENTIFIER = 2;
+    private static final int LOAN_ITEM_IDENTIFIER = 3;
+    private static final int LOAN_CHECK_OUT_DATE = 4;
+    private static final int LOAN_DUE_DATE = 5;
+    private static final int LOAN_RENEWAL_COUNT = 6;
+    private static final String RENEW_CHECK_OUT = "update check_out set due_date = ? where item_identifier = ?"
+            + " and patron_identifier = ? and check_in_date is null";
+    private static final String RENEW_LOAN = "update active_loan set due_date = ?, renewal_count = renewal_count + 1"
+            + " where item_identifier = ? and patron_identifier = ?";
+    private static final String RENEW_PATRON_CHECK_OUTS = "update check_out set due_date = ? where patron_identifier = ?"
+            + " and check_in_date is null";
+    private static final String RENEW_PATRON_LOANS = "update active_loan set due_date = ?, renewal_count = renewal_count + 1"
+            + " where patron_identifier = ?";
+    private static final String FIND_BIB = "select bib_id from bib where item_identifier = ?";
+    static final String INSERT_BIB = "Insert into bib(patron_identifier, item_identifier, title_identifier)values (?,?,?)";
+
     public boolean validateLogin(String userName, String password) {
-        try {
-            PreparedStatement preparedStatement = getConnection().prepareStatement("select username from login where username = ? and password = ?");
+        try (Connection connection = getReadConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(VALIDATE_LOGIN)) {
             preparedStatement.setString(1, userName);
             preparedStatement.setString(2, password);
-            return preparedStatement.executeQuery().next();
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next();
+            }
         } catch (Exception e) {
-        	System.out.print(e+"Exception");
+            logger.error("Failed to validate login of " + userName, e);
             return false;
         }
     }
 
     public PatronInformationResponse findPatronByPatronId(String patronIdentifier) {
         PatronInformationResponse patronInformationResponse = new PatronInformationResponse();
-        try {
-            PreparedStatement preparedStatement = getConnection().prepareStatement("select * from patron where patron_identifier = ?");
+        try (Connection connection = getReadConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(FIND_PATRON)) {
             preparedStatement.setString(1, patronIdentifier);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            while (resultSet.next()) {
-                patronInformationResponse.setUnavailableHoldsCount(resultSet.getInt("unavailable_holds_count"));
-                patronInformationResponse.setChargedItemsCount(resultSet.getInt("charged_Items_count"));
-                patronInformationResponse.setHoldItemsCount(resultSet.getInt("hold_Items_count"));
-                patronInformationResponse.setFineItemsCount(resultSet.getInt("fine_Items_count"));
-                patronInformationResponse.setRecallItemsCount(resultSet.getInt("recall_Items_count"));
-                patronInformationResponse.setOverdueItemsCount(resultSet.getInt("overdue_Items_count"));
-                patronInformationResponse.setTransactionDate(resultSet.getDate("transaction_date"));
-                patronInformationResponse.setPersonalName(resultSet.getString("person_name"));
-                patronInformationResponse.setValidPatron(resultSet.getBoolean("valid_patron"));
-                patronInformationResponse.setValidPatronPassword(resultSet.getBoolean("valid_Patron_password"));
-                patronInformationResponse.setFeeAmount(resultSet.getString("fee_amount"));
-                patronInformationResponse.setEmailAddress(resultSet.getString("email_address"));
-                patronInformationResponse.setPatronIdentifier(patronIdentifier);
-                patronInformationResponse.setCurrencyType(CurrencyType.US_DOLLARS);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    patronInformationResponse.setUnavailableHoldsCount(resultSet.getInt(PATRON_UNAVAILABLE_HOLDS_COUNT));
+                    patronInformationResponse.setChargedItemsCount(resultSet.getInt(PATRON_CHARGED_ITEMS_COUNT));
+                    patronInformationResponse.setHoldItemsCount(resultSet.getInt(PATRON_HOLD_ITEMS_COUNT));
+                    patronInformationResponse.setFineItemsCount(resultSet.getInt(PATRON_FINE_ITEMS_COUNT));
+                    patronInformationResponse.setRecallItemsCount(resultSet.getInt(PATRON_RECALL_ITEMS_COUNT));
+                    patronInformationResponse.setOverdueItemsCount(resultSet.getInt(PATRON_OVERDUE_ITEMS_COUNT));
+                    patronInformationResponse.setTransactionDate(resultSet.getDate(PATRON_TRANSACTION_DATE));
+                    patronInformationResponse.setPersonalName(resultSet.getString(PATRON_PERSON_NAME));
+                    patronInformationResponse.setValidPatron(resultSet.getBoolean(PATRON_VALID_PATRON));
+                    patronInformationResponse.setValidPatronPassword(resultSet.getBoolean(PATRON_VALID_PATRON_PASSWORD));
+                    patronInformationResponse.setFeeAmount(resultSet.getString(PATRON_FEE_AMOUNT));
+                    patronInformationResponse.setEmailAddress(resultSet.getString(PATRON_EMAIL_ADDRESS));
+                    patronInformationResponse.setPatronIdentifier(patronIdentifier);
+                    patronInformationResponse.setCurrencyType(CurrencyType.US_DOLLARS);
+                }
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("Failed to find patron " + patronIdentifier, e);
         }
         return patronInformationResponse;
     }
 
     public ItemInformationResponse findItemByItemId(String itemIdentifier) {
         ItemInformationResponse itemInformationResponse = new ItemInformationResponse();
-        try {
-            PreparedStatement preparedStatement = getConnection().prepareStatement("select * from item where item_identifier = ?");
+        try (Connection connection = getReadConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(FIND_ITEM)) {
             preparedStatement.setString(1, itemIdentifier);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            while (resultSet.next()) {
-                itemInformationResponse.setItemIdentifier(itemIdentifier);
-                itemInformationResponse.setCirculationStatus(CirculationStatus.AVAILABLE);
-                itemInformationResponse.setSecurityMarker(SecurityMarker.OTHER);
-                itemInformationResponse.setFeeType(FeeType.OTHER);
-                itemInformationResponse.setTransactionDate(resultSet.getDate("transaction_date"));
-                itemInformationResponse.setHoldQueueLength(resultSet.getInt("hold_queue_length"));
-                itemInformationResponse.setDueDate(resultSet.getString("due_date"));
-                itemInformationResponse.setRecallDate(resultSet.getDate("recal_date"));
-                itemInformationResponse.setHoldPickupDate(resultSet.getDate("hold_pickup_date"));
-                itemInformationResponse.setTitleIdentifier(resultSet.getString("title_identifier"));
-                itemInformationResponse.setMediaType(MediaType.OTHER);
-                itemInformationResponse.setPermanentLocation(resultSet.getString("permanent_location"));
-                itemInformationResponse.setCurrentLocation(resultSet.getString("current_location"));
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    itemInformationResponse.setItemIdentifier(itemIdentifier);
+                    itemInformationResponse.setCirculationStatus(CirculationStatus.AVAILABLE);
+                    itemInformationResponse.setSecurityMarker(SecurityMarker.OTHER);
+                    itemInformationResponse.setFeeType(FeeType.OTHER);
+                    itemInformationResponse.setTransactionDate(resultSet.getDate(ITEM_TRANSACTION_DATE));
+                    itemInformationResponse.setHoldQueueLength(resultSet.getInt(ITEM_HOLD_QUEUE_LENGTH));
+                    itemInformationResponse.setDueDate(resultSet.getString(ITEM_DUE_DATE));
+                    itemInformationResponse.setRecallDate(resultSet.getDate(ITEM_RECALL_DATE));
+                    itemInformationResponse.setHoldPickupDate(resultSet.getDate(ITEM_HOLD_PICKUP_DATE));
+                    itemInformationResponse.setTitleIdentifier(resultSet.getString(ITEM_TITLE_IDENTIFIER));
+                    itemInformationResponse.setMediaType(MediaType.OTHER);
+                    itemInformationResponse.setPermanentLocation(resultSet.getString(ITEM_PERMANENT_LOCATION));
+                    itemInformationResponse.setCurrentLocation(resultSet.getString(ITEM_CURRENT_LOCATION));
+                }
             }
-
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("Failed to find item " + itemIdentifier, e);
         }
         return itemInformationResponse;
     }
 
+    /**
+     * @return a new loan for the check out, with a new transaction id
+     */
+    static Loan newLoan(CheckOut checkOut) {
+        return new Loan(transactionIds.next(), ""+checkOut.getPatronIdentifier(), ""+checkOut.getItemIdentifier(),
+                new java.util.Date(), checkOut.getNbDueDate(), 0);
+    }
+
+    /**
+     * Records the loans in the connection's transaction, closing any loan
+     * of the same items still open. Statements are batched, in as few
+     * batches as an item checked out twice in the list allows.
+     */
+    static void writeCheckOuts(Connection connection, List<Loan> loans) throws SQLException {
+        try (PreparedStatement close = connection.prepareStatement(CLOSE_CHECK_OUT);
+             PreparedStatement upsert = connection.prepareStatement(UPSERT_ACTIVE_LOAN);
+             PreparedStatement insert = connection.prepareStatement(INSERT_CHECK_OUT)) {
+            Set<String> items = new HashSet<String>();
+            for (Loan loan : loans) {
+                if (!items.add(loan.getItemIdentifier())) {
+                    // the earlier loan of the item has to be written before
+                    // this one closes it
+                    executeBatches(close, upsert, insert);
+                    items.clear();
+                    items.add(loan.getItemIdentifier());
+                }
+                Timestamp checkOutDate = new Timestamp(loan.getCheckOutDate().getTime());
+                Timestamp dueDate = loan.getDueDate() == null ? null : new Timestamp(loan.getDueDate().getTime());
+                close.setTimestamp(1, checkOutDate);
+                close.setString(2, loan.getItemIdentifier());
+                close.addBatch();
+                upsert.setString(1, loan.getItemIdentifier());
+                upsert.setString(2, loan.getPatronIdentifier());
+                upsert.setLong(3, loan.getTransactionId());
+                upsert.setTimestamp(4, checkOutDate);
+                upsert.setTimestamp(5, dueDate);
+                upsert.addBatch();
+                insert.setString(1, ""+loan.getTransactionId());
+                insert.setDate(2, new Date(checkOutDate.getTime()));
+                insert.setString(3, loan.getPatronIdentifier());
+                insert.setString(4, loan.getItemIdentifier());
+                insert.setDate(5, dueDate == null ? null : new Date(dueDate.getTime()));
+                insert.addBatch();
+            }
+            executeBatches(close, upsert, insert);
+        }
+    }
+
+    private static void executeBatches(PreparedStatement... statements) throws SQLException {
+        for (PreparedStatement statement : statements) {
+            statement.executeBatch();
+        }
+    }
+
+    static void bindBib(PreparedStatement preparedStatement, Bib bib) throws SQLException {
+        preparedStatement.setString(1, ""+bib.getPatronIdentifier());
+        preparedStatement.setString(2, ""+bib.getItemIdentifier());
+        preparedStatement.setString(3, ""+bib.getTitleIdentifier());
+    }
+
     public boolean checkoutItem(CheckOut checkOut){
-        try{
-            String sql = "Insert into check_out (transaction_id, transaction_date, patron_identifier, item_identifier,due_date)values (?,?,?,?,?)";
-            PreparedStatement preparedStatement = getConnection().prepareStatement(sql);
-            preparedStatement.setString(1, ""+Math.random());
-            preparedStatement.setDate(2, new Date(new java.util.Date().getTime()));
-            preparedStatement.setString(3, ""+checkOut.getPatronIdentifier());
-            preparedStatement.setString(4, ""+checkOut.getItemIdentifier());
-            preparedStatement.setDate(5, new Date(checkOut.getNbDueDate().getTime()));
-            preparedStatement.execute();
+        return checkoutItem(checkOut, false);
+    }
+
+    /**
+     * @param committed true to return only once the check out has been
+     *                  committed, even with asynchronous write-behind
+     */
+    public boolean checkoutItem(CheckOut checkOut, boolean committed){
+        WriteBehindQueue queue = getWriteBehind();
+        if (queue != null) {
+            return committed ? queue.checkOutAndWait(checkOut) : queue.checkOut(checkOut);
+        }
+        // an exception leaves the transaction to be rolled back by the pool
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            writeCheckOuts(connection, Collections.singletonList(newLoan(checkOut)));
+            connection.commit();
             return true;
         }catch (Exception e){
-            e.printStackTrace();
+            logger.error("Failed to check out " + checkOut.getItemIdentifier(), e);
         }
         return false;
     }
 
-    public boolean checkInItem(String itemIdentifier){
-        try {
-            PreparedStatement preparedStatement = getConnection().prepareStatement("select transaction_id from check_out where item_identifier = ?");
+    /**
+     * @return true if the item was on loan, false if it was not, or null on
+     *         error
+     */
+    public Boolean checkInItem(String itemIdentifier){
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            boolean onLoan;
+            try (PreparedStatement close = connection.prepareStatement(CLOSE_CHECK_OUT);
+                 PreparedStatement delete = connection.prepareStatement(DELETE_ACTIVE_LOAN)) {
+                close.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+                close.setString(2, itemIdentifier);
+                close.executeUpdate();
+                delete.setString(1, itemIdentifier);
+                onLoan = delete.executeUpdate() > 0;
+            }
+            connection.commit();
+            return onLoan;
+        } catch (Exception e) {
+            logger.error("Failed to check in " + itemIdentifier, e);
+            return null;
+        }
+    }
+
+    public Loan findLoan(String itemIdentifier) {
+        try (Connection connection = getConnection()) {
+            return findLoan(connection, itemIdentifier);
+        } catch (Exception e) {
+            logger.error("Failed to find the loan of " + itemIdentifier, e);
+        }
+        return null;
+    }
+
+    private static Loan findLoan(Connection connection, String itemIdentifier) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(FIND_ACTIVE_LOAN)) {
             preparedStatement.setString(1, itemIdentifier);
-            return preparedStatement.executeQuery().next();
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? readLoan(resultSet) : null;
+            }
+        }
+    }
+
+    public List<Loan> findLoansByPatronId(String patronIdentifier) {
+        try (Connection connection = getConnection()) {
+            return findLoans(connection, patronIdentifier);
         } catch (Exception e) {
-            return false;
+            logger.error("Failed to find the loans of " + patronIdentifier, e);
         }
+        return null;
+    }
+
+    private static List<Loan> findLoans(Connection connection, String patronIdentifier) throws SQLException {
+        List<Loan> loans = new ArrayList<Loan>();
+        try (PreparedStatement preparedStatement = connection.prepareStatement(FIND_PATRON_LOANS)) {
+            preparedStatement.setString(1, patronIdentifier);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    loans.add(readLoan(resultSet));
+                }
+            }
+        }
+        return loans;
+    }
+
+    private static Loan readLoan(ResultSet resultSet) throws SQLException {
+        Timestamp dueDate = resultSet.getTimestamp(LOAN_DUE_DATE);
+        return new Loan(resultSet.getLong(LOAN_TRANSACTION_ID),
+                resultSet.getString(LOAN_PATRON_IDENTIFIER),
+                resultSet.getString(LOAN_ITEM_IDENTIFIER),
+                new java.util.Date(resultSet.getTimestamp(LOAN_CHECK_OUT_DATE).getTime()),
+                dueDate == null ? null : new java.util.Date(dueDate.getTime()),
+                resultSet.getInt(LOAN_RENEWAL_COUNT));
+    }
+
+    /**
+     * @return the renewed loan, or null if the item is not on loan to the
+     *         patron
+     */
+    public Loan renewItem(String patronIdentifier, String itemIdentifier, java.util.Date dueDate) {
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            // check_out before active_loan, in the same order as check outs
+            // and check ins lock them
+            try (PreparedStatement history = connection.prepareStatement(RENEW_CHECK_OUT);
+                 PreparedStatement loan = connection.prepareStatement(RENEW_LOAN)) {
+                history.setDate(1, new Date(dueDate.getTime()));
+                history.setString(2, itemIdentifier);
+                history.setString(3, patronIdentifier);
+                history.executeUpdate();
+                loan.setTimestamp(1, new Timestamp(dueDate.getTime()));
+                loan.setString(2, itemIdentifier);
+                loan.setString(3, patronIdentifier);
+                if (loan.executeUpdate() == 0) {
+                    return null;
+                }
+            }
+            Loan renewed = findLoan(connection, itemIdentifier);
+            connection.commit();
+            return renewed;
+        } catch (Exception e) {
+            logger.error("Failed to renew " + itemIdentifier, e);
+        }
+        return null;
+    }
+
+    /**
+     * @return the renewed loans, or null on error
+     */
+    public List<Loan> renewAllItems(String patronIdentifier, java.util.Date dueDate) {
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement history = connection.prepareStatement(RENEW_PATRON_CHECK_OUTS);
+                 PreparedStatement loans = connection.prepareStatement(RENEW_PATRON_LOANS)) {
+                history.setDate(1, new Date(dueDate.getTime()));
+                history.setString(2, patronIdentifier);
+                history.executeUpdate();
+                loans.setTimestamp(1, new Timestamp(dueDate.getTime()));
+                loans.setString(2, patronIdentifier);
+                if (loans.executeUpdate() == 0) {
+                    return Collections.emptyList();
+                }
+            }
+            List<Loan> renewed = findLoans(connection, patronIdentifier);
+            connection.commit();
+            return renewed;
+        } catch (Exception e) {
+            logger.error("Failed to renew the loans of " + patronIdentifier, e);
+        }
+        return null;
     }
 
     public Integer findBibByItemId(String itemIdentifier){
-        try {
-            PreparedStatement preparedStatement = getConnection().prepareStatement("select bib_id from bib where item_identifier = ?");
+        Integer bibId = findBib(itemIdentifier, true);
+        // a bib is created when none is found, so a miss on a replica that
+        // may not have the latest bibs yet is checked on the primary
+        if (bibId == null && replicaPool != null) {
+            bibId = findBib(itemIdentifier, false);
+        }
+        return bibId;
+    }
+
+    private static Integer findBib(String itemIdentifier, boolean replica){
+        try (Connection connection = replica ? getReadConnection() : getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(FIND_BIB)) {
             preparedStatement.setString(1, itemIdentifier);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if(resultSet.next()){
-                return resultSet.getInt("bib_id");
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if(resultSet.next()){
+                    return resultSet.getInt(1);
+                }
             }
         } catch (Exception e) {
-
+            logger.error("Failed to find the bib of " + itemIdentifier, e);
         }
         return null;
     }
 
     public Integer createBib(Bib bib){
-        try{
-            String sql = "Insert into bib(patron_identifier, item_identifier, title_identifier)values (?,?,?)";
-            PreparedStatement preparedStatement = getConnection().prepareStatement(sql);
-            preparedStatement.setString(1, ""+bib.getPatronIdentifier());
-            preparedStatement.setString(2, ""+bib.getItemIdentifier());
-            preparedStatement.setString(3, ""+bib.getTitleIdentifier());
+        WriteBehindQueue queue = getWriteBehind();
+        if (queue != null) {
+            return queue.createBib(bib);
+        }
+        try (Connection connection = getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(INSERT_BIB, Statement.RETURN_GENERATED_KEYS)) {
+            bindBib(preparedStatement, bib);
             preparedStatement.execute();
-            ResultSet resultSet =  preparedStatement.getGeneratedKeys();
-            if(resultSet.next()){
-                return resultSet.getInt(1);
+            try (ResultSet resultSet = preparedStatement.getGeneratedKeys()) {
+                if(resultSet.next()){
+                    return resultSet.getInt(1);
+                }
             }
         }catch (Exception e){
-            e.printStackTrace();
+            logger.error("Failed to create a bib for " + bib.getItemIdentifier(), e);
         }
         return null;
     }
@@ -0,0 +1,189 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of DAO records with a time to live, evicting with a
+ * segmented LRU policy: new entries go to a probationary segment and are
+ * promoted to a protected segment on their first hit, so records looked up
+ * once, e.g. by a bulk scan, cannot push out those looked up repeatedly.
+ *
+ * Values are returned as stored, so mutable records should be copied by
+ * the caller.
+ */
+public class RecordCache<K, V> {
+    private static final class Entry<V> {
+        final V value;
+        final long expires;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final int probationCapacity;
+    private final int protectedCapacity;
+    private final long ttlMillis;
+    private final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    private final LinkedHashMap<K, Entry<V>> protectedSegment = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+
+    private final int tombstoneCapacity;
+    /** sequence of the last invalidation */
+    private long clock;
+    /** sequence of the latest invalidation of each key, oldest first */
+    private final LinkedHashMap<K, Long> tombstones = new LinkedHashMap<K, Long>();
+    /** loads stamped before this are rejected whatever their key */
+    private long floor;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maximumSize maximum number of records, 80% of which may be in
+     *                    the protected segment
+     * @param ttlMillis   how long a record is served for after it was loaded
+     */
+    public RecordCache(int maximumSize, long ttlMillis) {
+        this.protectedCapacity = maximumSize * 4 / 5;
+        this.probationCapacity = Math.max(1, maximumSize - protectedCapacity);
+        this.ttlMillis = ttlMillis;
+        this.tombstoneCapacity = Math.max(64, maximumSize);
+    }
+
+    public synchronized V get(K key) {
+        long now = System.currentTimeMillis();
+        Entry<V> entry = protectedSegment.get(key);
+        if (entry == null) {
+            entry = probation.get(key);
+            if (entry != null && entry.expires > now) {
+                probation.remove(key);
+                protectedSegment.put(key, entry);
+                demote();
+            }
+        }
+        if (entry == null || entry.expires <= now) {
+            if (entry != null) {
+                probation.remove(key);
+                protectedSegment.remove(key);
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * @return token to pass to {@link #put(Object, Object, long)} for a
+     *         record loaded after this call
+     */
+    public synchronized long stamp() {
+        return clock;
+    }
+
+    /**
+     * Caches a loaded record unless its key was invalidated since the load
+     * began, as the record may then already be out of date.
+     */
+    public synchronized void put(K key, V value, long stamp) {
+        Long invalidated = tombstones.get(key);
+        if (stamp < floor || (invalidated != null && invalidated > stamp)) {
+            return;
+        }
+        Entry<V> entry = new Entry<V>(value, System.currentTimeMillis() + ttlMillis);
+        if (protectedSegment.containsKey(key)) {
+            protectedSegment.put(key, entry);
+        } else {
+            probation.put(key, entry);
+            evict(probation, probationCapacity);
+        }
+    }
+
+    public synchronized void invalidate(K key) {
+        tombstones.remove(key);
+        tombstones.put(key, ++clock);
+        if (tombstones.size() > tombstoneCapacity) {
+            // forgetting the eldest means rejecting every load as old as it
+            Iterator<Long> eldest = tombstones.values().iterator();
+            floor = eldest.next();
+            eldest.remove();
+        }
+        probation.remove(key);
+        protectedSegment.remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        floor = ++clock;
+        tombstones.clear();
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    /**
+     * Moves the least recently used protected records back to probation
+     * once the protected segment is full.
+     */
+    private void demote() {
+        Iterator<Map.Entry<K, Entry<V>>> eldest = protectedSegment.entrySet().iterator();
+        while (protectedSegment.size() > protectedCapacity && eldest.hasNext()) {
+            Map.Entry<K, Entry<V>> entry = eldest.next();
+            eldest.remove();
+            probation.put(entry.getKey(), entry.getValue());
+        }
+        evict(probation, probationCapacity);
+    }
+
+    private void evict(LinkedHashMap<K, Entry<V>> segment, int capacity) {
+        Iterator<Entry<V>> eldest = segment.values().iterator();
+        while (segment.size() > capacity && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : hits / (double) requests;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("size=%d hits=%d misses=%d evictions=%d", size(), hits, misses, evictions);
+    }
+}
@@ -0,0 +1,46 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.io.IOException;
+
+/**
+ * The persistence a message handler is backed by.
+ *
+ * @see JdbcRepositories
+ * @see InMemoryRepositories
+ */
+public interface Repositories extends AutoCloseable {
+    PatronRepository patrons();
+
+    ItemRepository items();
+
+    LoanRepository loans();
+
+    BibRepository bibs();
+
+    LoginRepository logins();
+
+    /**
+     * @return false while the store is known to be unreachable and calls
+     *         to it fail at once, so requests can be answered as offline
+     */
+    boolean isAvailable();
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,186 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prepared statements of one pooled connection, by SQL text, so each
+ * statement is parsed once per connection rather than once per request.
+ *
+ * Statements handed out are proxies whose close() keeps the statement
+ * open for the next caller, only clearing its parameters and batch. A
+ * statement still in use when the same SQL is prepared again is not
+ * shared; the second caller gets a statement of its own that is really
+ * closed.
+ */
+final class StatementCache {
+    private static final class Entry {
+        final PreparedStatement statement;
+        boolean inUse;
+
+        Entry(PreparedStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    private final int capacity;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * @param hits   counter of statements served from the cache
+     * @param misses counter of statements prepared
+     */
+    StatementCache(int capacity, AtomicLong hits, AtomicLong misses) {
+        this.capacity = capacity;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    synchronized PreparedStatement prepare(Connection physical, Connection owner, String sql, int autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys + ":" + sql;
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (entry.inUse) {
+                misses.incrementAndGet();
+                return physical.prepareStatement(sql, autoGeneratedKeys);
+            }
+            hits.incrementAndGet();
+            entry.inUse = true;
+        } else {
+            misses.incrementAndGet();
+            entry = new Entry(physical.prepareStatement(sql, autoGeneratedKeys));
+            // in use before evicting, so it is not closed before it is returned
+            entry.inUse = true;
+            entries.put(key, entry);
+            evict();
+        }
+        return wrap(entry, key, owner);
+    }
+
+    /**
+     * Closes the least recently used statements not in use beyond the
+     * capacity.
+     */
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > capacity && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (!eldest.inUse) {
+                iterator.remove();
+                closeQuietly(eldest.statement);
+            }
+        }
+    }
+
+    private synchronized void release(Entry entry, String key) {
+        entry.inUse = false;
+        try {
+            entry.statement.clearParameters();
+            entry.statement.clearBatch();
+        } catch (SQLException ex) {
+            entries.remove(key);
+            closeQuietly(entry.statement);
+        }
+    }
+
+    /**
+     * Makes statements the last borrower of the connection did not close
+     * available again.
+     */
+    synchronized void reset() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.inUse) {
+                entry.inUse = false;
+                try {
+                    entry.statement.clearParameters();
+                    entry.statement.clearBatch();
+                } catch (SQLException ex) {
+                    iterator.remove();
+                    closeQuietly(entry.statement);
+                }
+            }
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void close() {
+        for (Entry entry : entries.values()) {
+            closeQuietly(entry.statement);
+        }
+        entries.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ex) {
+            // the connection is being discarded or the statement is broken
+        }
+    }
+
+    private PreparedStatement wrap(final Entry entry, final String key, final Connection owner) {
+        return (PreparedStatement) Proxy.newProxyInstance(StatementCache.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+                new InvocationHandler() {
+                    private boolean closed;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("close")) {
+                            if (!closed) {
+                                closed = true;
+                                release(entry, key);
+                            }
+                            return null;
+                        } else if (name.equals("isClosed")) {
+                            return closed;
+                        } else if (name.equals("equals")) {
+                            return proxy == args[0];
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (closed) {
+                            throw new SQLException("Statement is closed");
+                        } else if (name.equals("getConnection")) {
+                            return owner;
+                        }
+                        try {
+                            return method.invoke(entry.statement, args);
+                        } catch (InvocationTargetException ex) {
+                            throw ex.getCause();
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,72 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+/**
+ * Generates loan transaction ids in the style of Twitter's Snowflake: 41
+ * bits of milliseconds since 2020-01-01, 10 bits of node id and 12 bits
+ * of sequence within the millisecond.
+ *
+ * Ids of one generator strictly increase. If the clock steps back, or a
+ * millisecond runs out of sequence numbers, the generator carries on from
+ * the last millisecond it used rather than waiting. Servers sharing a
+ * database must be given different node ids.
+ */
+public class TransactionIdGenerator {
+    public static final String PROP_NODE_ID = "com.circulation.SIP.dao.nodeId";
+
+    static final long EPOCH = 1577836800000L;
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private final long node;
+    private long lastMillis;
+    private long sequence;
+
+    public TransactionIdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID + ": " + nodeId);
+        }
+        this.node = (long) nodeId << SEQUENCE_BITS;
+    }
+
+    public synchronized long next() {
+        long millis = System.currentTimeMillis() - EPOCH;
+        if (millis > lastMillis) {
+            lastMillis = millis;
+            sequence = 0;
+        } else if (++sequence > MAX_SEQUENCE) {
+            lastMillis++;
+            sequence = 0;
+        }
+        return lastMillis << (NODE_BITS + SEQUENCE_BITS) | node | sequence;
+    }
+
+    /**
+     * @return the time an id was generated, in milliseconds since the
+     *         epoch
+     */
+    public static long getTimestamp(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    public static int getNodeId(long id) {
+        return (int) (id >>> SEQUENCE_BITS) & MAX_NODE_ID;
+    }
+}
@@ -0,0 +1,186 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable append-only journal of transactions waiting to be written to
+ * the database, one record per line.
+ *
+ * Records are read back in batches from a checkpoint kept in a file next
+ * to the journal, which only moves forward once a batch has been written,
+ * so every record survives a restart until it has been replayed. The
+ * journal is truncated whenever it has been replayed completely.
+ */
+public class TransactionJournal implements Closeable {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final File file;
+    private final File checkpointFile;
+    private final boolean sync;
+    private FileOutputStream out;
+    private long checkpoint;
+    private long pending;
+    private final List<Long> batchEnds = new ArrayList<Long>();
+
+    /**
+     * @param sync force every record to disk before {@link #append(String)}
+     *             returns
+     */
+    public TransactionJournal(File file, boolean sync) throws IOException {
+        this.file = file;
+        this.checkpointFile = new File(file.getPath() + ".checkpoint");
+        this.sync = sync;
+        if (checkpointFile.exists()) {
+            this.checkpoint = Long.parseLong(new String(Files.readAllBytes(checkpointFile.toPath()), CHARSET).trim());
+        }
+        if (checkpoint > file.length()) {
+            // the journal was truncated but the process stopped before the
+            // checkpoint was reset
+            checkpoint = 0;
+            writeCheckpoint();
+        }
+        this.out = new FileOutputStream(file, true);
+        this.pending = countRecords();
+    }
+
+    private long countRecords() throws IOException {
+        long count = 0;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(checkpoint);
+            InputStream stream = Channels.newInputStream(in.getChannel());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    public synchronized void append(String record) throws IOException {
+        if (record.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Journal records cannot span lines");
+        }
+        out.write((record + "\n").getBytes(CHARSET));
+        out.flush();
+        if (sync) {
+            out.getChannel().force(false);
+        }
+        pending++;
+    }
+
+    /**
+     * @return number of records not yet committed
+     */
+    public synchronized long getPendingCount() {
+        return pending;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending == 0;
+    }
+
+    /**
+     * Reads up to max records from the checkpoint on, without moving it.
+     */
+    public synchronized List<String> readBatch(int max) throws IOException {
+        List<String> records = new ArrayList<String>();
+        batchEnds.clear();
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(checkpoint);
+            InputStream stream = new java.io.BufferedInputStream(Channels.newInputStream(in.getChannel()));
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long position = checkpoint;
+            int b;
+            while (records.size() < max && (b = stream.read()) >= 0) {
+                position++;
+                if (b == '\n') {
+                    records.add(new String(line.toByteArray(), CHARSET));
+                    batchEnds.add(position);
+                    line.reset();
+                } else {
+                    line.write(b);
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Moves the checkpoint past the first records of the last batch read.
+     */
+    public synchronized void commit(int records) throws IOException {
+        if (records <= 0) {
+            return;
+        }
+        checkpoint = batchEnds.get(records - 1);
+        pending -= records;
+        batchEnds.clear();
+        if (pending == 0) {
+            // everything replayed, start again with an empty journal
+            out.getChannel().truncate(0);
+            // truncated on disk before the checkpoint is reset, so a crash
+            // in between cannot replay the records again
+            out.getChannel().force(true);
+            checkpoint = 0;
+        }
+        writeCheckpoint();
+    }
+
+    private void writeCheckpoint() throws IOException {
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            stream.write(Long.toString(checkpoint).getBytes(CHARSET));
+            stream.getChannel().force(false);
+        }
+        Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Sets a record that cannot be replayed aside in a file next to the
+     * journal, for it to be dealt with by hand.
+     */
+    public synchronized void reject(String record) throws IOException {
+        try (FileOutputStream rejected = new FileOutputStream(file.getPath() + ".rejected", true)) {
+            rejected.write((record + "\n").getBytes(CHARSET));
+            rejected.getChannel().force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,436 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.circulation.SIP.messages.Bib;
+import com.circulation.SIP.messages.CheckOut;
+
+/**
+ * Write-behind for the check outs and bib inserts of {@link PulDao}.
+ *
+ * Inserts from concurrent requests are queued and written by one thread as
+ * JDBC batches, each batch in a single transaction (group commit). A batch
+ * is written once it holds maxBatchSize inserts or maxDelayMillis after
+ * its first insert was queued, whichever comes first, so one round trip
+ * and one commit are shared by every request in the window.
+ *
+ * With {@link Durability#SYNC} a check out returns once its batch has been
+ * committed. With {@link Durability#ASYNC} it returns as soon as it is
+ * queued; a check out that then fails to be written is logged and
+ * counted, see {@link #getFailedCount()}. A bib insert always waits for
+ * its batch, the caller needs the id generated by the database, and so
+ * does {@link #checkOutAndWait(CheckOut)}.
+ *
+ * While the queue is full an insert waits for room up to the enqueue
+ * timeout and then fails, so a stalled database cannot hold request
+ * threads indefinitely.
+ */
+public class WriteBehindQueue implements AutoCloseable {
+    private static Log logger = LogFactory.getLog(WriteBehindQueue.class);
+
+    /**
+     * "sync" or "async" to enable write-behind, absent or "off" to insert
+     * on the request thread.
+     */
+    public static final String PROP_DURABILITY = "com.circulation.SIP.dao.writeBehind.durability";
+    public static final String PROP_MAX_BATCH_SIZE = "com.circulation.SIP.dao.writeBehind.maxBatchSize";
+    public static final String PROP_MAX_DELAY = "com.circulation.SIP.dao.writeBehind.maxDelayMillis";
+    public static final String PROP_QUEUE_SIZE = "com.circulation.SIP.dao.writeBehind.queueSize";
+    public static final String PROP_ENQUEUE_TIMEOUT = "com.circulation.SIP.dao.writeBehind.enqueueTimeoutMillis";
+
+    public enum Durability {
+        /**
+         * Acknowledge after the batch has been committed.
+         */
+        SYNC,
+        /**
+         * Acknowledge once queued.
+         */
+        ASYNC
+    }
+
+    private static final class PendingWrite {
+        final Loan loan;
+        final Bib bib;
+        /** acknowledged before it was written */
+        final boolean acknowledged;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean ok;
+        volatile Integer generatedKey;
+
+        PendingWrite(Loan loan, Bib bib, boolean acknowledged) {
+            this.loan = loan;
+            this.bib = bib;
+            this.acknowledged = acknowledged;
+        }
+
+        void complete(boolean ok, Integer generatedKey) {
+            this.ok = ok;
+            this.generatedKey = generatedKey;
+            done.countDown();
+        }
+    }
+
+    private static final PendingWrite CLOSE = new PendingWrite(null, null, false);
+
+    private final ConnectionPool pool;
+    private final Durability durability;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final long enqueueTimeoutMillis;
+    private final BlockingQueue<PendingWrite> queue;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param maxBatchSize   inserts written per batch at most
+     * @param maxDelayMillis time an insert waits for others to join its
+     *                       batch
+     * @param queueSize      inserts queued at most
+     * @param enqueueTimeoutMillis time an insert waits for room in a full
+     *                       queue before it fails
+     */
+    public WriteBehindQueue(ConnectionPool pool, Durability durability, int maxBatchSize, long maxDelayMillis, int queueSize,
+            long enqueueTimeoutMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.pool = pool;
+        this.durability = durability;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.enqueueTimeoutMillis = enqueueTimeoutMillis;
+        this.queue = new ArrayBlockingQueue<PendingWrite>(queueSize);
+        this.writer = new Thread("sip-write-behind") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Creates a queue configured by the {@code PROP_*} keys of this class,
+     * read from the properties or else the system properties.
+     *
+     * @return null if write-behind is not enabled
+     */
+    public static WriteBehindQueue create(Properties properties, ConnectionPool pool) {
+        String durability = property(properties, PROP_DURABILITY, "off");
+        if ("off".equalsIgnoreCase(durability)) {
+            return null;
+        }
+        return new WriteBehindQueue(pool,
+                Durability.valueOf(durability.toUpperCase()),
+                Integer.parseInt(property(properties, PROP_MAX_BATCH_SIZE, "100")),
+                Long.parseLong(property(properties, PROP_MAX_DELAY, "5")),
+                Integer.parseInt(property(properties, PROP_QUEUE_SIZE, "10000")),
+                Long.parseLong(property(properties, PROP_ENQUEUE_TIMEOUT, "1000")));
+    }
+
+    private static String property(Properties properties, String key, String defaultValue) {
+        String value = properties == null ? null : properties.getProperty(key);
+        return value != null ? value : System.getProperty(key, defaultValue);
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @return with {@link Durability#SYNC} whether the check out was
+     *         committed, with {@link Durability#ASYNC} whether it was
+     *         queued
+     */
+    public boolean checkOut(CheckOut checkOut) {
+        boolean acknowledge = durability == Durability.ASYNC;
+        PendingWrite write = new PendingWrite(PulDao.newLoan(checkOut), null, acknowledge);
+        if (!enqueue(write)) {
+            return false;
+        }
+        return acknowledge || await(write);
+    }
+
+    /**
+     * Writes a check out as {@link Durability#SYNC} does, whatever the
+     * durability of the queue.
+     *
+     * @return whether the check out was committed
+     */
+    public boolean checkOutAndWait(CheckOut checkOut) {
+        PendingWrite write = new PendingWrite(PulDao.newLoan(checkOut), null, false);
+        return enqueue(write) && await(write);
+    }
+
+    /**
+     * @return the id of the new bib record, or null if it could not be
+     *         created
+     */
+    public Integer createBib(Bib bib) {
+        PendingWrite write = new PendingWrite(null, bib, false);
+        if (!enqueue(write) || !await(write)) {
+            return null;
+        }
+        return write.generatedKey;
+    }
+
+    private boolean enqueue(PendingWrite write) {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (queue.offer(write, enqueueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            failed.incrementAndGet();
+            logger.warn("Write-behind queue full for " + enqueueTimeoutMillis + "ms, failing "
+                    + (write.loan != null ? "check out of item " + write.loan.getItemIdentifier() : "bib insert"));
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean await(PendingWrite write) {
+        try {
+            // a write queued while closing may never be taken by the writer
+            while (!write.done.await(1, TimeUnit.SECONDS)) {
+                if (closed && !writer.isAlive()) {
+                    return false;
+                }
+            }
+            return write.ok;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>(maxBatchSize);
+        boolean closing = false;
+        while (!closing) {
+            try {
+                PendingWrite first = queue.take();
+                if (first == CLOSE) {
+                    break;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    PendingWrite next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == CLOSE) {
+                        closing = true;
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException ex) {
+                closing = true;
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+        // anything queued after close() was called
+        List<PendingWrite> rest = new ArrayList<PendingWrite>();
+        queue.drainTo(rest);
+        for (PendingWrite write : rest) {
+            if (write != CLOSE) {
+                fail(write);
+            }
+        }
+    }
+
+    private void write(List<PendingWrite> batch) {
+        batches.incrementAndGet();
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                writeBatch(connection, batch);
+                connection.commit();
+            } catch (SQLException ex) {
+                connection.rollback();
+                if (batch.size() == 1 || !(ex instanceof BatchUpdateException)) {
+                    throw ex;
+                }
+                // a bad row fails the whole batch, write the rows one by
+                // one so it only fails its own request
+                logger.warn("Batch of " + batch.size() + " inserts failed, retrying one by one: " + ex);
+                writeEach(connection, batch);
+                return;
+            }
+            for (PendingWrite write : batch) {
+                succeed(write, write.generatedKey);
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to write batch of " + batch.size() + " inserts", ex);
+            for (PendingWrite write : batch) {
+                fail(write);
+            }
+        }
+    }
+
+    private void writeEach(Connection connection, List<PendingWrite> batch) {
+        List<PendingWrite> one = new ArrayList<PendingWrite>(1);
+        for (PendingWrite write : batch) {
+            one.clear();
+            one.add(write);
+            try {
+                writeBatch(connection, one);
+                connection.commit();
+                succeed(write, write.generatedKey);
+            } catch (SQLException ex) {
+                rollbackQuietly(connection);
+                logger.error("Failed to write insert", ex);
+                fail(write);
+            }
+        }
+    }
+
+    private static void rollbackQuietly(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException ex) {
+            // the connection is broken, the pool discards it
+        }
+    }
+
+    private void writeBatch(Connection connection, List<PendingWrite> batch) throws SQLException {
+        List<PendingWrite> bibs = new ArrayList<PendingWrite>();
+        List<Loan> loans = new ArrayList<Loan>();
+        for (PendingWrite write : batch) {
+            if (write.bib != null) {
+                bibs.add(write);
+            } else {
+                loans.add(write.loan);
+            }
+        }
+        if (!loans.isEmpty()) {
+            PulDao.writeCheckOuts(connection, loans);
+        }
+        if (!bibs.isEmpty()) {
+            try (PreparedStatement statement = connection.prepareStatement(PulDao.INSERT_BIB, Statement.RETURN_GENERATED_KEYS)) {
+                for (PendingWrite write : bibs) {
+                    PulDao.bindBib(statement, write.bib);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                // keys are returned in the order the rows were added
+                try (ResultSet keys = statement.getGeneratedKeys()) {
+                    for (PendingWrite write : bibs) {
+                        write.generatedKey = keys.next() ? keys.getInt(1) : null;
+                    }
+                }
+            }
+        }
+    }
+
+    private void succeed(PendingWrite write, Integer generatedKey) {
+        written.incrementAndGet();
+        write.complete(true, generatedKey);
+    }
+
+    private void fail(PendingWrite write) {
+        failed.incrementAndGet();
+        if (write.acknowledged) {
+            logger.error("Lost acknowledged check out of item " + write.loan.getItemIdentifier()
+                    + " to patron " + write.loan.getPatronIdentifier());
+        }
+        write.complete(false, null);
+    }
+
+    /**
+     * @return inserts waiting to be written
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return inserts per batch, on average
+     */
+    public double getAverageBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (written.get() + failed.get()) / (double) count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WriteBehindQueue[%s queued=%d batches=%d written=%d failed=%d avgBatch=%.1f]",
+                durability, getQueuedCount(), getBatchCount(), getWrittenCount(), getFailedCount(), getAverageBatchSize());
+    }
+
+    /**
+     * Writes the inserts already queued and stops the writer. Inserts
+     * queued afterwards fail.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(CLOSE);
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -37,7 +37,7 @@ import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
-public abstract class Message implements Serializable {
+public abstract class Message implements Serializable, Cloneable {
     /**
    * 
    */
@@ -72,6 +72,52 @@ public abstract class Message implements Serializable {
         return this.SequenceCharacter;
     }
 
+    /**
+     * Fields of each message class holding mutable values, which
+     * {@link #clone()} has to copy.
+     */
+    private static final ClassValue<Field[]> MUTABLE_FIELDS = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            List<Field> mutable = new ArrayList<Field>();
+            for (Class<?> cls = type; cls != Message.class; cls = cls.getSuperclass()) {
+                for (Field fld : cls.getDeclaredFields()) {
+                    if (!java.lang.reflect.Modifier.isStatic(fld.getModifiers())
+                            && (Date.class.isAssignableFrom(fld.getType()) || AbstractFlagField.class.isAssignableFrom(fld.getType()) || fld.getType().isArray())) {
+                        fld.setAccessible(true);
+                        mutable.add(fld);
+                    }
+                }
+            }
+            return mutable.toArray(new Field[mutable.size()]);
+        }
+    };
+
+    /**
+     * Copies the message. Dates, flag fields and arrays are copied too, so
+     * the copy can be changed without affecting the original.
+     */
+    @Override
+    public Message clone() {
+        Message copy;
+        try {
+            copy = (Message) super.clone();
+            for (Field fld : MUTABLE_FIELDS.get(this.getClass())) {
+                Object value = fld.get(this);
+                if (value instanceof Date) {
+                    fld.set(copy, ((Date) value).clone());
+                } else if (value instanceof AbstractFlagField) {
+                    fld.set(copy, ((AbstractFlagField) value).clone());
+                } else if (value instanceof Object[]) {
+                    fld.set(copy, ((Object[]) value).clone());
+                }
+            }
+        } catch (CloneNotSupportedException | IllegalAccessException ex) {
+            throw new java.lang.AssertionError("Cannot clone " + this.getClass().getName(), ex);
+        }
+        return copy;
+    }
+
     public static String getCharsetEncoding() {
         return System.getProperty(PROP_CHARSET, PROP_DEFAULT_CHARSET);      
     }
@@ -677,6 +723,13 @@ public abstract class Message implements Serializable {
         }
     }
 
+    /**
+     * @return the message class for a two character command code, or null
+     */
+    public static Class<? extends Message> getMessageClass(String command) {
+        return Message.messages.get(command);
+    }
+
     @Override
     public String toString() {
         ByteArrayOutputStream buffer = new java.io.ByteArrayOutputStream();
@@ -16,22 +16,48 @@
  */
 package com.circulation.SIP.netty.codec;
 
+import java.nio.charset.Charset;
 import java.util.List;
 
 import com.circulation.SIP.messages.Message;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
 
+/**
+ * Encodes a message straight into a pooled buffer sized for the encoded
+ * text and its terminating carriage return, so each response costs one
+ * buffer allocation and no intermediate copies.
+ */
 @Sharable
 public class SIPMessageEncoder extends MessageToMessageEncoder<Message> {
-	
-	public SIPMessageEncoder() {}
+	private final Charset charset;
+	private final int maxBytesPerChar;
+
+	public SIPMessageEncoder() {
+		this(Charset.defaultCharset());
+	}
+
+	public SIPMessageEncoder(Charset charset) {
+		this.charset = charset;
+		this.maxBytesPerChar = (int) Math.ceil(charset.newEncoder().maxBytesPerChar());
+	}
 
 	@Override
 	protected void encode(ChannelHandlerContext ctx, Message msg, List<Object> out) throws Exception {
-		out.add(msg.encode() + "\r");
+		String encoded = msg.encode();
+		ByteBuf buf = ctx.alloc().ioBuffer(encoded.length() * maxBytesPerChar + 1);
+		try {
+			buf.writeCharSequence(encoded, charset);
+			buf.writeByte('\r');
+			out.add(buf);
+			buf = null;
+		} finally {
+			if (buf != null) {
+				buf.release();
+			}
+		}
 	}
 }
-
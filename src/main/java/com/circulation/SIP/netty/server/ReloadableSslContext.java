@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server;
+
+import java.io.File;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.internal.StringUtil;
+
+/**
+ * Holds the server SslContext built from PEM files and rebuilds it when the
+ * files change, so renewed certificates take effect for new connections
+ * without a restart. Connections already established keep their session.
+ */
+public class ReloadableSslContext {
+  private static final Log log = LogFactory.getLog(ReloadableSslContext.class);
+
+  private final File keyCertChainFile;
+  private final File keyFile;
+  private final String keyPassword;
+  private final SslProvider provider;
+  private final long sessionCacheSize;
+  private final long sessionTimeout;
+
+  private volatile SslContext context;
+  private long lastModified;
+
+  /**
+   * Wraps a context that is never reloaded.
+   */
+  public ReloadableSslContext(SslContext context) {
+    this.keyCertChainFile = null;
+    this.keyFile = null;
+    this.keyPassword = null;
+    this.provider = null;
+    this.sessionCacheSize = 0;
+    this.sessionTimeout = 0;
+    this.context = context;
+  }
+
+  /**
+   * @param provider         SSL implementation, null for {@link #defaultProvider()}
+   * @param sessionCacheSize number of sessions cached for resumption, 0 for
+   *                         the provider default
+   * @param sessionTimeout   seconds a cached session may be resumed for, 0
+   *                         for the provider default
+   */
+  public ReloadableSslContext(File keyCertChainFile, File keyFile, String keyPassword, SslProvider provider,
+      long sessionCacheSize, long sessionTimeout) throws SSLException {
+    this.keyCertChainFile = keyCertChainFile;
+    this.keyFile = keyFile;
+    this.keyPassword = keyPassword;
+    this.provider = provider == null ? defaultProvider() : provider;
+    this.sessionCacheSize = sessionCacheSize;
+    this.sessionTimeout = sessionTimeout;
+    reload();
+  }
+
+  /**
+   * @return OpenSSL if netty-tcnative is on the class path, otherwise the
+   *         JDK implementation
+   */
+  public static SslProvider defaultProvider() {
+    return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+  }
+
+  public SslContext get() {
+    return context;
+  }
+
+  public SslProvider getProvider() {
+    return provider;
+  }
+
+  private long filesLastModified() {
+    return Math.max(keyCertChainFile.lastModified(), keyFile.lastModified());
+  }
+
+  public synchronized void reload() throws SSLException {
+    if (keyCertChainFile == null) {
+      return;
+    }
+    long modified = filesLastModified();
+    SslContextBuilder builder = StringUtil.isNullOrEmpty(keyPassword) ?
+        SslContextBuilder.forServer(keyCertChainFile, keyFile) :
+        SslContextBuilder.forServer(keyCertChainFile, keyFile, keyPassword);
+    builder.sslProvider(provider)
+        .sessionCacheSize(sessionCacheSize)
+        .sessionTimeout(sessionTimeout);
+    context = builder.build();
+    lastModified = modified;
+  }
+
+  /**
+   * Rebuilds the context if the certificate or key file has changed since
+   * it was last loaded. A failed reload, e.g. of a half written file, keeps
+   * the current context and is retried on the next call.
+   *
+   * @return true if the context was replaced
+   */
+  public synchronized boolean reloadIfModified() {
+    if (keyCertChainFile == null || filesLastModified() == lastModified) {
+      return false;
+    }
+    try {
+      reload();
+      log.info("Reloaded certificate " + keyCertChainFile);
+      return true;
+    } catch (SSLException ex) {
+      log.warn("Failed to reload certificate " + keyCertChainFile + ", keeping current one", ex);
+      return false;
+    }
+  }
+}
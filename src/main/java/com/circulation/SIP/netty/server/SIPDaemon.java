@@ -16,24 +16,49 @@
  */
 package com.circulation.SIP.netty.server;
 
+import com.circulation.SIP.netty.server.channel.CommandFaultPolicy;
+import com.circulation.SIP.netty.server.channel.ConnectionLimiter;
+import com.circulation.SIP.netty.server.channel.FaultPolicy;
+import com.circulation.SIP.netty.server.channel.FlushPolicy;
+import com.circulation.SIP.netty.server.channel.IdleConnectionHandler;
+import com.circulation.SIP.netty.server.channel.SIPChannelHandler;
+import com.circulation.SIP.netty.server.channel.SessionTracker;
+import com.circulation.SIP.netty.server.channel.SslHandshakeStatistics;
 import com.circulation.SIP.netty.server.driver.DriverFactory;
+import com.circulation.SIP.netty.traffic.TrafficRecorder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelFactory;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.group.ChannelGroupFuture;
+import io.netty.channel.group.ChannelGroupFutureListener;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.logging.LogLevel;
-import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.DomainNameMapping;
+import io.netty.util.DomainNameMappingBuilder;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
-import io.netty.util.internal.StringUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SIPDaemon implements GenericFutureListener<ChannelFuture> {
   private static final Log log = LogFactory.getLog(SIPDaemon.class);
@@ -46,8 +71,42 @@ public class SIPDaemon implements GenericFutureListener<ChannelFuture> {
   private final String keyPassword;
   private final DriverFactory driverFactory;
   private final boolean strictChecksumChecking;
+  private final List<SIPVirtualHost> virtualHosts = new ArrayList<SIPVirtualHost>();
+
+  private SIPServerHost host;
+  private int maxFrameLength = SIPServerInitializer.DEFAULT_MAX_FRAME_LENGTH;
+  private Charset charset = Charset.defaultCharset();
+  private boolean reuseAddress;
+  private boolean inheritedChannel;
+  private final SessionTracker sessionTracker;
+  private final WireTrace wireTrace;
+  private final List<SIPChannelHandler> channelHandlers = new ArrayList<SIPChannelHandler>();
+  private ConnectionLimiter connectionLimiter = new ConnectionLimiter();
+  private int readerIdleTime;
+  private int writerIdleTime;
+  private SslProvider sslProvider;
+  private long sessionCacheSize;
+  private long sessionTimeout;
+  private int certificateCheckInterval;
+  private final List<ReloadableSslContext> sslContexts = new ArrayList<ReloadableSslContext>();
+  private final SslHandshakeStatistics handshakeStatistics = new SslHandshakeStatistics();
+  private ScheduledFuture<?> certificateCheck;
+  private int pipelineWindow;
+  private EventExecutorGroup offloadExecutor;
+  private boolean ownsOffloadExecutor;
+  private int writeBufferLowWaterMark = 8 * 1024;
+  private int writeBufferHighWaterMark = 32 * 1024;
+  private FlushPolicy flushPolicy = FlushPolicy.READ_BATCH;
+  private int flushConsolidationLimit = FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES;
+  private long flushDelay = 200;
+  private int flushSizeLimit = 16 * 1024;
+  private FaultPolicy faultPolicy;
+  private TrafficRecorder trafficRecorder;
 
   private ChannelFuture f;
+  private volatile boolean stopping;
+  // guarded by this, set once shutdownGroups() has run for the last start()
+  private boolean shutDown;
   private EventLoopGroup bossGroup;
   private EventLoopGroup workerGroup;
 
@@ -68,6 +127,8 @@ public class SIPDaemon implements GenericFutureListener<ChannelFuture> {
     this.keyPassword = keyPassword;
     this.driverFactory = driverFactory;
     this.strictChecksumChecking = strictChecksumChecking;
+    this.sessionTracker = new SessionTracker(name);
+    this.wireTrace = new WireTrace(sessionTracker.getSessions());
   }
   
   public String getName() {
@@ -86,36 +147,471 @@ public class SIPDaemon implements GenericFutureListener<ChannelFuture> {
     return strictChecksumChecking;
   }
 
-  public void start() throws Exception {
-      // Configure SSL.
-      log.info("Server " + name + " on " + ip + " " + port + " starting...");
+  public SIPServerHost getHost() {
+    return host;
+  }
+
+  /**
+   * Runs this daemon on the event loops of a shared host rather than on
+   * groups of its own. Normally set by {@link SIPServerHost#addListener}.
+   */
+  void setHost(SIPServerHost host) {
+    this.host = host;
+  }
+
+  public int getMaxFrameLength() {
+    return maxFrameLength;
+  }
+
+  public void setMaxFrameLength(int maxFrameLength) {
+    this.maxFrameLength = maxFrameLength;
+  }
+
+  public Charset getCharset() {
+    return charset;
+  }
+
+  public void setCharset(Charset charset) {
+    this.charset = charset;
+  }
+
+  public boolean isReuseAddress() {
+    return reuseAddress;
+  }
+
+  /**
+   * Sets SO_REUSEADDR on the listening socket, so a replacement process can
+   * bind the port while connections of a draining one are still closing.
+   */
+  public void setReuseAddress(boolean reuseAddress) {
+    this.reuseAddress = reuseAddress;
+  }
+
+  public boolean isInheritedChannel() {
+    return inheritedChannel;
+  }
+
+  /**
+   * Serve on the listening socket inherited from the launching process
+   * (systemd socket activation or inetd wait mode) instead of binding
+   * ip and port. The socket outlives restarts of this process, so clients
+   * queue in the backlog rather than being refused while it is replaced.
+   */
+  public void setInheritedChannel(boolean inheritedChannel) {
+    this.inheritedChannel = inheritedChannel;
+  }
+
+  public int getReaderIdleTime() {
+    return readerIdleTime;
+  }
+
+  /**
+   * @param readerIdleTime seconds without a request after which a client
+   *                       connection is closed, 0 (the default) to keep it
+   *                       open indefinitely
+   */
+  public void setReaderIdleTime(int readerIdleTime) {
+    this.readerIdleTime = readerIdleTime;
+  }
+
+  public int getWriterIdleTime() {
+    return writerIdleTime;
+  }
+
+  /**
+   * @param writerIdleTime seconds without a response after which a client
+   *                       connection is closed, 0 (the default) to keep it
+   *                       open indefinitely
+   */
+  public void setWriterIdleTime(int writerIdleTime) {
+    this.writerIdleTime = writerIdleTime;
+  }
+
+  /**
+   * Sets both idle timeouts to
+   * {@link IdleConnectionHandler#TIMEOUT_PERIOD_MULTIPLE} times the
+   * timeout period the driver advertises in ACS Status.
+   *
+   * @param timeoutPeriod advertised timeout period, in tenths of a second;
+   *                      999 (unknown) keeps connections open indefinitely
+   */
+  public void setIdleTimeoutPeriod(int timeoutPeriod) {
+    this.readerIdleTime = IdleConnectionHandler.idleSeconds(timeoutPeriod);
+    this.writerIdleTime = this.readerIdleTime;
+  }
+
+  public SslProvider getSslProvider() {
+    return sslProvider;
+  }
+
+  /**
+   * @param sslProvider SSL implementation, by default OpenSSL when
+   *                    netty-tcnative is on the class path and the JDK
+   *                    implementation otherwise
+   */
+  public void setSslProvider(SslProvider sslProvider) {
+    this.sslProvider = sslProvider;
+  }
+
+  public long getSessionCacheSize() {
+    return sessionCacheSize;
+  }
+
+  /**
+   * @param sessionCacheSize number of TLS sessions kept for resumption by
+   *                         reconnecting clients, 0 for the provider default
+   */
+  public void setSessionCacheSize(long sessionCacheSize) {
+    this.sessionCacheSize = sessionCacheSize;
+  }
+
+  public long getSessionTimeout() {
+    return sessionTimeout;
+  }
+
+  /**
+   * @param sessionTimeout seconds a TLS session may be resumed for, 0 for
+   *                       the provider default
+   */
+  public void setSessionTimeout(long sessionTimeout) {
+    this.sessionTimeout = sessionTimeout;
+  }
+
+  public int getCertificateCheckInterval() {
+    return certificateCheckInterval;
+  }
+
+  /**
+   * @param certificateCheckInterval seconds between checks of the
+   *                                 certificate files for changes, 0 (the
+   *                                 default) to never reload them
+   */
+  public void setCertificateCheckInterval(int certificateCheckInterval) {
+    this.certificateCheckInterval = certificateCheckInterval;
+  }
+
+  public SslHandshakeStatistics getHandshakeStatistics() {
+    return handshakeStatistics;
+  }
+
+  public int getPipelineWindow() {
+    return pipelineWindow;
+  }
+
+  /**
+   * Enables pipelined request processing for clients that send several
+   * requests before reading the responses.
+   *
+   * @param pipelineWindow maximum outstanding requests per connection, 0
+   *                       (the default) to process requests one at a time
+   *                       on the event loop
+   * @see SIPChannelHandler#setPipelining
+   */
+  public void setPipelineWindow(int pipelineWindow) {
+    this.pipelineWindow = pipelineWindow;
+  }
+
+  public EventExecutorGroup getOffloadExecutor() {
+    return offloadExecutor;
+  }
+
+  /**
+   * @param offloadExecutor executor pipelined requests are processed on.
+   *                        If not set, the daemon creates one with a thread
+   *                        per available processor.
+   */
+  public void setOffloadExecutor(EventExecutorGroup offloadExecutor) {
+    this.offloadExecutor = offloadExecutor;
+  }
+
+  public int getWriteBufferLowWaterMark() {
+    return writeBufferLowWaterMark;
+  }
+
+  public int getWriteBufferHighWaterMark() {
+    return writeBufferHighWaterMark;
+  }
+
+  /**
+   * Reading from a connection pauses while more than the high water mark
+   * of responses is queued for it and resumes once the queue has drained
+   * below the low water mark. 8k and 32k by default.
+   */
+  public void setWriteBufferWaterMark(int low, int high) {
+    if (low > high) {
+      throw new IllegalArgumentException("Low water mark " + low + " is above high water mark " + high);
+    }
+    this.writeBufferLowWaterMark = low;
+    this.writeBufferHighWaterMark = high;
+  }
+
+  public FlushPolicy getFlushPolicy() {
+    return flushPolicy;
+  }
+
+  /**
+   * @param flushPolicy when responses are flushed to the socket, by default
+   *                    once per batch of requests read
+   */
+  public void setFlushPolicy(FlushPolicy flushPolicy) {
+    this.flushPolicy = flushPolicy;
+  }
+
+  public int getFlushConsolidationLimit() {
+    return flushConsolidationLimit;
+  }
+
+  /**
+   * @param flushConsolidationLimit flushes after which a consolidated flush
+   *                                is forced with {@link FlushPolicy#CONSOLIDATED}
+   */
+  public void setFlushConsolidationLimit(int flushConsolidationLimit) {
+    this.flushConsolidationLimit = flushConsolidationLimit;
+  }
+
+  public long getFlushDelay() {
+    return flushDelay;
+  }
+
+  /**
+   * @param flushDelay microseconds a flush is held back with
+   *                   {@link FlushPolicy#TIMED}, 200 by default
+   */
+  public void setFlushDelay(long flushDelay) {
+    this.flushDelay = flushDelay;
+  }
+
+  public int getFlushSizeLimit() {
+    return flushSizeLimit;
+  }
+
+  /**
+   * @param flushSizeLimit bytes waiting to be written that force a flush
+   *                       with {@link FlushPolicy#TIMED}, 16k by default
+   */
+  public void setFlushSizeLimit(int flushSizeLimit) {
+    this.flushSizeLimit = flushSizeLimit;
+  }
+
+  /**
+   * Connection limits of this daemon, unlimited by default.
+   */
+  public ConnectionLimiter getConnectionLimiter() {
+    return connectionLimiter;
+  }
+
+  /**
+   * Replaces the connection limits, e.g. to share one set of limits
+   * between several listeners.
+   */
+  public void setConnectionLimiter(ConnectionLimiter connectionLimiter) {
+    this.connectionLimiter = connectionLimiter;
+  }
+
+  /**
+   * @return the runtime switch for tracing the traffic of connections
+   */
+  public WireTrace getWireTrace() {
+    return wireTrace;
+  }
+
+  public FaultPolicy getFaultPolicy() {
+    return faultPolicy;
+  }
+
+  /**
+   * Injects latency and faults into responses, for test servers only.
+   *
+   * @param faultPolicy e.g. a {@link CommandFaultPolicy}, null for none
+   */
+  public void setFaultPolicy(FaultPolicy faultPolicy) {
+    this.faultPolicy = faultPolicy;
+  }
+
+  public TrafficRecorder getTrafficRecorder() {
+    return trafficRecorder;
+  }
 
-      final SslContext sslCtx;
+  /**
+   * Records the traffic of all connections, for replay with
+   * {@link com.circulation.SIP.netty.traffic.TrafficReplay}. Takes effect
+   * when the daemon is started; the recorder is not closed when it stops.
+   *
+   * @param trafficRecorder null for no recording
+   */
+  public void setTrafficRecorder(TrafficRecorder trafficRecorder) {
+    this.trafficRecorder = trafficRecorder;
+  }
+
+  /**
+   * @return number of open client connections
+   */
+  public int getSessionCount() {
+    return sessionTracker.getSessions().size();
+  }
+
+  /**
+   * @return bytes of responses queued for all open sessions
+   */
+  public long getQueuedBytes() {
+    return sessionTracker.getQueuedBytes();
+  }
+
+  /**
+   * @return number of sessions paused because their client is slow to read
+   */
+  public int getUnwritableSessionCount() {
+    return sessionTracker.getUnwritableSessionCount();
+  }
+
+  public List<SIPVirtualHost> getVirtualHosts() {
+    return virtualHosts;
+  }
+
+  /**
+   * Adds an SNI distinguished TLS endpoint on this daemon's port. Requires
+   * the daemon itself to have a certificate, which is used for clients
+   * that send no or an unknown host name.
+   */
+  public void addVirtualHost(SIPVirtualHost virtualHost) {
+    virtualHosts.add(virtualHost);
+  }
+
+  private ReloadableSslContext buildSslContext(File keyCertChainFile, File keyFile, String keyPassword) throws Exception {
+    ReloadableSslContext context = new ReloadableSslContext(keyCertChainFile, keyFile, keyPassword, sslProvider, sessionCacheSize, sessionTimeout);
+    sslContexts.add(context);
+    return context;
+  }
+
+  private SIPServerInitializer createInitializer() throws Exception {
+      final ReloadableSslContext sslCtx;
       
+      sslContexts.clear();
       if (keyCertChainFile == null || keyFile == null) {
         sslCtx = null;
       } else {
-        if (StringUtil.isNullOrEmpty(keyPassword)) {
-          sslCtx = SslContextBuilder.forServer(keyCertChainFile, keyFile).build();
-        } else {
-          sslCtx = SslContextBuilder.forServer(keyCertChainFile, keyFile, keyPassword).build();
-        }
+        sslCtx = buildSslContext(keyCertChainFile, keyFile, keyPassword);
+        log.info("Server " + name + " using " + sslCtx.getProvider() + " SSL provider");
       }    	
 
-      bossGroup = new NioEventLoopGroup(1);
-      workerGroup = new NioEventLoopGroup();
+      if (pipelineWindow > 0 && offloadExecutor == null) {
+        offloadExecutor = new DefaultEventExecutorGroup(Runtime.getRuntime().availableProcessors());
+        ownsOffloadExecutor = true;
+      }
+
+      SIPServerInitializer initializer = new SIPServerInitializer(driverFactory, strictChecksumChecking, sslCtx);
+      channelHandlers.clear();
+      channelHandlers.add(initializer.getServerHandler());
+      initializer.getServerHandler().setPipelining(offloadExecutor, pipelineWindow);
+      checkPipelining(initializer.getServerHandler(), driverFactory);
+      initializer.getServerHandler().setFlushPolicy(flushPolicy);
+      initializer.setFlushPolicy(flushPolicy, flushConsolidationLimit, flushDelay, flushSizeLimit);
+      initializer.setMaxFrameLength(maxFrameLength);
+      initializer.setCharset(charset);
+      initializer.setSessionTracker(sessionTracker);
+      wireTrace.setCharset(charset);
+      initializer.setWireTrace(wireTrace);
+      initializer.setFaultPolicy(faultPolicy);
+      initializer.setTrafficRecorder(trafficRecorder);
+      initializer.setConnectionLimiter(connectionLimiter);
+      initializer.setIdleTimeouts(readerIdleTime, writerIdleTime);
+      initializer.setHandshakeStatistics(handshakeStatistics);
+
+      if (!virtualHosts.isEmpty()) {
+        if (sslCtx == null) {
+          throw new IllegalStateException("Server " + name + " needs a default certificate to host virtual hosts");
+        }
+        DomainNameMappingBuilder<ReloadableSslContext> contexts = new DomainNameMappingBuilder<ReloadableSslContext>(sslCtx);
+        DomainNameMappingBuilder<SIPChannelHandler> handlers = new DomainNameMappingBuilder<SIPChannelHandler>(initializer.getServerHandler());
+        for (SIPVirtualHost virtualHost : virtualHosts) {
+          contexts.add(virtualHost.getHostname(), buildSslContext(virtualHost.getKeyCertChainFile(), virtualHost.getKeyFile(), virtualHost.getKeyPassword()));
+          SIPChannelHandler handler = new SIPChannelHandler(virtualHost.getDriverFactory());
+          handler.setPipelining(offloadExecutor, pipelineWindow);
+          checkPipelining(handler, virtualHost.getDriverFactory());
+          handler.setFlushPolicy(flushPolicy);
+          channelHandlers.add(handler);
+          handlers.add(virtualHost.getHostname(), handler);
+        }
+        DomainNameMapping<ReloadableSslContext> sniContexts = contexts.build();
+        DomainNameMapping<SIPChannelHandler> sniHandlers = handlers.build();
+        initializer.setVirtualHosts(sniContexts, sniHandlers);
+      }
+      return initializer;
+  }
+
+  private void checkPipelining(SIPChannelHandler handler, DriverFactory factory) {
+    if (handler.getDriverLifecycle().isOffloadRequired() && !handler.isPipelining()) {
+      throw new IllegalStateException("Server " + name + " needs a pipeline window for the interceptors of " + factory);
+    }
+  }
+
+  /**
+   * Reloads any certificate whose files have changed since they were
+   * loaded. Called periodically when a certificate check interval is set.
+   *
+   * @return true if any certificate was reloaded
+   */
+  public boolean reloadCertificates() {
+    boolean reloaded = false;
+    for (ReloadableSslContext context : sslContexts) {
+      reloaded |= context.reloadIfModified();
+    }
+    return reloaded;
+  }
+
+  public void start() throws Exception {
+      // Configure SSL.
+      log.info("Server " + name + " on " + ip + " " + port + " starting...");
+
+      SIPServerInitializer initializer = createInitializer();
+      sessionTracker.reset();
+      stopping = false;
+      synchronized (this) {
+        shutDown = false;
+      }
+
+      if (host != null) {
+        bossGroup = host.getBossGroup();
+        workerGroup = host.getWorkerGroup();
+      } else {
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup();
+      }
 
       try {
         ServerBootstrap b = new ServerBootstrap();
         b.group(bossGroup, workerGroup)
-           .channel(NioServerSocketChannel.class)
-           .handler(new LoggingHandler(LogLevel.INFO))
-           .childHandler(new SIPServerInitializer(driverFactory, strictChecksumChecking, sslCtx))
+           .childHandler(initializer)
            .option(ChannelOption.SO_BACKLOG, 128)          
-           .childOption(ChannelOption.SO_KEEPALIVE, true); 
+           .option(ChannelOption.SO_REUSEADDR, reuseAddress)
+           .childOption(ChannelOption.SO_KEEPALIVE, true)
+           .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark)); 
+
+        if (host != null) {
+          b.option(ChannelOption.ALLOCATOR, host.getAllocator())
+           .childOption(ChannelOption.ALLOCATOR, host.getAllocator());
+        }
+
+        if (inheritedChannel) {
+          final NioServerSocketChannel inherited = System.inheritedChannel() instanceof ServerSocketChannel ?
+              new NioServerSocketChannel((ServerSocketChannel) System.inheritedChannel()) : null;
+          if (inherited == null) {
+            throw new IOException("Server " + name + " was not launched with an inherited listening socket");
+          }
+          b.channelFactory(new ChannelFactory<NioServerSocketChannel>() {
+            @Override
+            public NioServerSocketChannel newChannel() {
+              return inherited;
+            }
+          });
+          // already bound, just start accepting
+          f = b.register().sync();
+        } else {
+          b.channel(NioServerSocketChannel.class);
 
            // Bind and start to accept incoming connections.
           f = b.bind(ip, port).sync(); // (7)
+        }
 
           // Wait until the server socket is closed.
           // In this example, this does not happen, but you can do that to gracefully
@@ -124,28 +620,158 @@ public class SIPDaemon implements GenericFutureListener<ChannelFuture> {
 
 
           log.info("Server " + name + " on " + ip + " " + port + " startup complete.");
+
+          if (certificateCheckInterval > 0 && !sslContexts.isEmpty()) {
+            certificateCheck = GlobalEventExecutor.INSTANCE.scheduleWithFixedDelay(new Runnable() {
+              @Override
+              public void run() {
+                reloadCertificates();
+              }
+            }, certificateCheckInterval, certificateCheckInterval, TimeUnit.SECONDS);
+          }
       } catch (Exception ex) {
-          workerGroup.shutdownGracefully();
-          bossGroup.shutdownGracefully();
+          log.error("Server " + name + " on " + ip + " " + port + " failed to start.", ex);
+          shutdownGroups();
+          throw ex;
       }
   }
 
-  public void stop()
+  /**
+   * Closes the drivers and releases what start() set up, once per start().
+   * Sessions should be closed first, they dispatch to the drivers.
+   */
+  private synchronized void shutdownGroups() {
+      if (shutDown) {
+        return;
+      }
+      shutDown = true;
+      if (certificateCheck != null) {
+        certificateCheck.cancel(false);
+        certificateCheck = null;
+      }
+      if (ownsOffloadExecutor) {
+        offloadExecutor.shutdownGracefully();
+        offloadExecutor = null;
+        ownsOffloadExecutor = false;
+      }
+      for (SIPChannelHandler handler : channelHandlers) {
+        handler.close();
+      }
+      // Shared groups belong to the host and are shut down by it
+      if (host == null) {
+        workerGroup.shutdownGracefully();
+        bossGroup.shutdownGracefully();
+      }
+  }
+
+  /**
+   * Stops accepting connections and closes the open sessions. Does not
+   * block, so it may be called from a handler, e.g. through
+   * {@link SIPServerHost#removeListener(SIPDaemon)}.
+   *
+   * @return completes once the sessions are closed and the drivers shut
+   *         down
+   */
+  public Future<Void> stop()
   {
       log.info("Server " + name + " on " + ip + " " + port + " shutting down...");
-      if (f != null) {
-        f.channel().close();
+      stopping = true;
+      final Promise<Void> stopped = GlobalEventExecutor.INSTANCE.newPromise();
+      closeServerChannel().addListener(new GenericFutureListener<Future<Void>>() {
+        @Override
+        public void operationComplete(Future<Void> future) {
+          // on a shared host the event loops, and with them the sessions, stay
+          // up, and the sessions must not dispatch to the drivers closed below
+          sessionTracker.getSessions().close().addListener(new ChannelGroupFutureListener() {
+            @Override
+            public void operationComplete(ChannelGroupFuture future) {
+              shutdownGroups();
+              log.info("Server " + name + " on " + ip + " " + port + " shutdown complete.");
+              stopped.setSuccess(null);
+            }
+          });
+        }
+      });
+      return stopped;
+  }
+
+  private Future<Void> closeServerChannel() {
+      return f != null ? f.channel().close() : GlobalEventExecutor.INSTANCE.<Void>newSucceededFuture(null);
+  }
+
+  /**
+   * Stops accepting connections and waits for open sessions to finish
+   * their in-flight requests. Idle sessions are closed straight away, busy
+   * ones as soon as their last response has been written. Sessions still
+   * open at the deadline are closed forcibly.
+   *
+   * Does not block: connections are no longer accepted once it returns,
+   * so several listeners can be drained against one deadline.
+   *
+   * @return completes with the number of sessions that had to be closed
+   *         forcibly
+   */
+  public Future<Integer> drain(long timeout, TimeUnit unit)
+  {
+      log.info("Server " + name + " on " + ip + " " + port + " draining " + getSessionCount() + " session(s)...");
+      sessionTracker.drain();
+      closeServerChannel();
+      final Promise<Integer> drained = GlobalEventExecutor.INSTANCE.newPromise();
+      final AtomicBoolean finishing = new AtomicBoolean();
+      final ScheduledFuture<?> deadline = GlobalEventExecutor.INSTANCE.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (finishing.compareAndSet(false, true)) {
+            finishDrain(drained);
+          }
+        }
+      }, timeout, unit);
+      sessionTracker.getSessions().newCloseFuture().addListener(new ChannelGroupFutureListener() {
+        @Override
+        public void operationComplete(ChannelGroupFuture future) {
+          if (finishing.compareAndSet(false, true)) {
+            deadline.cancel(false);
+            finishDrain(drained);
+          }
+        }
+      });
+      return drained;
+  }
+
+  private void finishDrain(final Promise<Integer> drained) {
+      final int remaining = getSessionCount();
+      if (remaining == 0) {
+        shutdownGroups();
+        log.info("Server " + name + " on " + ip + " " + port + " drain complete.");
+        drained.setSuccess(0);
+        return;
       }
-      workerGroup.shutdownGracefully();
-      bossGroup.shutdownGracefully();		
-      log.info("Server " + name + " on " + ip + " " + port + " shutdown complete.");
+      log.warn("Server " + name + " on " + ip + " " + port + " closing " + remaining + " session(s) ("
+          + sessionTracker.getBusySessionCount() + " busy) still open after drain timeout: " + sessionTracker.getSessions());
+      sessionTracker.getSessions().close().addListener(new ChannelGroupFutureListener() {
+        @Override
+        public void operationComplete(ChannelGroupFuture future) {
+          shutdownGroups();
+          log.info("Server " + name + " on " + ip + " " + port + " drain complete.");
+          drained.setSuccess(remaining);
+        }
+      });
   }
 
 	@Override
 	public void operationComplete(ChannelFuture arg0) throws Exception {
+        if (sessionTracker.isDraining() || stopping) {
+          // drain() and stop() shut down once the sessions are closed
+          return;
+        }
         log.info("Server " + name + " on " + ip + " " + port + " shutting down...");
-        workerGroup.shutdownGracefully();
-        bossGroup.shutdownGracefully();		
-        log.info("Server " + name + " on " + ip + " " + port + " shutdown complete.");
+        // called on an event loop, so the sessions are not waited for here
+        sessionTracker.getSessions().close().addListener(new ChannelGroupFutureListener() {
+          @Override
+          public void operationComplete(ChannelGroupFuture future) {
+            shutdownGroups();
+            log.info("Server " + name + " on " + ip + " " + port + " shutdown complete.");
+          }
+        });
 	}
 }
\ No newline at end of file
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * Hosts any number of {@link SIPDaemon} listeners in one JVM.
+ *
+ * All listeners added to a host share its boss and worker event loop groups
+ * and its buffer allocator, so each additional institution costs a bound
+ * socket and its own driver factory rather than a new set of threads and
+ * buffer arenas.
+ */
+public class SIPServerHost {
+  private static final Log log = LogFactory.getLog(SIPServerHost.class);
+
+  private final String name;
+  private final EventLoopGroup bossGroup;
+  private final EventLoopGroup workerGroup;
+  private final ByteBufAllocator allocator;
+  private final boolean ownsGroups;
+  private final List<SIPDaemon> listeners = new CopyOnWriteArrayList<SIPDaemon>();
+
+  public SIPServerHost(String name) {
+    this(name, 1, 0);
+  }
+
+  /**
+   * @param workerThreads number of worker event loops, 0 for the Netty
+   *                      default of twice the available processors
+   */
+  public SIPServerHost(String name, int bossThreads, int workerThreads) {
+    this(name, new NioEventLoopGroup(bossThreads), new NioEventLoopGroup(workerThreads), PooledByteBufAllocator.DEFAULT, true);
+  }
+
+  /**
+   * The groups stay up when the host stops, their owner shuts them down.
+   */
+  public SIPServerHost(String name, EventLoopGroup bossGroup, EventLoopGroup workerGroup, ByteBufAllocator allocator) {
+    this(name, bossGroup, workerGroup, allocator, false);
+  }
+
+  private SIPServerHost(String name, EventLoopGroup bossGroup, EventLoopGroup workerGroup, ByteBufAllocator allocator, boolean ownsGroups) {
+    this.name = name;
+    this.bossGroup = bossGroup;
+    this.workerGroup = workerGroup;
+    this.allocator = allocator;
+    this.ownsGroups = ownsGroups;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public EventLoopGroup getBossGroup() {
+    return bossGroup;
+  }
+
+  public EventLoopGroup getWorkerGroup() {
+    return workerGroup;
+  }
+
+  public ByteBufAllocator getAllocator() {
+    return allocator;
+  }
+
+  public List<SIPDaemon> getListeners() {
+    return listeners;
+  }
+
+  /**
+   * Adds a listener to this host. Listeners added after {@link #start()}
+   * must be started by the caller.
+   */
+  public SIPDaemon addListener(SIPDaemon daemon) {
+    daemon.setHost(this);
+    listeners.add(daemon);
+    return daemon;
+  }
+
+  public void removeListener(SIPDaemon daemon) {
+    if (listeners.remove(daemon)) {
+      daemon.stop();
+    }
+  }
+
+  /**
+   * Starts every listener. If any listener fails to bind, those already
+   * started are stopped again and the failure is rethrown; the event loops
+   * are left running.
+   */
+  public void start() throws Exception {
+    log.info("Server host " + name + " starting " + listeners.size() + " listener(s)...");
+    List<SIPDaemon> started = new ArrayList<SIPDaemon>();
+    for (SIPDaemon daemon : listeners) {
+      try {
+        daemon.start();
+        started.add(daemon);
+      } catch (Exception ex) {
+        for (SIPDaemon startedDaemon : started) {
+          startedDaemon.stop().awaitUninterruptibly();
+        }
+        throw ex;
+      }
+    }
+    log.info("Server host " + name + " startup complete.");
+  }
+
+  /**
+   * Drains every listener within one shared deadline, then shuts down the
+   * event loops the host created. All listeners stop accepting connections
+   * before any is waited for. Blocks, so it must not be called on an event
+   * loop.
+   *
+   * @return number of sessions that had to be closed forcibly
+   * @see SIPDaemon#drain(long, TimeUnit)
+   */
+  public int drain(long timeout, TimeUnit unit) throws InterruptedException {
+    List<Future<Integer>> drains = new ArrayList<Future<Integer>>();
+    for (SIPDaemon daemon : listeners) {
+      drains.add(daemon.drain(timeout, unit));
+    }
+    int remaining = 0;
+    for (Future<Integer> drained : drains) {
+      remaining += drained.await().getNow();
+    }
+    shutdownGroups();
+    log.info("Server host " + name + " drain complete, " + remaining + " session(s) closed forcibly.");
+    return remaining;
+  }
+
+  /**
+   * Stops every listener, then shuts down the event loops the host
+   * created. Does not block.
+   *
+   * @return completes once every listener has stopped
+   */
+  public Future<Void> stop() {
+    log.info("Server host " + name + " shutting down...");
+    final Promise<Void> stopped = GlobalEventExecutor.INSTANCE.newPromise();
+    final AtomicInteger pending = new AtomicInteger(1);
+    for (SIPDaemon daemon : listeners) {
+      pending.incrementAndGet();
+      daemon.stop().addListener(new GenericFutureListener<Future<Void>>() {
+        @Override
+        public void operationComplete(Future<Void> future) {
+          listenerStopped(pending, stopped);
+        }
+      });
+    }
+    listenerStopped(pending, stopped);
+    return stopped;
+  }
+
+  private void listenerStopped(AtomicInteger pending, Promise<Void> stopped) {
+    if (pending.decrementAndGet() == 0) {
+      shutdownGroups();
+      log.info("Server host " + name + " shutdown complete.");
+      stopped.setSuccess(null);
+    }
+  }
+
+  private void shutdownGroups() {
+    if (ownsGroups) {
+      workerGroup.shutdownGracefully();
+      bossGroup.shutdownGracefully();
+    }
+  }
+}
@@ -16,34 +16,68 @@
  */
 package com.circulation.SIP.netty.server;
 
+import java.nio.charset.Charset;
+
 import com.circulation.SIP.netty.codec.SIPMessageDecoder;
 import com.circulation.SIP.netty.codec.SIPMessageEncoder;
+import com.circulation.SIP.netty.server.channel.ConnectionLimiter;
+import com.circulation.SIP.netty.server.channel.FaultInjectionHandler;
+import com.circulation.SIP.netty.server.channel.FaultPolicy;
+import com.circulation.SIP.netty.server.channel.FlushPolicy;
+import com.circulation.SIP.netty.server.channel.IdleConnectionHandler;
 import com.circulation.SIP.netty.server.channel.SIPChannelHandler;
+import com.circulation.SIP.netty.server.channel.SessionTracker;
+import com.circulation.SIP.netty.server.channel.SslHandshakeStatistics;
+import com.circulation.SIP.netty.server.channel.SslHandshakeTimer;
+import com.circulation.SIP.netty.server.channel.TimedFlushHandler;
+import com.circulation.SIP.netty.server.channel.TrafficRecordingHandler;
 import com.circulation.SIP.netty.server.driver.DriverFactory;
+import com.circulation.SIP.netty.traffic.TrafficRecorder;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.DelimiterBasedFrameDecoder;
 import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
-import io.netty.handler.logging.LogLevel;
-import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.ssl.SniHandler;
 import io.netty.handler.ssl.SslContext;
+import io.netty.util.DomainNameMapping;
+import io.netty.util.Mapping;
 
 
 public class SIPServerInitializer extends ChannelInitializer<SocketChannel> {
-	
-    private final StringDecoder DECODER = new StringDecoder();
-    private final StringEncoder ENCODER = new StringEncoder();
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 8192;
+
+    static final String SERVER_HANDLER_NAME = "sipHandler";
+    static final String FRAME_DECODER_NAME = "framer";
+
+    private StringDecoder DECODER = new StringDecoder();
     private SIPMessageDecoder SIPDECODER;
-    private final SIPMessageEncoder SIPENCODER = new SIPMessageEncoder();
+    private SIPMessageEncoder SIPENCODER = new SIPMessageEncoder();
 
     private SIPChannelHandler SERVER_HANDLER;
 
-    private final SslContext sslCtx;
+    private final ReloadableSslContext sslCtx;
+    private Mapping<String, SslContext> sniContexts;
+    private SslHandshakeStatistics handshakeStatistics;
+    private DomainNameMapping<SIPChannelHandler> sniHandlers;
+    private int maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+    private SessionTracker sessionTracker;
+    private ConnectionLimiter connectionLimiter;
+    private int readerIdleTime;
+    private int writerIdleTime;
+    private FlushPolicy flushPolicy = FlushPolicy.READ_BATCH;
+    private int flushConsolidationLimit = FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES;
+    private long flushDelay;
+    private int flushSizeLimit;
+    private WireTrace wireTrace;
+    private FaultPolicy faultPolicy;
+    private TrafficRecorder trafficRecorder;
+    private Charset charset = Charset.defaultCharset();
 
     private ByteBuf[] getDelimiters() {
         return new ByteBuf[] {
@@ -54,6 +88,10 @@ public class SIPServerInitializer extends ChannelInitializer<SocketChannel> {
     }
     
     public SIPServerInitializer(DriverFactory driverFactory, boolean strictChecksumChecking, SslContext sslCtx) {
+        this(driverFactory, strictChecksumChecking, sslCtx == null ? null : new ReloadableSslContext(sslCtx));
+    }
+
+    public SIPServerInitializer(DriverFactory driverFactory, boolean strictChecksumChecking, ReloadableSslContext sslCtx) {
         this.sslCtx = sslCtx;
         SIPDECODER = new SIPMessageDecoder(strictChecksumChecking);
         SERVER_HANDLER = new SIPChannelHandler(driverFactory);
@@ -65,27 +103,164 @@ public class SIPServerInitializer extends ChannelInitializer<SocketChannel> {
       SERVER_HANDLER = new SIPChannelHandler(driverFactory);
     }
 
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+        DECODER = new StringDecoder(charset);
+        SIPENCODER = new SIPMessageEncoder(charset);
+    }
+
+    /**
+     * Selects the certificate and driver of a connection from the SNI host
+     * name in its client hello. Host names that are not mapped fall back to
+     * the default context and driver factory of this initializer.
+     */
+    public void setVirtualHosts(final DomainNameMapping<ReloadableSslContext> sniContexts, DomainNameMapping<SIPChannelHandler> sniHandlers) {
+        this.sniContexts = new Mapping<String, SslContext>() {
+            @Override
+            public SslContext map(String hostname) {
+                return sniContexts.map(hostname).get();
+            }
+        };
+        this.sniHandlers = sniHandlers;
+    }
+
+    public void setHandshakeStatistics(SslHandshakeStatistics handshakeStatistics) {
+        this.handshakeStatistics = handshakeStatistics;
+    }
+
+    /**
+     * @param faultPolicy faults to inject into responses, null for none
+     */
+    public void setFaultPolicy(FaultPolicy faultPolicy) {
+        this.faultPolicy = faultPolicy;
+    }
+
+    /**
+     * @param trafficRecorder recording of all traffic, null for none
+     */
+    public void setTrafficRecorder(TrafficRecorder trafficRecorder) {
+        this.trafficRecorder = trafficRecorder;
+    }
+
+    public void setWireTrace(WireTrace wireTrace) {
+        this.wireTrace = wireTrace;
+    }
+
+    public void setSessionTracker(SessionTracker sessionTracker) {
+        this.sessionTracker = sessionTracker;
+    }
+
+    public void setConnectionLimiter(ConnectionLimiter connectionLimiter) {
+        this.connectionLimiter = connectionLimiter;
+    }
+
+    /**
+     * @param readerIdleTime seconds without a request before the connection
+     *                       is closed, 0 to never close
+     * @param writerIdleTime seconds without a response before the connection
+     *                       is closed, 0 to never close
+     */
+    public void setIdleTimeouts(int readerIdleTime, int writerIdleTime) {
+        this.readerIdleTime = readerIdleTime;
+        this.writerIdleTime = writerIdleTime;
+    }
+
+    /**
+     * @param flushConsolidationLimit flushes after which a consolidated
+     *                                flush is forced, for
+     *                                {@link FlushPolicy#CONSOLIDATED}
+     * @param flushDelay              microseconds a flush is held back, for
+     *                                {@link FlushPolicy#TIMED}
+     * @param flushSizeLimit          pending bytes that force a flush, for
+     *                                {@link FlushPolicy#TIMED}
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy, int flushConsolidationLimit, long flushDelay, int flushSizeLimit) {
+        this.flushPolicy = flushPolicy;
+        this.flushConsolidationLimit = flushConsolidationLimit;
+        this.flushDelay = flushDelay;
+        this.flushSizeLimit = flushSizeLimit;
+    }
+
+    public SIPChannelHandler getServerHandler() {
+        return SERVER_HANDLER;
+    }
+
     @Override
     public void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline pipeline = ch.pipeline();
 
-        if (sslCtx != null) {
-            pipeline.addLast(sslCtx.newHandler(ch.alloc()));
+        if (connectionLimiter != null) {
+            pipeline.addLast(connectionLimiter);
+        }
+        if (sessionTracker != null) {
+            pipeline.addLast(sessionTracker);
+        }
+
+        if (sniContexts != null) {
+            pipeline.addLast(new VirtualHostSniHandler(sniContexts, sniHandlers));
+        } else if (sslCtx != null) {
+            pipeline.addLast(sslCtx.get().newHandler(ch.alloc()));
         }        
+        if (handshakeStatistics != null && (sniContexts != null || sslCtx != null)) {
+            pipeline.addLast(new SslHandshakeTimer(handshakeStatistics));
+        }
         
-        pipeline.addLast(new LoggingHandler(LogLevel.DEBUG));
-        
+        if (flushPolicy == FlushPolicy.CONSOLIDATED) {
+            pipeline.addLast(new FlushConsolidationHandler(flushConsolidationLimit, true));
+        } else if (flushPolicy == FlushPolicy.TIMED) {
+            pipeline.addLast(new TimedFlushHandler(flushDelay, flushSizeLimit));
+        }
+
         // Add the text line codec combination first,
-        pipeline.addLast(new DelimiterBasedFrameDecoder(8192, getDelimiters()));
+        pipeline.addLast(FRAME_DECODER_NAME, new DelimiterBasedFrameDecoder(maxFrameLength, getDelimiters()));
+        if (trafficRecorder != null) {
+            pipeline.addLast(new TrafficRecordingHandler(trafficRecorder));
+        }
         
         // Add encoders and decoders
         pipeline.addLast(DECODER);
-        pipeline.addLast(ENCODER);
         pipeline.addLast(SIPDECODER);
         pipeline.addLast(SIPENCODER);
         
+        if (readerIdleTime > 0 || writerIdleTime > 0) {
+            pipeline.addLast(new IdleConnectionHandler(readerIdleTime, writerIdleTime));
+        }
+
+        if (faultPolicy != null) {
+            pipeline.addLast(new FaultInjectionHandler(faultPolicy, charset));
+        }
+
         // and then business logic.
-        pipeline.addLast(SERVER_HANDLER);        
+        pipeline.addLast(SERVER_HANDLER_NAME, SERVER_HANDLER);        
+
+        if (wireTrace != null) {
+            wireTrace.apply(ch);
+        }
     }
-}
 
+    /**
+     * Once the SNI host name is known, swaps in the channel handler bound to
+     * that virtual host's driver factory, so there is no per-message lookup.
+     */
+    private static class VirtualHostSniHandler extends SniHandler {
+        private final DomainNameMapping<SIPChannelHandler> handlers;
+
+        VirtualHostSniHandler(Mapping<String, SslContext> contexts, DomainNameMapping<SIPChannelHandler> handlers) {
+            super(contexts);
+            this.handlers = handlers;
+        }
+
+        @Override
+        protected void replaceHandler(ChannelHandlerContext ctx, String hostname, SslContext sslContext) throws Exception {
+            super.replaceHandler(ctx, hostname, sslContext);
+            SIPChannelHandler handler = handlers.map(hostname);
+            if (ctx.pipeline().get(SERVER_HANDLER_NAME) != handler) {
+                ctx.pipeline().replace(SERVER_HANDLER_NAME, SERVER_HANDLER_NAME, handler);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server;
+
+import java.io.File;
+
+import com.circulation.SIP.netty.server.driver.DriverFactory;
+
+/**
+ * A TLS endpoint selected by the SNI host name sent by the client, sharing
+ * the port of the {@link SIPDaemon} it is added to.
+ */
+public class SIPVirtualHost {
+  private final String hostname;
+  private final File keyCertChainFile;
+  private final File keyFile;
+  private final String keyPassword;
+  private final DriverFactory driverFactory;
+
+  public SIPVirtualHost(String hostname, File keyCertChainFile, File keyFile, DriverFactory driverFactory) {
+    this(hostname, keyCertChainFile, keyFile, null, driverFactory);
+  }
+
+  /**
+   * @param hostname host name to match, may be a wildcard such as
+   *                 <code>*.library.example.org</code>
+   */
+  public SIPVirtualHost(String hostname, File keyCertChainFile, File keyFile, String keyPassword, DriverFactory driverFactory) {
+    this.hostname = hostname;
+    this.keyCertChainFile = keyCertChainFile;
+    this.keyFile = keyFile;
+    this.keyPassword = keyPassword;
+    this.driverFactory = driverFactory;
+  }
+
+  public String getHostname() {
+    return hostname;
+  }
+
+  public File getKeyCertChainFile() {
+    return keyCertChainFile;
+  }
+
+  public File getKeyFile() {
+    return keyFile;
+  }
+
+  public String getKeyPassword() {
+    return keyPassword;
+  }
+
+  public DriverFactory getDriverFactory() {
+    return driverFactory;
+  }
+}
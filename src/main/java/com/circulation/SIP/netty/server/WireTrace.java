@@ -0,0 +1,151 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.circulation.SIP.netty.server.channel.WireTraceHandler;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.group.ChannelGroup;
+
+/**
+ * Switches wire tracing on and off for single connections, or for every
+ * connection from a client address, while the server is running.
+ *
+ * A {@link WireTraceHandler} is only inserted into the pipeline of traced
+ * connections, so untraced traffic pays nothing for it.
+ */
+public class WireTrace {
+  static final String HANDLER_NAME = "wireTrace";
+
+  private final ChannelGroup sessions;
+  private final ConcurrentMap<InetAddress, Integer> addresses = new ConcurrentHashMap<InetAddress, Integer>();
+  private volatile Charset charset = Charset.defaultCharset();
+
+  public WireTrace(ChannelGroup sessions) {
+    this.sessions = sessions;
+  }
+
+  public void setCharset(Charset charset) {
+    this.charset = charset;
+  }
+
+  /**
+   * Traces the open connections from an address and any made later on.
+   *
+   * @param sampleInterval log one in this many frames, 1 to log them all
+   */
+  public void traceAddress(InetAddress address, int sampleInterval) {
+    addresses.put(address, sampleInterval);
+    for (Channel channel : sessions) {
+      if (address.equals(addressOf(channel.remoteAddress()))) {
+        enable(channel, sampleInterval);
+      }
+    }
+  }
+
+  public void untraceAddress(InetAddress address) {
+    addresses.remove(address);
+    for (Channel channel : sessions) {
+      if (address.equals(addressOf(channel.remoteAddress()))) {
+        disable(channel);
+      }
+    }
+  }
+
+  /**
+   * @param channelId short or long text of the connection's channel id
+   * @return false if there is no such connection
+   */
+  public boolean traceConnection(String channelId, int sampleInterval) {
+    Channel channel = find(channelId);
+    if (channel == null) {
+      return false;
+    }
+    enable(channel, sampleInterval);
+    return true;
+  }
+
+  public boolean untraceConnection(String channelId) {
+    Channel channel = find(channelId);
+    if (channel == null) {
+      return false;
+    }
+    disable(channel);
+    return true;
+  }
+
+  public boolean isTraced(Channel channel) {
+    return channel.pipeline().get(HANDLER_NAME) != null;
+  }
+
+  /**
+   * Called for each new connection once its pipeline has been built.
+   */
+  void apply(Channel channel) {
+    if (addresses.isEmpty()) {
+      return;
+    }
+    Integer sampleInterval = addresses.get(addressOf(channel.remoteAddress()));
+    if (sampleInterval != null) {
+      enable(channel, sampleInterval);
+    }
+  }
+
+  private Channel find(String channelId) {
+    for (Channel channel : sessions) {
+      if (channel.id().asShortText().equals(channelId) || channel.id().asLongText().equals(channelId)) {
+        return channel;
+      }
+    }
+    return null;
+  }
+
+  private static InetAddress addressOf(SocketAddress address) {
+    return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : null;
+  }
+
+  private void enable(Channel channel, int sampleInterval) {
+    ChannelPipeline pipeline = channel.pipeline();
+    WireTraceHandler handler = new WireTraceHandler(sampleInterval, charset);
+    try {
+      if (pipeline.get(HANDLER_NAME) != null) {
+        pipeline.replace(HANDLER_NAME, HANDLER_NAME, handler);
+      } else {
+        // next to the framer, so whole frames are seen in both directions
+        pipeline.addAfter(SIPServerInitializer.FRAME_DECODER_NAME, HANDLER_NAME, handler);
+      }
+    } catch (RuntimeException ex) {
+      // the connection closed while it was being changed
+    }
+  }
+
+  private void disable(Channel channel) {
+    try {
+      channel.pipeline().remove(HANDLER_NAME);
+    } catch (RuntimeException ex) {
+      // not traced, or already closed
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.circulation.SIP.messages.Message;
+
+/**
+ * Injects latency and faults at random, with separate settings for each
+ * command, e.g. slow patron information but fast check ins.
+ */
+public class CommandFaultPolicy implements FaultPolicy {
+  /**
+   * Faults injected into the responses of one command. The rates are
+   * probabilities between 0 and 1, at most one action is taken per
+   * response.
+   */
+  public static class Settings {
+    private volatile LatencyDistribution latency;
+    private volatile double dropRate;
+    private volatile double corruptRate;
+    private volatile double stormRate;
+    private volatile int stormLength = 5;
+    private volatile double resetRate;
+
+    public LatencyDistribution getLatency() {
+      return latency;
+    }
+
+    public void setLatency(LatencyDistribution latency) {
+      this.latency = latency;
+    }
+
+    public double getDropRate() {
+      return dropRate;
+    }
+
+    public void setDropRate(double dropRate) {
+      this.dropRate = dropRate;
+    }
+
+    public double getCorruptRate() {
+      return corruptRate;
+    }
+
+    public void setCorruptRate(double corruptRate) {
+      this.corruptRate = corruptRate;
+    }
+
+    public double getStormRate() {
+      return stormRate;
+    }
+
+    public void setStormRate(double stormRate) {
+      this.stormRate = stormRate;
+    }
+
+    public int getStormLength() {
+      return stormLength;
+    }
+
+    /**
+     * @param stormLength SC resend requests written in a storm, 5 by default
+     */
+    public void setStormLength(int stormLength) {
+      this.stormLength = stormLength;
+    }
+
+    public double getResetRate() {
+      return resetRate;
+    }
+
+    public void setResetRate(double resetRate) {
+      this.resetRate = resetRate;
+    }
+
+    Fault select(Random random) {
+      LatencyDistribution latency = this.latency;
+      long delay = latency == null ? 0 : latency.nextMicros(random);
+      double roll = random.nextDouble();
+      Fault.Action action = Fault.Action.NONE;
+      if ((roll -= dropRate) < 0) {
+        action = Fault.Action.DROP;
+      } else if ((roll -= corruptRate) < 0) {
+        action = Fault.Action.CORRUPT_CHECKSUM;
+      } else if ((roll -= stormRate) < 0) {
+        action = Fault.Action.RESEND_STORM;
+      } else if ((roll -= resetRate) < 0) {
+        action = Fault.Action.RESET;
+      }
+      if (delay == 0 && action == Fault.Action.NONE) {
+        return null;
+      }
+      return new Fault(delay, action, stormLength);
+    }
+  }
+
+  private final Settings defaults = new Settings();
+  private final Map<Class<? extends Message>, Settings> commands = new ConcurrentHashMap<Class<? extends Message>, Settings>();
+
+  /**
+   * @return the settings of commands without their own
+   */
+  public Settings getDefaults() {
+    return defaults;
+  }
+
+  /**
+   * @param command two character command code of the request, e.g. 63
+   * @return the settings of the command, created on first use
+   * @throws IllegalArgumentException for an unknown command
+   */
+  public Settings getSettings(String command) {
+    Class<? extends Message> type = Message.getMessageClass(command);
+    if (type == null) {
+      throw new IllegalArgumentException("Unknown command " + command);
+    }
+    Settings settings = commands.get(type);
+    if (settings == null) {
+      Settings created = new Settings();
+      settings = commands.putIfAbsent(type, created);
+      if (settings == null) {
+        settings = created;
+      }
+    }
+    return settings;
+  }
+
+  @Override
+  public Fault select(Message request) {
+    Settings settings = commands.get(request.getClass());
+    return (settings == null ? defaults : settings).select(ThreadLocalRandom.current());
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * Caps the number of open connections, globally and per client address,
+ * and the rate at which new connections are accepted. Connections over a
+ * limit are closed before any TLS handshake or decoding takes place.
+ *
+ * A limit of 0 means unlimited. One instance may be shared by several
+ * listeners to apply the limits across all of them.
+ */
+@Sharable
+public class ConnectionLimiter extends ChannelInboundHandlerAdapter {
+  private static final Log log = LogFactory.getLog(ConnectionLimiter.class);
+
+  private static final BiFunction<Integer, Integer, Integer> SUM = new BiFunction<Integer, Integer, Integer>() {
+    @Override
+    public Integer apply(Integer a, Integer b) {
+      return a + b;
+    }
+  };
+
+  // removes the entry when the last connection from an address closes
+  private static final BiFunction<InetAddress, Integer, Integer> DECREMENT = new BiFunction<InetAddress, Integer, Integer>() {
+    @Override
+    public Integer apply(InetAddress address, Integer count) {
+      return count > 1 ? count - 1 : null;
+    }
+  };
+
+  private volatile int maxConnections;
+  private volatile int maxConnectionsPerAddress;
+  private volatile int maxAcceptRate;
+
+  private final AtomicInteger connections = new AtomicInteger();
+  private final ConcurrentMap<InetAddress, Integer> connectionsPerAddress = new ConcurrentHashMap<InetAddress, Integer>();
+  private final AtomicLong rejected = new AtomicLong();
+
+  // token bucket for the accept rate, refilled continuously
+  private double tokens;
+  private long lastRefill = System.nanoTime();
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public void setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  public int getMaxConnectionsPerAddress() {
+    return maxConnectionsPerAddress;
+  }
+
+  public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+    this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+  }
+
+  public int getMaxAcceptRate() {
+    return maxAcceptRate;
+  }
+
+  /**
+   * @param maxAcceptRate new connections accepted per second, with bursts
+   *                      of up to the same number
+   */
+  public void setMaxAcceptRate(int maxAcceptRate) {
+    this.maxAcceptRate = maxAcceptRate;
+  }
+
+  public int getConnectionCount() {
+    return connections.get();
+  }
+
+  public int getConnectionCount(InetAddress address) {
+    Integer count = connectionsPerAddress.get(address);
+    return count == null ? 0 : count;
+  }
+
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  private synchronized boolean acquireAcceptToken() {
+    int rate = maxAcceptRate;
+    if (rate <= 0) {
+      return true;
+    }
+    long now = System.nanoTime();
+    tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+    lastRefill = now;
+    if (tokens < 1) {
+      return false;
+    }
+    tokens--;
+    return true;
+  }
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    final InetAddress address = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
+    String reason = null;
+
+    if (!acquireAcceptToken()) {
+      reason = "accept rate limit";
+    } else {
+      int max = maxConnections;
+      if (connections.incrementAndGet() > max && max > 0) {
+        connections.decrementAndGet();
+        reason = "connection limit";
+      } else {
+        int count = connectionsPerAddress.merge(address, 1, SUM);
+        int maxPerAddress = maxConnectionsPerAddress;
+        if (count > maxPerAddress && maxPerAddress > 0) {
+          release(address);
+          reason = "per address connection limit";
+        }
+      }
+    }
+
+    if (reason != null) {
+      rejected.incrementAndGet();
+      log.debug("Rejected connection from " + address + ": " + reason);
+      ctx.close();
+      return;
+    }
+
+    ctx.channel().closeFuture().addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) {
+        release(address);
+      }
+    });
+    ctx.pipeline().remove(this);
+    super.channelActive(ctx);
+  }
+
+  private void release(InetAddress address) {
+    connections.decrementAndGet();
+    connectionsPerAddress.computeIfPresent(address, DECREMENT);
+  }
+}
@@ -0,0 +1,77 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fault injected into one response: a delay before it is written,
+ * optionally followed by an action that damages or replaces it.
+ */
+public final class Fault {
+  public enum Action {
+    /** write the response */
+    NONE,
+    /** never write the response */
+    DROP,
+    /** write the response with a wrong checksum */
+    CORRUPT_CHECKSUM,
+    /** write a number of SC resend requests before the response */
+    RESEND_STORM,
+    /** reset the connection instead of writing the response */
+    RESET
+  }
+
+  public static final Fault NONE = new Fault(0, Action.NONE, 0);
+
+  private final long delayNanos;
+  private final Action action;
+  private final int repeat;
+
+  /**
+   * @param delayMicros microseconds the response is held back
+   * @param repeat      number of resend requests of a
+   *                    {@link Action#RESEND_STORM}
+   */
+  public Fault(long delayMicros, Action action, int repeat) {
+    this.delayNanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+    this.action = action;
+    this.repeat = repeat;
+  }
+
+  public static Fault delay(long delayMicros) {
+    return new Fault(delayMicros, Action.NONE, 0);
+  }
+
+  public long getDelayNanos() {
+    return delayNanos;
+  }
+
+  public Action getAction() {
+    return action;
+  }
+
+  public int getRepeat() {
+    return repeat;
+  }
+
+  @Override
+  public String toString() {
+    return action + (action == Action.RESEND_STORM ? "x" + repeat : "")
+        + " after " + TimeUnit.NANOSECONDS.toMicros(delayNanos) + "us";
+  }
+}
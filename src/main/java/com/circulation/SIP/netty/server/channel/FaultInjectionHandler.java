@@ -0,0 +1,206 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import com.circulation.SIP.messages.Message;
+import com.circulation.SIP.messages.SCResend;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Injects the faults chosen by a {@link FaultPolicy} into the responses of
+ * one connection, for testing clients against a slow or misbehaving ACS.
+ *
+ * The fault of each request is chosen as it is read and applied to the
+ * response written for it. Delayed responses are scheduled on the
+ * channel's event loop, so no thread waits for them, and are written in
+ * the order of their requests.
+ */
+public class FaultInjectionHandler extends ChannelDuplexHandler {
+  private static final Log log = LogFactory.getLog(FaultInjectionHandler.class);
+
+  private final FaultPolicy policy;
+  private final Charset charset;
+  // only accessed from the channel's event loop
+  private final Queue<Fault> faults = new ArrayDeque<Fault>();
+  private final ArrayDeque<DelayedWrite> delayed = new ArrayDeque<DelayedWrite>();
+  private boolean passThrough;
+  private boolean passedThrough;
+
+  private static final class DelayedWrite {
+    final long due;
+    final Fault fault;
+    final Message response;
+    final ChannelPromise promise;
+
+    DelayedWrite(long due, Fault fault, Message response, ChannelPromise promise) {
+      this.due = due;
+      this.fault = fault;
+      this.response = response;
+      this.promise = promise;
+    }
+  }
+
+  public FaultInjectionHandler(FaultPolicy policy, Charset charset) {
+    this.policy = policy;
+    this.charset = charset;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof Message) {
+      Fault fault = policy.select((Message) msg);
+      faults.add(fault == null ? Fault.NONE : fault);
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+    // the error response to a frame that could not be decoded has no request
+    passThrough = true;
+    passedThrough = false;
+    try {
+      super.exceptionCaught(ctx, cause);
+    } finally {
+      passThrough = false;
+    }
+    if (!passedThrough && !(cause instanceof IOException)) {
+      // a pipelining server answers it later, after the responses still
+      // pending, and that answer must not take the fault of a request
+      faults.add(Fault.NONE);
+    }
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (passThrough || !(msg instanceof Message)) {
+      passedThrough |= passThrough;
+      ctx.write(msg, promise);
+      return;
+    }
+    Fault fault = faults.poll();
+    if (fault == null) {
+      fault = Fault.NONE;
+    }
+    long now = System.nanoTime();
+    if (fault.getDelayNanos() == 0 && delayed.isEmpty()) {
+      apply(ctx, fault, (Message) msg, promise);
+      return;
+    }
+    // a response is never written before the responses ahead of it
+    DelayedWrite last = delayed.peekLast();
+    long due = now + fault.getDelayNanos();
+    if (last != null && last.due > due) {
+      due = last.due;
+    }
+    delayed.add(new DelayedWrite(due, fault, (Message) msg, promise));
+    if (delayed.size() == 1) {
+      schedule(ctx, due - now);
+    }
+  }
+
+  private void schedule(final ChannelHandlerContext ctx, long delayNanos) {
+    ctx.executor().schedule(new Runnable() {
+      @Override
+      public void run() {
+        writeDue(ctx);
+      }
+    }, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void writeDue(ChannelHandlerContext ctx) {
+    long now = System.nanoTime();
+    DelayedWrite head;
+    while ((head = delayed.peek()) != null && head.due <= now) {
+      delayed.poll();
+      apply(ctx, head.fault, head.response, head.promise);
+    }
+    ctx.flush();
+    if (head != null) {
+      schedule(ctx, head.due - now);
+    }
+  }
+
+  private void apply(ChannelHandlerContext ctx, Fault fault, Message response, ChannelPromise promise) {
+    switch (fault.getAction()) {
+    case DROP:
+      log.debug("Dropping " + response.getClass().getSimpleName() + " on " + ctx.channel());
+      promise.trySuccess();
+      break;
+    case CORRUPT_CHECKSUM:
+      String encoded;
+      try {
+        encoded = corruptChecksum(response.encode());
+      } catch (Exception ex) {
+        promise.tryFailure(ex);
+        break;
+      }
+      ByteBuf buf = ctx.alloc().ioBuffer();
+      buf.writeCharSequence(encoded, charset);
+      buf.writeByte('\r');
+      ctx.write(buf, promise);
+      break;
+    case RESEND_STORM:
+      for (int i = 0; i < fault.getRepeat(); i++) {
+        ctx.write(new SCResend(), ctx.voidPromise());
+      }
+      ctx.write(response, promise);
+      break;
+    case RESET:
+      log.debug("Resetting " + ctx.channel());
+      // a zero linger time makes close send a RST rather than a FIN
+      ctx.channel().config().setOption(ChannelOption.SO_LINGER, 0);
+      ctx.close();
+      promise.tryFailure(new ClosedChannelException());
+      break;
+    default:
+      ctx.write(response, promise);
+    }
+  }
+
+  /**
+   * @return the message with its checksum changed, or unchanged if it has
+   *         none
+   */
+  static String corruptChecksum(String encoded) {
+    int checksum = encoded.length() - 4;
+    if (checksum < 2 || !encoded.startsWith("AZ", checksum - 2)) {
+      return encoded;
+    }
+    int value;
+    try {
+      value = Integer.parseInt(encoded.substring(checksum), 16);
+    } catch (NumberFormatException ex) {
+      value = 0;
+    }
+    return encoded.substring(0, checksum) + String.format("%04X", (value + 1) & 0xFFFF);
+  }
+}
@@ -0,0 +1,32 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import com.circulation.SIP.messages.Message;
+
+/**
+ * Chooses the fault, if any, injected into the response to a request by
+ * {@link FaultInjectionHandler}.
+ */
+public interface FaultPolicy {
+  /**
+   * Called on the channel's event loop as the request is read.
+   *
+   * @return the fault to inject, or null to respond normally
+   */
+  Fault select(Message request);
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+/**
+ * When responses written to a connection are flushed to the socket.
+ */
+public enum FlushPolicy {
+  /**
+   * Flush every response as soon as it is written.
+   */
+  IMMEDIATE,
+  /**
+   * Flush once per batch of requests read from the socket (the default).
+   */
+  READ_BATCH,
+  /**
+   * Consolidate flushes with Netty's FlushConsolidationHandler: at most one
+   * flush per read batch, and flushes outside a read, e.g. of pipelined
+   * responses, are deferred to the next event loop iteration or a
+   * configured number of flushes, whichever comes first.
+   */
+  CONSOLIDATED,
+  /**
+   * Delay each flush by a configured time, or until a configured number
+   * of bytes is waiting to be written, to gather several responses into
+   * one socket write.
+   */
+  TIMED
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+/**
+ * Closes connections on which nothing has been read, or written, for the
+ * configured number of seconds (0 disables either check).
+ *
+ * The timeout period advertised in ACS Status is how long the self check
+ * unit waits for a response, and is left as the driver sets it. Idle
+ * timeouts aligned with it are {@link #TIMEOUT_PERIOD_MULTIPLE} times that
+ * period, see {@link #idleSeconds(int)}, so a unit is never dropped while
+ * it is still waiting for, or retrying, a request.
+ */
+public class IdleConnectionHandler extends IdleStateHandler {
+  private static final Log log = LogFactory.getLog(IdleConnectionHandler.class);
+
+  /**
+   * Number of advertised timeout periods a connection may stay idle.
+   */
+  public static final int TIMEOUT_PERIOD_MULTIPLE = 3;
+
+  private static final int UNKNOWN_TIMEOUT_PERIOD = 999;
+
+  public IdleConnectionHandler(int readerIdleSeconds, int writerIdleSeconds) {
+    super(readerIdleSeconds, writerIdleSeconds, 0, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @param timeoutPeriod ACS Status timeout period, in tenths of a second
+   * @return {@link #TIMEOUT_PERIOD_MULTIPLE} times the timeout period in
+   *         whole seconds, rounded up, or 0 when the period is 999
+   *         (unknown) or not positive
+   */
+  public static int idleSeconds(int timeoutPeriod) {
+    if (timeoutPeriod <= 0 || timeoutPeriod >= UNKNOWN_TIMEOUT_PERIOD) {
+      return 0;
+    }
+    return (timeoutPeriod * TIMEOUT_PERIOD_MULTIPLE + 9) / 10;
+  }
+
+  @Override
+  protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) throws Exception {
+    log.debug("Closing idle connection " + ctx.channel() + " (" + evt.state() + ")");
+    ctx.close();
+  }
+}
@@ -0,0 +1,186 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distribution of the latency injected into responses.
+ *
+ * Distributions can be written as text, in milliseconds:
+ *
+ * <pre>
+ * fixed:50
+ * uniform:10,200
+ * lognormal:40,0.6               median, standard deviation of the log
+ * histogram:10=500,50=300,1000=5 bucket upper bound = observed count
+ * </pre>
+ */
+public abstract class LatencyDistribution {
+  private static final long MICROS_PER_MILLI = TimeUnit.MILLISECONDS.toMicros(1);
+
+  /**
+   * @return the next latency in microseconds
+   */
+  public abstract long nextMicros(Random random);
+
+  public static LatencyDistribution fixed(final double millis) {
+    final long micros = toMicros(millis);
+    return new LatencyDistribution() {
+      @Override
+      public long nextMicros(Random random) {
+        return micros;
+      }
+
+      @Override
+      public String toString() {
+        return "fixed:" + millis;
+      }
+    };
+  }
+
+  public static LatencyDistribution uniform(final double minMillis, final double maxMillis) {
+    if (maxMillis < minMillis) {
+      throw new IllegalArgumentException("uniform maximum " + maxMillis + " below minimum " + minMillis);
+    }
+    return new LatencyDistribution() {
+      @Override
+      public long nextMicros(Random random) {
+        return toMicros(minMillis + random.nextDouble() * (maxMillis - minMillis));
+      }
+
+      @Override
+      public String toString() {
+        return "uniform:" + minMillis + "," + maxMillis;
+      }
+    };
+  }
+
+  /**
+   * Long tailed latencies, as typically observed from a database or remote
+   * service.
+   *
+   * @param sigma standard deviation of the logarithm of the latency
+   */
+  public static LatencyDistribution logNormal(final double medianMillis, final double sigma) {
+    if (medianMillis <= 0) {
+      throw new IllegalArgumentException("lognormal median must be positive");
+    }
+    final double mu = Math.log(medianMillis);
+    return new LatencyDistribution() {
+      @Override
+      public long nextMicros(Random random) {
+        return toMicros(Math.exp(mu + sigma * random.nextGaussian()));
+      }
+
+      @Override
+      public String toString() {
+        return "lognormal:" + medianMillis + "," + sigma;
+      }
+    };
+  }
+
+  /**
+   * Replays a recorded latency histogram. A bucket is chosen in proportion
+   * to its count and the latency is spread uniformly across it.
+   *
+   * @param upperMillis ascending upper bounds of the buckets, the first
+   *                    bucket starting at 0
+   * @param counts      observations in each bucket
+   */
+  public static LatencyDistribution histogram(final double[] upperMillis, final long[] counts) {
+    if (upperMillis.length == 0 || upperMillis.length != counts.length) {
+      throw new IllegalArgumentException("histogram needs one count per bucket");
+    }
+    final long[] cumulative = new long[counts.length];
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (i > 0 && upperMillis[i] <= upperMillis[i - 1]) {
+        throw new IllegalArgumentException("histogram buckets must be ascending");
+      }
+      total += counts[i];
+      cumulative[i] = total;
+    }
+    if (total <= 0) {
+      throw new IllegalArgumentException("histogram is empty");
+    }
+    final long observations = total;
+    return new LatencyDistribution() {
+      @Override
+      public long nextMicros(Random random) {
+        long sample = (long) (random.nextDouble() * observations);
+        int bucket = Arrays.binarySearch(cumulative, sample + 1);
+        if (bucket < 0) {
+          bucket = -bucket - 1;
+        }
+        double lower = bucket == 0 ? 0 : upperMillis[bucket - 1];
+        return toMicros(lower + random.nextDouble() * (upperMillis[bucket] - lower));
+      }
+
+      @Override
+      public String toString() {
+        StringBuilder text = new StringBuilder("histogram:");
+        for (int i = 0; i < upperMillis.length; i++) {
+          text.append(i == 0 ? "" : ",").append(upperMillis[i]).append('=').append(counts[i]);
+        }
+        return text.toString();
+      }
+    };
+  }
+
+  /**
+   * @throws IllegalArgumentException if the text is not a distribution
+   */
+  public static LatencyDistribution parse(String text) {
+    int colon = text.indexOf(':');
+    if (colon < 0) {
+      throw new IllegalArgumentException("Invalid latency distribution " + text);
+    }
+    String type = text.substring(0, colon).trim();
+    String[] args = text.substring(colon + 1).split(",");
+    try {
+      if (type.equals("fixed") && args.length == 1) {
+        return fixed(Double.parseDouble(args[0].trim()));
+      } else if (type.equals("uniform") && args.length == 2) {
+        return uniform(Double.parseDouble(args[0].trim()), Double.parseDouble(args[1].trim()));
+      } else if (type.equals("lognormal") && args.length == 2) {
+        return logNormal(Double.parseDouble(args[0].trim()), Double.parseDouble(args[1].trim()));
+      } else if (type.equals("histogram")) {
+        double[] upper = new double[args.length];
+        long[] counts = new long[args.length];
+        for (int i = 0; i < args.length; i++) {
+          String[] bucket = args[i].split("=");
+          if (bucket.length != 2) {
+            throw new IllegalArgumentException("Invalid histogram bucket " + args[i]);
+          }
+          upper[i] = Double.parseDouble(bucket[0].trim());
+          counts[i] = Long.parseLong(bucket[1].trim());
+        }
+        return histogram(upper, counts);
+      }
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Invalid latency distribution " + text, ex);
+    }
+    throw new IllegalArgumentException("Invalid latency distribution " + text);
+  }
+
+  private static long toMicros(double millis) {
+    return millis <= 0 ? 0 : (long) (millis * MICROS_PER_MILLI);
+  }
+}
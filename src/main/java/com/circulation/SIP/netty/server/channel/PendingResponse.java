@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import com.circulation.SIP.messages.Message;
+
+/**
+ * A pipelined request awaiting its turn to be answered. An error response
+ * to a frame that could not be decoded has no request.
+ */
+class PendingResponse {
+  private final Message request;
+  private Message response;
+  private boolean complete;
+
+  PendingResponse(Message request) {
+    this.request = request;
+  }
+
+  Message getRequest() {
+    return request;
+  }
+
+  Message getResponse() {
+    return response;
+  }
+
+  boolean isComplete() {
+    return complete;
+  }
+
+  void complete(Message response) {
+    this.response = response;
+    this.complete = true;
+  }
+}
@@ -16,76 +16,264 @@
  */
 package com.circulation.SIP.netty.server.channel;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.Queue;
 
-import com.circulation.SIP.exceptions.MessageNotUnderstood;
 import com.circulation.SIP.messages.ACSResend;
 import com.circulation.SIP.messages.Message;
 import com.circulation.SIP.messages.SCResend;
-import com.circulation.SIP.netty.server.driver.Driver;
 import com.circulation.SIP.netty.server.driver.DriverFactory;
+import com.circulation.SIP.netty.server.driver.DriverLifecycle;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.EventExecutorGroup;
 
 /**
 * Handles a server-side channel.
+*
+* By default each request is processed on the channel's event loop as it is
+* read. With pipelining enabled, requests are processed concurrently on an
+* offload executor, up to a window of outstanding requests per connection,
+* and the responses are written back in the order the requests arrived.
 */
 @Sharable
 public class SIPChannelHandler extends SimpleChannelInboundHandler<Message> {
     private static Log logger = LogFactory.getLog(SIPChannelHandler.class);
 
-	private DriverFactory driverFactory;
+	private final DriverLifecycle drivers;
+	private EventExecutorGroup offloadExecutor;
+	private int pipelineWindow;
+	private FlushPolicy flushPolicy = FlushPolicy.READ_BATCH;
 	
 	public SIPChannelHandler(DriverFactory driverFactory)
 	{
-		this.driverFactory = driverFactory;
+		this.drivers = new DriverLifecycle(driverFactory);
 	}
 
+    /**
+     * Enables pipelined processing.
+     *
+     * Requests from one connection may then be processed concurrently, so
+     * only clients that do not depend on the side effects of one request
+     * being visible to the next should pipeline.
+     *
+     * @param offloadExecutor executor the driver is called on
+     * @param pipelineWindow  maximum outstanding requests per connection;
+     *                        reading pauses while the window is full
+     */
+    public void setPipelining(EventExecutorGroup offloadExecutor, int pipelineWindow) {
+        this.offloadExecutor = offloadExecutor;
+        this.pipelineWindow = pipelineWindow;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * With {@link FlushPolicy#IMMEDIATE} every response is flushed as it is
+     * written, otherwise responses are flushed at the end of each read
+     * batch and any batching beyond that is left to the pipeline.
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    public boolean isPipelining() {
+        return offloadExecutor != null && pipelineWindow > 0;
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ctx.channel().attr(SIPSession.KEY).setIfAbsent(new SIPSession());
 //        ctx.flush();
     }
 
-    private Message process(Message request) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException, MessageNotUnderstood, InstantiationException {
-        Driver driver = driverFactory.getDriver();
+    public DriverLifecycle getDriverLifecycle() {
+        return drivers;
+    }
 
-        Method[] handlerMethods = driver.getClass().getMethods();
+    /**
+     * Closes the drivers kept by this handler, see {@link DriverLifecycle#close()}.
+     */
+    public void close() {
+        drivers.close();
+    }
 
-        for (Method handlerMethod : handlerMethods) {
-            Class<?> types[] = handlerMethod.getParameterTypes();
-            if (types.length == 1) {
-                if (request.getClass() == types[0]) {
-                    return (Message) handlerMethod.invoke(driver, new Object[] { request });
-                }
-            }
-        }
-        throw new MessageNotUnderstood();
+    private Message process(Channel channel, Message request) throws Exception {
+        return drivers.invoke(channel, request);
     }
 
-    
-	Message response = null;
-    
     @Override
     public void channelRead0(ChannelHandlerContext ctx, Message request) throws Exception {
-        if (!(request instanceof ACSResend)) {
-        	response = process(request);
-        } else if (response == null) {
-        	response = new SCResend();
+        final SIPSession session = SIPSession.get(ctx.channel());
+        session.requestStarted();
+        if (isPipelining()) {
+            enqueue(ctx, session, request);
+            return;
         }
+        boolean written = false;
+        try {
+            Message response;
+            if (!(request instanceof ACSResend)) {
+            	response = process(ctx.channel(), request);
+            	session.setLastResponse(response);
+            } else {
+            	response = resendResponse(session);
+            }
 
-        response.setSequenceCharacter(request.getSequenceCharacter());
+            response.setSequenceCharacter(request.getSequenceCharacter());
         
-        ChannelFuture future = ctx.write(response);
+            write(ctx, session, response);
+            written = true;
+        } finally {
+            if (!written && session.requestCompleted()) {
+                ctx.close();
+            }
+        }
+    }
+
+    private Message resendResponse(SIPSession session) {
+        Message response = session.getLastResponse();
+        return response == null ? new SCResend() : response;
+    }
+
+    private void write(ChannelHandlerContext ctx, final SIPSession session, Message response) {
+        ChannelFuture future = flushPolicy == FlushPolicy.IMMEDIATE ? ctx.writeAndFlush(response) : ctx.write(response);
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (session.requestCompleted()) {
+                    future.channel().close();
+                }
+            }
+        });
+    }
+
+    private void enqueue(final ChannelHandlerContext ctx, final SIPSession session, final Message request) {
+        final PendingResponse pending = new PendingResponse(request);
+        session.getPendingResponses().add(pending);
+        updateAutoRead(ctx.channel(), session);
+        if (request instanceof ACSResend) {
+            // resolved against the last response once it reaches the head
+            pending.complete(null);
+            return;
+        }
+        offloadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Message response;
+                try {
+                    response = process(ctx.channel(), request);
+                } catch (Exception ex) {
+                    logger.error("Transient communications error", ex);
+                    response = new SCResend();
+                }
+                final Message result = response;
+                ctx.executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.complete(result);
+                        if (writeCompleted(ctx, session)) {
+                            scheduleFlush(ctx, session);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Flushes after the tasks already queued on the event loop have run, so
+     * responses completing together are flushed together.
+     */
+    private void scheduleFlush(final ChannelHandlerContext ctx, final SIPSession session) {
+        if (session.isFlushScheduled()) {
+            return;
+        }
+        session.setFlushScheduled(true);
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                session.setFlushScheduled(false);
+                ctx.flush();
+            }
+        });
+    }
+
+    /**
+     * Writes the completed responses at the head of the queue, stopping at
+     * the first one still being processed.
+     *
+     * @return true if anything was written
+     */
+    private boolean writeCompleted(ChannelHandlerContext ctx, SIPSession session) {
+        Queue<PendingResponse> queue = session.getPendingResponses();
+        boolean written = false;
+        PendingResponse head;
+        while ((head = queue.peek()) != null && head.isComplete()) {
+            queue.poll();
+            Message response;
+            if (head.getRequest() == null) {
+                // the error response to a frame that could not be decoded
+                ctx.write(head.getResponse()).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+                written = true;
+                continue;
+            }
+            if (head.getRequest() instanceof ACSResend) {
+                response = resendResponse(session);
+            } else {
+                response = head.getResponse();
+                session.setLastResponse(response);
+            }
+            response.setSequenceCharacter(head.getRequest().getSequenceCharacter());
+            write(ctx, session, response);
+            written = true;
+        }
+        if (written) {
+            updateAutoRead(ctx.channel(), session);
+        }
+        return written;
+    }
+
+    /**
+     * Reads from a connection only while its outbound buffer is below the
+     * high water mark and, when pipelining, its window has room, so a
+     * client that does not read its responses cannot make the server
+     * buffer an unbounded amount for it.
+     */
+    private void updateAutoRead(Channel channel, SIPSession session) {
+        boolean read = channel.isWritable()
+                && (!isPipelining() || session.getPendingResponses().size() < pipelineWindow);
+        if (channel.config().isAutoRead() != read) {
+            channel.config().setAutoRead(read);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        SIPSession session = SIPSession.get(ctx.channel());
+        if (session != null) {
+            if (!ctx.channel().isWritable()) {
+                session.writabilityPaused();
+            }
+            updateAutoRead(ctx.channel(), session);
+        }
+        super.channelWritabilityChanged(ctx);
     }
 
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (isPipelining()) {
+            // responses already completed within this read batch
+            writeCompleted(ctx, SIPSession.get(ctx.channel()));
+        }
         ctx.flush();
     }
 
@@ -96,13 +284,16 @@ public class SIPChannelHandler extends SimpleChannelInboundHandler<Message> {
     	} else {
 	    	logger.error("Transient communications error", cause);
 //	        cause.printStackTrace();
-	        try {
-	            ctx.write(new SCResend().encode(null));
-	            ctx.flush();
-	        } catch (Exception e1) {
-	        	logger.error("Transient communications error", e1);
-	            ctx.close();
+	        SIPSession session = SIPSession.get(ctx.channel());
+	        if (isPipelining() && session != null && !session.getPendingResponses().isEmpty()) {
+	            // answered after the responses to the requests read before it
+	            PendingResponse error = new PendingResponse(null);
+	            error.complete(new SCResend());
+	            session.getPendingResponses().add(error);
+	            updateAutoRead(ctx.channel(), session);
+	            return;
 	        }
+	        ctx.writeAndFlush(new SCResend()).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
 	    }
     }
 }
\ No newline at end of file
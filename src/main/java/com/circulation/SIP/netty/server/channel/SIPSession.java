@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.circulation.SIP.messages.Message;
+
+import io.netty.channel.Channel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.util.AttributeKey;
+
+/**
+ * Per connection state, attached to the channel as an attribute.
+ */
+public class SIPSession {
+  public static final AttributeKey<SIPSession> KEY = AttributeKey.valueOf(SIPSession.class.getName());
+
+  private final long created = System.currentTimeMillis();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile boolean closeWhenIdle;
+  private volatile Message lastResponse;
+  private volatile long writabilityPauses;
+  // only accessed from the channel's event loop
+  private final Queue<PendingResponse> pendingResponses = new ArrayDeque<PendingResponse>();
+  private boolean flushScheduled;
+
+  public static SIPSession get(Channel channel) {
+    return channel.attr(KEY).get();
+  }
+
+  public long getCreated() {
+    return created;
+  }
+
+  /**
+   * @return number of requests read whose responses have not yet been
+   *         written to the socket
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  public boolean isIdle() {
+    return inFlight.get() == 0;
+  }
+
+  public void requestStarted() {
+    inFlight.incrementAndGet();
+  }
+
+  /**
+   * @return true if the session is now idle and has been asked to close
+   */
+  public boolean requestCompleted() {
+    return inFlight.decrementAndGet() == 0 && closeWhenIdle;
+  }
+
+  /**
+   * @return the response to repeat if the client asks for a resend
+   */
+  public Message getLastResponse() {
+    return lastResponse;
+  }
+
+  public void setLastResponse(Message lastResponse) {
+    this.lastResponse = lastResponse;
+  }
+
+  /**
+   * @return number of times reading was paused because the client was not
+   *         reading its responses fast enough
+   */
+  public long getWritabilityPauses() {
+    return writabilityPauses;
+  }
+
+  void writabilityPaused() {
+    // only called from the channel's event loop
+    writabilityPauses++;
+  }
+
+  /**
+   * Safe to call from any thread, as it reads only the channel's public
+   * writability state. The count is exact except while the writability
+   * lags behind a crossing of a water mark, when that water mark is
+   * returned.
+   *
+   * @return bytes written to the connection but not yet accepted by the
+   *         socket
+   */
+  public static long getQueuedBytes(Channel channel) {
+    if (!channel.isActive()) {
+      return 0;
+    }
+    WriteBufferWaterMark waterMark = channel.config().getWriteBufferWaterMark();
+    if (channel.isWritable()) {
+      return waterMark.high() - channel.bytesBeforeUnwritable();
+    }
+    return waterMark.low() + channel.bytesBeforeWritable();
+  }
+
+  Queue<PendingResponse> getPendingResponses() {
+    return pendingResponses;
+  }
+
+  boolean isFlushScheduled() {
+    return flushScheduled;
+  }
+
+  void setFlushScheduled(boolean flushScheduled) {
+    this.flushScheduled = flushScheduled;
+  }
+
+  public boolean isCloseWhenIdle() {
+    return closeWhenIdle;
+  }
+
+  public void setCloseWhenIdle(boolean closeWhenIdle) {
+    this.closeWhenIdle = closeWhenIdle;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+/**
+ * Keeps track of the open sessions of one listener and drains them on
+ * shutdown: idle sessions are closed at once, busy ones as soon as their
+ * last response has been written.
+ */
+@Sharable
+public class SessionTracker extends ChannelInboundHandlerAdapter {
+  private final ChannelGroup sessions;
+  private volatile boolean draining;
+
+  public SessionTracker(String name) {
+    this.sessions = new DefaultChannelGroup(name, GlobalEventExecutor.INSTANCE);
+  }
+
+  public ChannelGroup getSessions() {
+    return sessions;
+  }
+
+  public boolean isDraining() {
+    return draining;
+  }
+
+  /**
+   * @return number of sessions with requests still being processed
+   */
+  public int getBusySessionCount() {
+    int busy = 0;
+    for (Channel channel : sessions) {
+      SIPSession session = SIPSession.get(channel);
+      if (session != null && !session.isIdle()) {
+        busy++;
+      }
+    }
+    return busy;
+  }
+
+  /**
+   * @return bytes queued for writing across all sessions
+   */
+  public long getQueuedBytes() {
+    long queued = 0;
+    for (Channel channel : sessions) {
+      queued += SIPSession.getQueuedBytes(channel);
+    }
+    return queued;
+  }
+
+  /**
+   * @return number of sessions not being read from because their client is
+   *         not keeping up with its responses
+   */
+  public int getUnwritableSessionCount() {
+    int unwritable = 0;
+    for (Channel channel : sessions) {
+      if (!channel.isWritable()) {
+        unwritable++;
+      }
+    }
+    return unwritable;
+  }
+
+  /**
+   * Accepts sessions again after {@link #drain()}, for a listener that is
+   * started again.
+   */
+  public void reset() {
+    draining = false;
+  }
+
+  public void drain() {
+    draining = true;
+    for (Channel channel : sessions) {
+      closeWhenIdle(channel);
+    }
+  }
+
+  private void closeWhenIdle(Channel channel) {
+    SIPSession session = SIPSession.get(channel);
+    if (session == null || session.isIdle()) {
+      channel.close();
+    } else {
+      session.setCloseWhenIdle(true);
+      // the last response may have completed in the meantime
+      if (session.isIdle()) {
+        channel.close();
+      }
+    }
+  }
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    ctx.channel().attr(SIPSession.KEY).set(new SIPSession());
+    sessions.add(ctx.channel());
+    if (draining) {
+      ctx.close();
+      return;
+    }
+    super.channelActive(ctx);
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts and times the TLS handshakes of a listener.
+ */
+public class SslHandshakeStatistics {
+  private final AtomicLong handshakes = new AtomicLong();
+  private final AtomicLong resumed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  void record(long nanos, boolean success, boolean resumedSession) {
+    if (!success) {
+      failed.incrementAndGet();
+      return;
+    }
+    handshakes.incrementAndGet();
+    if (resumedSession) {
+      resumed.incrementAndGet();
+    }
+    totalNanos.addAndGet(nanos);
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /**
+   * @return number of successful handshakes, including resumed sessions
+   */
+  public long getHandshakeCount() {
+    return handshakes.get();
+  }
+
+  public long getResumedCount() {
+    return resumed.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  public double getAverageMillis() {
+    long count = handshakes.get();
+    return count == 0 ? 0 : totalNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  public double getMaxMillis() {
+    return maxNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("handshakes=%d resumed=%d failed=%d avg=%.2fms max=%.2fms",
+        getHandshakeCount(), getResumedCount(), getFailedCount(), getAverageMillis(), getMaxMillis());
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import javax.net.ssl.SSLSession;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+
+/**
+ * Times the TLS handshake of one connection from channel activation and
+ * removes itself once the handshake has completed.
+ */
+public class SslHandshakeTimer extends ChannelInboundHandlerAdapter {
+  private final SslHandshakeStatistics statistics;
+  private long startNanos;
+  private long startMillis;
+
+  public SslHandshakeTimer(SslHandshakeStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    startNanos = System.nanoTime();
+    startMillis = System.currentTimeMillis();
+    super.channelActive(ctx);
+  }
+
+  @Override
+  public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+    if (evt instanceof SslHandshakeCompletionEvent) {
+      long nanos = System.nanoTime() - startNanos;
+      boolean success = ((SslHandshakeCompletionEvent) evt).isSuccess();
+      boolean resumed = false;
+      SslHandler ssl = ctx.pipeline().get(SslHandler.class);
+      if (success && ssl != null) {
+        // a resumed session was created by an earlier connection
+        SSLSession session = ssl.engine().getSession();
+        resumed = session.getCreationTime() < startMillis;
+      }
+      statistics.record(nanos, success, resumed);
+      ctx.pipeline().remove(this);
+    }
+    super.userEventTriggered(ctx, evt);
+  }
+}
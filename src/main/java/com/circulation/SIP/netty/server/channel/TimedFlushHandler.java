@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * Holds back flushes for up to a fixed delay so responses written close
+ * together leave in one socket write. A flush goes out at once when the
+ * bytes written since the last flush reach the size limit, and pending
+ * data is flushed before the channel closes.
+ *
+ * @see FlushPolicy#TIMED
+ */
+public class TimedFlushHandler extends ChannelDuplexHandler {
+  private final long delayNanos;
+  private final int maxPendingBytes;
+
+  private long pendingBytes;
+  private ScheduledFuture<?> scheduledFlush;
+
+  /**
+   * @param delayMicros     longest a flush is held back
+   * @param maxPendingBytes bytes waiting to be written that trigger an
+   *                        immediate flush
+   */
+  public TimedFlushHandler(long delayMicros, int maxPendingBytes) {
+    this.delayNanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+    this.maxPendingBytes = maxPendingBytes;
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (msg instanceof ByteBuf) {
+      pendingBytes += ((ByteBuf) msg).readableBytes();
+    }
+    ctx.write(msg, promise);
+  }
+
+  @Override
+  public void flush(final ChannelHandlerContext ctx) throws Exception {
+    if (pendingBytes >= maxPendingBytes) {
+      flushNow(ctx);
+    } else if (scheduledFlush == null) {
+      scheduledFlush = ctx.executor().schedule(new Runnable() {
+        @Override
+        public void run() {
+          scheduledFlush = null;
+          flushNow(ctx);
+        }
+      }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void flushNow(ChannelHandlerContext ctx) {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+    pendingBytes = 0;
+    ctx.flush();
+  }
+
+  @Override
+  public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+    flushNow(ctx);
+    ctx.close(promise);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    if (scheduledFlush != null) {
+      flushNow(ctx);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import java.nio.charset.Charset;
+
+import com.circulation.SIP.netty.traffic.TrafficRecord;
+import com.circulation.SIP.netty.traffic.TrafficRecorder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Records the frames read from and the bytes written to one connection.
+ * It sits next to the frame decoder, so requests are recorded as whole
+ * frames and responses exactly as sent.
+ */
+public class TrafficRecordingHandler extends ChannelDuplexHandler {
+  private static final Charset ADDRESS_CHARSET = Charset.forName("UTF-8");
+
+  private final TrafficRecorder recorder;
+  private final int connection;
+
+  public TrafficRecordingHandler(TrafficRecorder recorder) {
+    this.recorder = recorder;
+    this.connection = recorder.nextConnection();
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    String address = String.valueOf(ctx.channel().remoteAddress());
+    recorder.record(TrafficRecord.Type.OPEN, connection, address.getBytes(ADDRESS_CHARSET));
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof ByteBuf) {
+      recorder.record(TrafficRecord.Type.REQUEST, connection, ByteBufUtil.getBytes((ByteBuf) msg));
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (msg instanceof ByteBuf) {
+      recorder.record(TrafficRecord.Type.RESPONSE, connection, ByteBufUtil.getBytes((ByteBuf) msg));
+    }
+    super.write(ctx, msg, promise);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    recorder.record(TrafficRecord.Type.CLOSE, connection, new byte[0]);
+    super.channelInactive(ctx);
+  }
+}
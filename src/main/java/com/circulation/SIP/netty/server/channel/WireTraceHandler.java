@@ -0,0 +1,116 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.circulation.SIP.annotations.PositionedField;
+import com.circulation.SIP.messages.Message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Logs the SIP frames read from and written to one connection, with the
+ * CO, AD and AC password fields masked.
+ *
+ * Only present in the pipeline of connections being traced. With a sample
+ * interval of n only every n-th request and every n-th response is logged;
+ * as responses are written in request order these are matching pairs.
+ */
+public class WireTraceHandler extends ChannelDuplexHandler {
+  private static final Log log = LogFactory.getLog(WireTraceHandler.class);
+
+  private static final Pattern PASSWORDS = Pattern.compile("(^|\\|)(CO|AD|AC)[^|\\r\\n]*");
+
+  /**
+   * Length of the command and fixed length fields of each message, after
+   * which the first variable field starts without a leading |.
+   */
+  private static final ClassValue<Integer> FIXED_LENGTH = new ClassValue<Integer>() {
+    @Override
+    protected Integer computeValue(Class<?> type) {
+      int length = 2;
+      for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          PositionedField positioned = field.getAnnotation(PositionedField.class);
+          if (positioned != null) {
+            length = Math.max(length, positioned.end() + 1);
+          }
+        }
+      }
+      return length;
+    }
+  };
+
+  private final int sampleInterval;
+  private final Charset charset;
+  private int reads;
+  private int writes;
+
+  /**
+   * @param sampleInterval log one in this many frames, 1 to log them all
+   */
+  public WireTraceHandler(int sampleInterval, Charset charset) {
+    this.sampleInterval = Math.max(1, sampleInterval);
+    this.charset = charset;
+  }
+
+  public int getSampleInterval() {
+    return sampleInterval;
+  }
+
+  static String redact(String frame) {
+    int start = frame.length();
+    if (frame.length() >= 2) {
+      Class<? extends Message> type = Message.getMessageClass(frame.substring(0, 2));
+      // fields of an unknown command are masked from just after its code
+      start = Math.min(frame.length(), type == null ? 2 : FIXED_LENGTH.get(type));
+    }
+    return frame.substring(0, start) + PASSWORDS.matcher(frame.substring(start)).replaceAll("$1$2****");
+  }
+
+  private void trace(ChannelHandlerContext ctx, String direction, Object msg) {
+    if (msg instanceof ByteBuf && log.isInfoEnabled()) {
+      String frame = ((ByteBuf) msg).toString(charset).trim();
+      log.info(ctx.channel() + " " + direction + " " + redact(frame));
+    }
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (reads++ % sampleInterval == 0) {
+      trace(ctx, "READ", msg);
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (writes++ % sampleInterval == 0) {
+      trace(ctx, "WRITE", msg);
+    }
+    super.write(ctx, msg, promise);
+  }
+}
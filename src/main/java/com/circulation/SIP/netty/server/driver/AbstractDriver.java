@@ -37,68 +37,99 @@ import com.circulation.SIP.netty.server.driver.operation.RenewOperation;
 import com.circulation.SIP.netty.server.driver.operation.RequestResendOperation;
 import com.circulation.SIP.netty.server.driver.operation.StatusOperation;
 import com.circulation.SIP.types.enumerations.ProtocolVersion;
+import com.circulation.SIP.types.flagfields.SupportedMessages;
 
 public abstract class AbstractDriver implements Driver {
 
+	/**
+	 * Supported messages flags of each driver class, worked out once from
+	 * the operation interfaces it implements.
+	 */
+	private static final ClassValue<SupportedMessages> SUPPORTED_MESSAGES = new ClassValue<SupportedMessages>() {
+		@Override
+		protected SupportedMessages computeValue(Class<?> type) {
+			SupportedMessages supported = new SupportedMessages();
+			supported.setBlockPatron(BlockPatronOperation.class.isAssignableFrom(type));
+			supported.setCheckIn(CheckInOperation.class.isAssignableFrom(type));
+			supported.setCheckOut(CheckOutOperation.class.isAssignableFrom(type));
+			supported.setEndPatronSession(EndPatronSessionOperation.class.isAssignableFrom(type));
+			supported.setFeePaid(FeePaidOperation.class.isAssignableFrom(type));
+			supported.setHold(HoldOperation.class.isAssignableFrom(type));
+			supported.setItemInformation(ItemInformationOperation.class.isAssignableFrom(type));
+			supported.setItemStatusUpdate(ItemStatusUpdateOperation.class.isAssignableFrom(type));
+			supported.setLogin(LoginOperation.class.isAssignableFrom(type));
+			supported.setPatronEnable(PatronEnableOperation.class.isAssignableFrom(type));
+			supported.setPatronInformation(PatronInformationOperation.class.isAssignableFrom(type));
+			supported.setPatronStatusRequest(PatronStatusOperation.class.isAssignableFrom(type));
+			supported.setRenew(RenewOperation.class.isAssignableFrom(type));
+			supported.setRenewAll(RenewAllOperation.class.isAssignableFrom(type));
+			supported.setRequestScAcsResend(RequestResendOperation.class.isAssignableFrom(type));
+			supported.setScAcsStatus(StatusOperation.class.isAssignableFrom(type));
+			return supported;
+		}
+	};
+
+	/**
+	 * ACS Status template of each driver class, shared by its instances so
+	 * it is not built again for every request scoped driver.
+	 */
+	private static final ClassValue<StatusTemplate> STATUS_TEMPLATES = new ClassValue<StatusTemplate>() {
+		@Override
+		protected StatusTemplate computeValue(Class<?> type) {
+			return new StatusTemplate();
+		}
+	};
+
+	private static final class StatusTemplate {
+		private volatile ACSStatus status;
+	}
+
 	@Override
 	public final ACSStatus Status(SCStatus msg) {
-      ACSStatus response = new ACSStatus(); 
-      if (this instanceof BlockPatronOperation) {
-      	response.getSupportedMessages().setBlockPatron(true);
-      }
-      if (this instanceof CheckInOperation) {
-	      response.getSupportedMessages().setCheckIn(true);
-      }
-      if (this instanceof CheckOutOperation) {
-	      response.getSupportedMessages().setCheckOut(true);
-		  }
-      if (this instanceof EndPatronSessionOperation) {
-	        response.getSupportedMessages().setEndPatronSession(true);
-		  }
-      if (this instanceof FeePaidOperation) {
-	        response.getSupportedMessages().setFeePaid(true);
-	    }
-      if (this instanceof HoldOperation) {
-	        response.getSupportedMessages().setHold(true);
-	    }
-		  if (this instanceof ItemInformationOperation) {
-	        response.getSupportedMessages().setItemInformation(true);
-    	}
-		  if (this instanceof ItemStatusUpdateOperation) {
-	        response.getSupportedMessages().setItemStatusUpdate(true);
-	    }
-	    if (this instanceof LoginOperation) {
-	        response.getSupportedMessages().setLogin(true);
-	    }
-	    if (this instanceof PatronEnableOperation) {
-	        response.getSupportedMessages().setPatronEnable(true);
-	    }
-	    if (this instanceof PatronInformationOperation) {
-	        response.getSupportedMessages().setPatronInformation(true);
-	    }
-	    if (this instanceof PatronStatusOperation) {
-	        response.getSupportedMessages().setPatronStatusRequest(true);
-	    }
-	    if (this instanceof RenewOperation) {
-	        response.getSupportedMessages().setRenew(true);
-	    }
-	    if (this instanceof RenewAllOperation) {
-	        response.getSupportedMessages().setRenewAll(true);
-	    }
-	    if (this instanceof RequestResendOperation) {
-	        response.getSupportedMessages().setRequestScAcsResend(true);
-	    }
-	    if (this instanceof StatusOperation) {
-	        response.getSupportedMessages().setScAcsStatus(true);
-    	}
-	    
-	    response.setDateTimeSync(new Date());
-	    response.setProtocolVersion(ProtocolVersion.VERSION_2_00);
-	    response.setRetriesAllowed(999);
-	    response.setTimeoutPeriod(999);
-      response.setOnlineStatus(true);
-		  return this.Status(response, msg);
+		StatusTemplate cached = STATUS_TEMPLATES.get(this.getClass());
+		ACSStatus template = cached.status;
+		if (template == null) {
+			template = new ACSStatus();
+			setSupportedMessages(template, this.getClass());
+			template.setProtocolVersion(ProtocolVersion.VERSION_2_00);
+			template.setRetriesAllowed(999);
+			template.setTimeoutPeriod(999);
+			template.setOnlineStatus(true);
+			this.initStatus(template);
+			cached.status = template;
+		}
+		ACSStatus response = (ACSStatus) template.clone();
+		response.setDateTimeSync(new Date());
+		return this.Status(response, msg);
+	}
+
+	// the setter is deprecated in favour of changing the flags in place,
+	// but the flags are worked out once per class and copied in whole
+	@SuppressWarnings("deprecation")
+	private static void setSupportedMessages(ACSStatus status, Class<?> type) {
+		status.setSupportedMessages((SupportedMessages) SUPPORTED_MESSAGES.get(type).clone());
 	}
-	
+
+	/**
+	 * Sets the fields of the ACS Status response that stay the same from
+	 * one SC Status to the next. Called once for the driver class, on
+	 * whichever instance answers first, and again after
+	 * {@link #invalidateStatus()}.
+	 */
+	protected void initStatus(ACSStatus status) {
+	}
+
+	/**
+	 * Discards the fields set by {@link #initStatus(ACSStatus)} for every
+	 * instance of the driver class, e.g. when the driver goes offline or
+	 * comes back online.
+	 */
+	protected void invalidateStatus() {
+		STATUS_TEMPLATES.get(this.getClass()).status = null;
+	}
+
+	/**
+	 * Completes the ACS Status response to one SC Status request.
+	 */
 	abstract public ACSStatus Status(ACSStatus status, SCStatus msg);
 }
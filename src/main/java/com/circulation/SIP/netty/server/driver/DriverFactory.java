@@ -16,6 +16,67 @@
  */
 package com.circulation.SIP.netty.server.driver;
 
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Creates the drivers that answer requests. How long a driver is used for
+ * is given by {@link #getScope()}; factories that only implement
+ * {@link #getDriver()} get a new driver for every request.
+ */
 public interface DriverFactory {
 	Driver getDriver();
+
+	default DriverScope getScope() {
+		return DriverScope.REQUEST;
+	}
+
+	/**
+	 * @return maximum number of drivers in use at once with
+	 *         {@link DriverScope#POOLED}; further requests wait for one to
+	 *         be returned, see {@link #getPoolTimeout()}
+	 */
+	default int getPoolSize() {
+		return Runtime.getRuntime().availableProcessors() * 2;
+	}
+
+	/**
+	 * @return milliseconds a request waits for a pooled driver before it
+	 *         fails; requests dispatched on an event loop do not wait
+	 */
+	default long getPoolTimeout() {
+		return 5000;
+	}
+
+	/**
+	 * @return interceptors wrapped around every driver operation, outermost
+	 *         first; read once when the factory is put into service
+	 */
+	default List<DriverInterceptor> getInterceptors() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Called once for each driver before it answers its first request.
+	 */
+	default void initDriver(Driver driver) throws Exception {
+	}
+
+	/**
+	 * Called once for each driver when it goes out of scope. Closes drivers
+	 * that are {@link AutoCloseable}.
+	 */
+	default void closeDriver(Driver driver) throws Exception {
+		if (driver instanceof AutoCloseable) {
+			((AutoCloseable) driver).close();
+		}
+	}
+
+	/**
+	 * Called when a server the factory serves stops, after the drivers it
+	 * kept have been closed. Releases what the factory itself holds, such
+	 * as background threads; may be called more than once.
+	 */
+	default void close() throws Exception {
+	}
 }
@@ -0,0 +1,42 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver;
+
+import com.circulation.SIP.messages.Message;
+
+/**
+ * Wraps the driver operations with cross-cutting behaviour such as access
+ * checks, caching or metrics.
+ *
+ * Interceptors are returned by {@link DriverFactory#getInterceptors()} and
+ * linked into a fixed chain once per factory. An interceptor may answer a
+ * request itself, or pass it, possibly changed, to
+ * {@link Invocation#proceed(Driver, Message)} and inspect the response.
+ * Interceptors are shared by all connections and must be thread safe.
+ */
+public interface DriverInterceptor {
+	Message intercept(Driver driver, Message request, Invocation next) throws Exception;
+
+	/**
+	 * @return true if the interceptor may wait for other requests, so the
+	 *         server must process requests off its event loops, see
+	 *         {@link com.circulation.SIP.netty.server.channel.SIPChannelHandler#setPipelining}
+	 */
+	default boolean isOffloadRequired() {
+		return false;
+	}
+}
@@ -0,0 +1,263 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.circulation.SIP.messages.Message;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+
+/**
+ * Hands out the drivers of a {@link DriverFactory} according to its
+ * {@link DriverScope}, and initialises and closes them through the factory.
+ *
+ * Every {@link #acquire(Channel)} must be matched by a
+ * {@link #release(Driver)} once the request has been answered;
+ * {@link #invoke(Channel, Message)} does both around the factory's
+ * interceptor chain.
+ */
+public class DriverLifecycle {
+	private static final Log log = LogFactory.getLog(DriverLifecycle.class);
+
+	private static final AttributeKey<Driver> CONNECTION_DRIVER = AttributeKey.valueOf(DriverLifecycle.class.getName() + ".driver");
+
+	private final DriverFactory factory;
+	private final DriverScope scope;
+	private volatile Driver singleton;
+	private final ConcurrentLinkedQueue<Driver> idle = new ConcurrentLinkedQueue<Driver>();
+	private final Semaphore permits;
+	private volatile boolean closed;
+	private final Invocation chain;
+	private final boolean offloadRequired;
+
+	public DriverLifecycle(DriverFactory factory) {
+		this.factory = factory;
+		this.scope = factory.getScope() == null ? DriverScope.REQUEST : factory.getScope();
+		this.permits = scope == DriverScope.POOLED ? new Semaphore(Math.max(1, factory.getPoolSize())) : null;
+		List<DriverInterceptor> interceptors = factory.getInterceptors();
+		this.chain = link(interceptors);
+		this.offloadRequired = offloadRequired(interceptors);
+	}
+
+	private static boolean offloadRequired(List<DriverInterceptor> interceptors) {
+		if (interceptors != null) {
+			for (DriverInterceptor interceptor : interceptors) {
+				if (interceptor.isOffloadRequired()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Links the interceptors into a chain ending in the driver operation,
+	 * so a call is a series of direct calls. Without interceptors the chain
+	 * is just the operation dispatch.
+	 */
+	private static Invocation link(List<DriverInterceptor> interceptors) {
+		Invocation chain = OperationDispatcher.INSTANCE;
+		if (interceptors != null) {
+			for (int i = interceptors.size() - 1; i >= 0; i--) {
+				chain = new InterceptedInvocation(interceptors.get(i), chain);
+			}
+		}
+		return chain;
+	}
+
+	private static final class InterceptedInvocation implements Invocation {
+		private final DriverInterceptor interceptor;
+		private final Invocation next;
+
+		InterceptedInvocation(DriverInterceptor interceptor, Invocation next) {
+			this.interceptor = interceptor;
+			this.next = next;
+		}
+
+		@Override
+		public Message proceed(Driver driver, Message request) throws Exception {
+			return interceptor.intercept(driver, request, next);
+		}
+	}
+
+	/**
+	 * Answers a request with a driver of the right scope.
+	 *
+	 * @throws com.circulation.SIP.exceptions.MessageNotUnderstood if the
+	 *         driver has no operation for the request
+	 * @throws IllegalStateException if an interceptor requires offloading
+	 *         and the request is processed on the channel's event loop
+	 */
+	public Message invoke(Channel channel, Message request) throws Exception {
+		if (offloadRequired && channel != null && channel.eventLoop().inEventLoop()) {
+			throw new IllegalStateException("The interceptors of " + factory + " must not be called on an event loop");
+		}
+		Driver driver = acquire(channel);
+		try {
+			return chain.proceed(driver, request);
+		} finally {
+			release(driver);
+		}
+	}
+
+	public DriverFactory getFactory() {
+		return factory;
+	}
+
+	public DriverScope getScope() {
+		return scope;
+	}
+
+	/**
+	 * @return true if an interceptor of the factory requires requests to be
+	 *         processed off the event loops
+	 */
+	public boolean isOffloadRequired() {
+		return offloadRequired;
+	}
+
+	/**
+	 * @param channel connection the request was read from, used for
+	 *                {@link DriverScope#CONNECTION}
+	 */
+	public Driver acquire(Channel channel) throws Exception {
+		switch (scope) {
+		case SINGLETON:
+			Driver driver = singleton;
+			if (driver == null) {
+				synchronized (this) {
+					if (closed) {
+						throw new IllegalStateException("Drivers of " + factory + " have been closed");
+					}
+					if (singleton == null) {
+						singleton = create();
+					}
+					driver = singleton;
+				}
+			}
+			return driver;
+		case CONNECTION:
+			return connectionDriver(channel);
+		case POOLED:
+			// an event loop serves every channel it owns, so it must not
+			// block waiting for a driver
+			boolean onEventLoop = channel != null && channel.eventLoop().inEventLoop();
+			if (onEventLoop ? !permits.tryAcquire() : !permits.tryAcquire(factory.getPoolTimeout(), TimeUnit.MILLISECONDS)) {
+				throw new TimeoutException("No pooled driver of " + factory + " available");
+			}
+			try {
+				Driver pooled = idle.poll();
+				return pooled != null ? pooled : create();
+			} catch (Exception ex) {
+				permits.release();
+				throw ex;
+			}
+		default:
+			return create();
+		}
+	}
+
+	public void release(Driver driver) {
+		switch (scope) {
+		case REQUEST:
+			destroy(driver);
+			break;
+		case POOLED:
+			if (closed) {
+				destroy(driver);
+			} else {
+				idle.offer(driver);
+			}
+			permits.release();
+			break;
+		default:
+			break;
+		}
+	}
+
+	private Driver connectionDriver(final Channel channel) throws Exception {
+		Driver driver = channel.attr(CONNECTION_DRIVER).get();
+		if (driver != null) {
+			return driver;
+		}
+		driver = create();
+		Driver existing = channel.attr(CONNECTION_DRIVER).setIfAbsent(driver);
+		if (existing != null) {
+			// another pipelined request got there first
+			destroy(driver);
+			return existing;
+		}
+		channel.closeFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) {
+				destroy(channel.attr(CONNECTION_DRIVER).getAndSet(null));
+			}
+		});
+		return driver;
+	}
+
+	private Driver create() throws Exception {
+		Driver driver = factory.getDriver();
+		factory.initDriver(driver);
+		return driver;
+	}
+
+	private void destroy(Driver driver) {
+		if (driver == null) {
+			return;
+		}
+		try {
+			factory.closeDriver(driver);
+		} catch (Exception ex) {
+			log.warn("Failed to close driver " + driver, ex);
+		}
+	}
+
+	/**
+	 * Closes the singleton and idle pooled drivers, then the factory. Pooled
+	 * drivers still in use are closed as they are released; connection
+	 * drivers are closed with their connections.
+	 */
+	public void close() {
+		closed = true;
+		Driver driver;
+		synchronized (this) {
+			driver = singleton;
+			singleton = null;
+		}
+		destroy(driver);
+		while ((driver = idle.poll()) != null) {
+			destroy(driver);
+		}
+		try {
+			factory.close();
+		} catch (Exception ex) {
+			log.warn("Failed to close driver factory " + factory, ex);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver;
+
+/**
+ * How long a driver obtained from a {@link DriverFactory} is used for.
+ */
+public enum DriverScope {
+	/**
+	 * One driver answers every request of the listener, concurrently when
+	 * requests are pipelined or come from several connections.
+	 */
+	SINGLETON,
+	/**
+	 * One driver per connection, closed with the connection. It may still
+	 * be called concurrently when the connection pipelines requests.
+	 */
+	CONNECTION,
+	/**
+	 * A new driver for every request, closed once it has answered.
+	 */
+	REQUEST,
+	/**
+	 * Drivers are borrowed from a bounded pool for one request at a time.
+	 */
+	POOLED
+}
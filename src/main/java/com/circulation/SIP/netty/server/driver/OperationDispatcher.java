@@ -0,0 +1,205 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.circulation.SIP.exceptions.MessageNotUnderstood;
+import com.circulation.SIP.messages.*;
+import com.circulation.SIP.netty.server.driver.operation.*;
+
+/**
+ * End of every call chain: calls the operation interface method matching
+ * the request class directly.
+ *
+ * Public single argument methods of a driver that are not part of an
+ * operation interface are still found by reflection, as before, with the
+ * lookup cached per driver and request class.
+ */
+final class OperationDispatcher implements Invocation {
+	static final OperationDispatcher INSTANCE = new OperationDispatcher();
+
+	private static final Map<Class<? extends Message>, Operation> OPERATIONS = new HashMap<Class<? extends Message>, Operation>();
+
+	private static final Method NOT_UNDERSTOOD;
+
+	/**
+	 * Calls the method of one operation interface.
+	 */
+	private static abstract class Operation implements Invocation {
+		final Class<?> type;
+
+		Operation(Class<?> type) {
+			this.type = type;
+		}
+	}
+
+	private static final ClassValue<ConcurrentMap<Class<?>, Method>> METHODS = new ClassValue<ConcurrentMap<Class<?>, Method>>() {
+		@Override
+		protected ConcurrentMap<Class<?>, Method> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<Class<?>, Method>();
+		}
+	};
+
+	static {
+		try {
+			NOT_UNDERSTOOD = Object.class.getMethod("toString");
+		} catch (NoSuchMethodException ex) {
+			throw new ExceptionInInitializerError(ex);
+		}
+		OPERATIONS.put(Bib.class, new Operation(BibOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((BibOperation) driver).Bib((Bib) request);
+			}
+		});
+		OPERATIONS.put(BlockPatron.class, new Operation(BlockPatronOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((BlockPatronOperation) driver).BlockPatron((BlockPatron) request);
+			}
+		});
+		OPERATIONS.put(CheckIn.class, new Operation(CheckInOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((CheckInOperation) driver).CheckIn((CheckIn) request);
+			}
+		});
+		OPERATIONS.put(CheckOut.class, new Operation(CheckOutOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((CheckOutOperation) driver).CheckOut((CheckOut) request);
+			}
+		});
+		OPERATIONS.put(EndPatronSession.class, new Operation(EndPatronSessionOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((EndPatronSessionOperation) driver).EndPatronSession((EndPatronSession) request);
+			}
+		});
+		OPERATIONS.put(FeePaid.class, new Operation(FeePaidOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((FeePaidOperation) driver).FeePaid((FeePaid) request);
+			}
+		});
+		OPERATIONS.put(Hold.class, new Operation(HoldOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((HoldOperation) driver).Hold((Hold) request);
+			}
+		});
+		OPERATIONS.put(ItemInformation.class, new Operation(ItemInformationOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((ItemInformationOperation) driver).ItemInformation((ItemInformation) request);
+			}
+		});
+		OPERATIONS.put(ItemStatusUpdate.class, new Operation(ItemStatusUpdateOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((ItemStatusUpdateOperation) driver).ItemStatusUpdate((ItemStatusUpdate) request);
+			}
+		});
+		OPERATIONS.put(Login.class, new Operation(LoginOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((LoginOperation) driver).Login((Login) request);
+			}
+		});
+		OPERATIONS.put(PatronEnable.class, new Operation(PatronEnableOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((PatronEnableOperation) driver).PatronEnable((PatronEnable) request);
+			}
+		});
+		OPERATIONS.put(PatronInformation.class, new Operation(PatronInformationOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((PatronInformationOperation) driver).PatronInformation((PatronInformation) request);
+			}
+		});
+		OPERATIONS.put(PatronStatusRequest.class, new Operation(PatronStatusOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((PatronStatusOperation) driver).PatronStatus((PatronStatusRequest) request);
+			}
+		});
+		OPERATIONS.put(Recall.class, new Operation(RecallOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((RecallOperation) driver).Recall((Recall) request);
+			}
+		});
+		OPERATIONS.put(RenewAll.class, new Operation(RenewAllOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((RenewAllOperation) driver).RenewAll((RenewAll) request);
+			}
+		});
+		OPERATIONS.put(Renew.class, new Operation(RenewOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return ((RenewOperation) driver).Renew((Renew) request);
+			}
+		});
+		OPERATIONS.put(SCStatus.class, new Operation(StatusOperation.class) {
+			@Override
+			public Message proceed(Driver driver, Message request) {
+				return driver.Status((SCStatus) request);
+			}
+		});
+	}
+
+	private OperationDispatcher() {
+	}
+
+	@Override
+	public Message proceed(Driver driver, Message request) throws Exception {
+		Operation operation = OPERATIONS.get(request.getClass());
+		if (operation != null && operation.type.isInstance(driver)) {
+			return operation.proceed(driver, request);
+		}
+		Method method = findMethod(driver.getClass(), request.getClass());
+		if (method == null) {
+			throw new MessageNotUnderstood();
+		}
+		return (Message) method.invoke(driver, request);
+	}
+
+	private static Method findMethod(Class<?> driverType, Class<?> requestType) {
+		ConcurrentMap<Class<?>, Method> methods = METHODS.get(driverType);
+		Method method = methods.get(requestType);
+		if (method == null) {
+			method = NOT_UNDERSTOOD;
+			for (Method handlerMethod : driverType.getMethods()) {
+				Class<?> types[] = handlerMethod.getParameterTypes();
+				if (types.length == 1 && types[0] == requestType && Message.class.isAssignableFrom(handlerMethod.getReturnType())) {
+					handlerMethod.setAccessible(true);
+					method = handlerMethod;
+					break;
+				}
+			}
+			methods.put(requestType, method);
+		}
+		return method == NOT_UNDERSTOOD ? null : method;
+	}
+}
@@ -0,0 +1,90 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Puts a {@link SingleFlightInterceptor} in front of the drivers of
+ * another factory. The server must pipeline requests:
+ *
+ * <pre>
+ * daemon = new SIPDaemon(name, ip, port, new SingleFlightDriverFactory(factory), strict);
+ * daemon.setPipelineWindow(window);
+ * </pre>
+ */
+public class SingleFlightDriverFactory implements DriverFactory {
+	private final DriverFactory factory;
+	private final SingleFlightInterceptor singleFlight;
+
+	public SingleFlightDriverFactory(DriverFactory factory) {
+		this(factory, new SingleFlightInterceptor());
+	}
+
+	public SingleFlightDriverFactory(DriverFactory factory, SingleFlightInterceptor singleFlight) {
+		this.factory = factory;
+		this.singleFlight = singleFlight;
+	}
+
+	public SingleFlightInterceptor getSingleFlight() {
+		return singleFlight;
+	}
+
+	@Override
+	public Driver getDriver() {
+		return factory.getDriver();
+	}
+
+	@Override
+	public DriverScope getScope() {
+		return factory.getScope();
+	}
+
+	@Override
+	public int getPoolSize() {
+		return factory.getPoolSize();
+	}
+
+	@Override
+	public long getPoolTimeout() {
+		return factory.getPoolTimeout();
+	}
+
+	@Override
+	public List<DriverInterceptor> getInterceptors() {
+		List<DriverInterceptor> interceptors = new ArrayList<DriverInterceptor>();
+		interceptors.add(singleFlight);
+		interceptors.addAll(factory.getInterceptors());
+		return interceptors;
+	}
+
+	@Override
+	public void initDriver(Driver driver) throws Exception {
+		factory.initDriver(driver);
+	}
+
+	@Override
+	public void closeDriver(Driver driver) throws Exception {
+		factory.closeDriver(driver);
+	}
+
+	@Override
+	public void close() throws Exception {
+		factory.close();
+	}
+}
@@ -0,0 +1,124 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.circulation.SIP.messages.ItemInformation;
+import com.circulation.SIP.messages.Message;
+import com.circulation.SIP.messages.PatronInformation;
+
+/**
+ * Coalesces identical Patron Information and Item Information requests
+ * that arrive while the same lookup is already running: only the first
+ * one reaches the driver and the others wait for, and get a copy of, its
+ * response. Other requests pass straight through.
+ *
+ * Waiting for another lookup would stall every connection of an event
+ * loop, so the interceptor requires a pipelining server, whose requests
+ * are processed by its offload executor; see {@link #isOffloadRequired()}.
+ *
+ * Requests are identical when every field that can change the answer
+ * matches, including the passwords, so a patron is never given a response
+ * validated against someone else's password.
+ */
+public class SingleFlightInterceptor implements DriverInterceptor {
+	private final ConcurrentMap<String, CompletableFuture<Message>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Message>>();
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	@Override
+	public Message intercept(Driver driver, Message request, Invocation next) throws Exception {
+		String key = keyOf(request);
+		if (key == null) {
+			return next.proceed(driver, request);
+		}
+		CompletableFuture<Message> flight = new CompletableFuture<Message>();
+		CompletableFuture<Message> existing = inFlight.putIfAbsent(key, flight);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			Message response = await(existing);
+			return response == null ? null : response.clone();
+		}
+		lookups.incrementAndGet();
+		try {
+			Message response = next.proceed(driver, request);
+			// waiters copy the stored response, which this caller never touches
+			flight.complete(response == null ? null : response.clone());
+			return response;
+		} catch (Throwable ex) {
+			flight.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			inFlight.remove(key, flight);
+		}
+	}
+
+	@Override
+	public boolean isOffloadRequired() {
+		return true;
+	}
+
+	private static Message await(CompletableFuture<Message> flight) throws Exception {
+		try {
+			return flight.get();
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	/**
+	 * @return identity of a request that may be coalesced, or null
+	 */
+	protected String keyOf(Message request) {
+		if (request instanceof PatronInformation) {
+			PatronInformation patron = (PatronInformation) request;
+			return "63|" + patron.getInstitutionId() + "|" + patron.getPatronIdentifier()
+					+ "|" + patron.getPatronPassword() + "|" + patron.getTerminalPassword()
+					+ "|" + patron.getSummary() + "|" + patron.getStartItem() + "|" + patron.getEndItem()
+					+ "|" + patron.getLanguage();
+		}
+		if (request instanceof ItemInformation) {
+			ItemInformation item = (ItemInformation) request;
+			return "17|" + item.getInstitutionId() + "|" + item.getItemIdentifier()
+					+ "|" + item.getTerminalPassword();
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of requests that went to the driver
+	 */
+	public long getLookupCount() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return number of requests answered from another request's lookup
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+}
@@ -0,0 +1,100 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver.scenario;
+
+import java.lang.reflect.Field;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.circulation.SIP.fields.Fields;
+import com.circulation.SIP.messages.Message;
+
+/**
+ * Resolves field names used in scenario rules, either two character SIP
+ * tags such as AA or bean property names such as patronIdentifier, to
+ * readers of a message class's fields. Flags read as Y or N and dates in
+ * the SIP date format.
+ */
+class FieldReaders {
+	private static final Map<String, String> TAGS = new HashMap<String, String>();
+
+	static {
+		for (Field fld : Fields.class.getDeclaredFields()) {
+			com.circulation.SIP.annotations.Field annotation = fld.getAnnotation(com.circulation.SIP.annotations.Field.class);
+			if (annotation != null && !annotation.tag().isEmpty()) {
+				TAGS.put(annotation.tag(), fld.getName());
+			}
+		}
+	}
+
+	private final ConcurrentMap<String, FieldReader> readers = new ConcurrentHashMap<String, FieldReader>();
+
+	static String propertyName(String name) {
+		String property = TAGS.get(name);
+		return property == null ? name : property;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the message class has no such field
+	 */
+	FieldReader reader(Class<? extends Message> type, String name) {
+		String key = type.getName() + "#" + name;
+		FieldReader reader = readers.get(key);
+		if (reader == null) {
+			reader = create(type, propertyName(name));
+			readers.put(key, reader);
+		}
+		return reader;
+	}
+
+	private static FieldReader create(Class<?> type, String property) {
+		for (Class<?> cls = type; cls != null && cls != Object.class; cls = cls.getSuperclass()) {
+			try {
+				final Field fld = cls.getDeclaredField(property);
+				fld.setAccessible(true);
+				return new FieldReader() {
+					@Override
+					public String read(Message message) {
+						Object value;
+						try {
+							value = fld.get(message);
+						} catch (IllegalAccessException ex) {
+							throw new IllegalStateException(ex);
+						}
+						if (value == null) {
+							return null;
+						}
+						if (value instanceof Boolean) {
+							return (Boolean) value ? "Y" : "N";
+						}
+						if (value instanceof Date) {
+							return new SimpleDateFormat("yyyyMMdd    HHmmss").format((Date) value);
+						}
+						return value.toString();
+					}
+				};
+			} catch (NoSuchFieldException ex) {
+				// try the superclass
+			}
+		}
+		throw new IllegalArgumentException(type.getSimpleName() + " has no field " + property);
+	}
+}
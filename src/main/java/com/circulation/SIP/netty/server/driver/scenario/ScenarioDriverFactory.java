@@ -0,0 +1,105 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver.scenario;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.circulation.SIP.netty.server.driver.Driver;
+import com.circulation.SIP.netty.server.driver.DriverFactory;
+import com.circulation.SIP.netty.server.driver.DriverInterceptor;
+import com.circulation.SIP.netty.server.driver.DriverScope;
+
+/**
+ * Driver factory for test servers whose behaviour is scripted by a
+ * scenario file. Requests no rule matches are answered by the drivers of
+ * a fallback factory.
+ *
+ * The delays and wire faults of the rules only apply if the engine is
+ * also installed as the server's fault policy:
+ *
+ * <pre>
+ * daemon.setFaultPolicy(factory.getEngine());
+ * </pre>
+ *
+ * The engine stops checking the scenario file for changes when the server
+ * stops.
+ */
+public class ScenarioDriverFactory implements DriverFactory {
+	private final DriverFactory fallback;
+	private final ScenarioEngine engine;
+
+	/**
+	 * @param checkInterval milliseconds between checks for changes to the
+	 *                      scenario file, 0 to never reload
+	 */
+	public ScenarioDriverFactory(File scenario, long checkInterval, DriverFactory fallback) throws IOException, ParseException {
+		this.fallback = fallback;
+		this.engine = new ScenarioEngine(scenario, checkInterval);
+	}
+
+	public ScenarioEngine getEngine() {
+		return engine;
+	}
+
+	@Override
+	public Driver getDriver() {
+		return fallback.getDriver();
+	}
+
+	@Override
+	public DriverScope getScope() {
+		return fallback.getScope();
+	}
+
+	@Override
+	public int getPoolSize() {
+		return fallback.getPoolSize();
+	}
+
+	@Override
+	public long getPoolTimeout() {
+		return fallback.getPoolTimeout();
+	}
+
+	@Override
+	public List<DriverInterceptor> getInterceptors() {
+		List<DriverInterceptor> interceptors = new ArrayList<DriverInterceptor>();
+		interceptors.add(engine);
+		interceptors.addAll(fallback.getInterceptors());
+		return interceptors;
+	}
+
+	@Override
+	public void initDriver(Driver driver) throws Exception {
+		fallback.initDriver(driver);
+	}
+
+	@Override
+	public void closeDriver(Driver driver) throws Exception {
+		fallback.closeDriver(driver);
+	}
+
+	@Override
+	public void close() throws Exception {
+		engine.close();
+		fallback.close();
+	}
+}
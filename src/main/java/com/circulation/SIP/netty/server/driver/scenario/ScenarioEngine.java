@@ -0,0 +1,177 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver.scenario;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.circulation.SIP.messages.Message;
+import com.circulation.SIP.messages.SCResend;
+import com.circulation.SIP.netty.server.channel.Fault;
+import com.circulation.SIP.netty.server.channel.FaultPolicy;
+import com.circulation.SIP.netty.server.driver.Driver;
+import com.circulation.SIP.netty.server.driver.DriverInterceptor;
+import com.circulation.SIP.netty.server.driver.Invocation;
+
+/**
+ * Answers requests from the rules of a scenario file, see
+ * {@link ScenarioRules}, passing requests no rule matches on to the
+ * driver.
+ *
+ * As a {@link FaultPolicy}, installed with
+ * {@link com.circulation.SIP.netty.server.SIPDaemon#setFaultPolicy}, it
+ * also supplies the delays and wire faults of the rules, which the server
+ * applies on the event loop without blocking a thread.
+ *
+ * The file is checked for changes once per check interval by a background
+ * thread, so requests on the event loops only ever read the rules already
+ * loaded. A file that fails to parse is logged and the rules already
+ * loaded stay in force.
+ */
+public class ScenarioEngine implements DriverInterceptor, FaultPolicy, Closeable {
+	private static final Log log = LogFactory.getLog(ScenarioEngine.class);
+
+	private final File file;
+	private volatile ScenarioRules rules;
+	private long lastModified;
+	private final ScheduledExecutorService reloader;
+	private final AtomicLong matched = new AtomicLong();
+	private final AtomicLong unmatched = new AtomicLong();
+
+	/**
+	 * @param checkInterval milliseconds between checks for a changed file,
+	 *                      0 to never reload
+	 */
+	public ScenarioEngine(File file, long checkInterval) throws IOException, ParseException {
+		this.file = file;
+		this.lastModified = file.lastModified();
+		this.rules = load(file);
+		if (checkInterval > 0) {
+			this.reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ScenarioEngine-" + file.getName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.reloader.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					reloadIfModified();
+				}
+			}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+		} else {
+			this.reloader = null;
+		}
+	}
+
+	private static ScenarioRules load(File file) throws IOException, ParseException {
+		try (Reader reader = new InputStreamReader(Files.newInputStream(file.toPath()), "UTF-8")) {
+			return ScenarioRules.parse(reader);
+		}
+	}
+
+	public ScenarioRules getRules() {
+		return rules;
+	}
+
+	/**
+	 * Reloads the rules if the file has changed.
+	 *
+	 * @return true if new rules were loaded
+	 */
+	public synchronized boolean reloadIfModified() {
+		long modified = file.lastModified();
+		if (modified == lastModified) {
+			return false;
+		}
+		lastModified = modified;
+		try {
+			rules = load(file);
+			log.info("Reloaded " + rules.getRules().size() + " scenario rules from " + file);
+			return true;
+		} catch (Exception ex) {
+			log.warn("Failed to reload scenario " + file + ", keeping current rules", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * @return the rule answering a request, or null
+	 */
+	public ScenarioRule match(Message request) {
+		return rules.match(request);
+	}
+
+	@Override
+	public Message intercept(Driver driver, Message request, Invocation next) throws Exception {
+		ScenarioRule rule = match(request);
+		if (rule == null) {
+			unmatched.incrementAndGet();
+			return next.proceed(driver, request);
+		}
+		matched.incrementAndGet();
+		if ("error".equals(rule.getFault())) {
+			throw new IllegalStateException("Scenario fault from " + rule);
+		}
+		if ("resend".equals(rule.getFault())) {
+			return new SCResend();
+		}
+		if (!rule.hasResponse()) {
+			return next.proceed(driver, request);
+		}
+		return rule.respond(request);
+	}
+
+	@Override
+	public Fault select(Message request) {
+		ScenarioRule rule = match(request);
+		return rule == null ? null : rule.getWireFault();
+	}
+
+	public long getMatchedCount() {
+		return matched.get();
+	}
+
+	public long getUnmatchedCount() {
+		return unmatched.get();
+	}
+
+	/**
+	 * Stops checking the file for changes, the rules loaded stay in force.
+	 */
+	@Override
+	public void close() {
+		if (reloader != null) {
+			reloader.shutdownNow();
+		}
+	}
+}
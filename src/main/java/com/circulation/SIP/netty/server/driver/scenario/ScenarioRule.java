@@ -0,0 +1,260 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver.scenario;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.circulation.SIP.messages.Message;
+import com.circulation.SIP.messages.SCResend;
+import com.circulation.SIP.netty.server.channel.Fault;
+
+/**
+ * One scenario rule: the request it matches, and the response, delay and
+ * fault it produces.
+ */
+public class ScenarioRule {
+	static final int STORM_LENGTH = 5;
+	private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{(\\w+)\\}");
+
+	/**
+	 * A test of one request field.
+	 */
+	static final class FieldPredicate {
+		final String name;
+		final FieldReader reader;
+		final String value;
+		final boolean prefix;
+		final boolean negated;
+
+		FieldPredicate(String name, FieldReader reader, String value, boolean prefix, boolean negated) {
+			this.name = name;
+			this.reader = reader;
+			this.value = value;
+			this.prefix = prefix;
+			this.negated = negated;
+		}
+
+		boolean isExact() {
+			return !prefix && !negated;
+		}
+
+		boolean matches(Message request) {
+			String actual = reader.read(request);
+			boolean matches;
+			if (prefix) {
+				matches = actual != null && actual.startsWith(value);
+			} else {
+				matches = value.equals(actual);
+			}
+			return matches != negated;
+		}
+	}
+
+	/**
+	 * A text field of the response filled in from the request.
+	 */
+	private static final class Substitution {
+		final Field target;
+		final String[] literals;
+		final FieldReader[] readers;
+
+		Substitution(Field target, String[] literals, FieldReader[] readers) {
+			this.target = target;
+			this.literals = literals;
+			this.readers = readers;
+		}
+
+		String resolve(Message request) {
+			StringBuilder text = new StringBuilder(literals[0]);
+			for (int i = 0; i < readers.length; i++) {
+				String value = readers[i].read(request);
+				text.append(value == null ? "" : value).append(literals[i + 1]);
+			}
+			return text.toString();
+		}
+	}
+
+	private final int line;
+	private final String command;
+	private final FieldPredicate[] predicates;
+	private final long delay;
+	private final String fault;
+	private final Message response;
+	private final Substitution[] substitutions;
+	private final Fault wireFault;
+
+	/**
+	 * @throws IllegalArgumentException if a placeholder of the template
+	 *         names a field the request does not have, or is not within a
+	 *         text field of the response
+	 */
+	ScenarioRule(int line, String command, FieldPredicate[] predicates, long delay, String fault, String template,
+			FieldReaders readers) throws Exception {
+		this.line = line;
+		this.command = command;
+		this.predicates = predicates;
+		this.delay = delay;
+		this.fault = fault;
+		this.wireFault = wireFault(delay, fault);
+		if (template != null) {
+			// decoded once with the placeholders in place, then copied and
+			// filled in for each request
+			this.response = Message.decode(template, null, false);
+			this.substitutions = substitutions(template, response, Message.getMessageClass(command), readers);
+		} else {
+			this.response = null;
+			this.substitutions = null;
+		}
+	}
+
+	private static Substitution[] substitutions(String template, Message response, Class<? extends Message> requestType,
+			FieldReaders readers) throws IllegalAccessException {
+		int placeholders = 0;
+		for (Matcher matcher = PLACEHOLDER.matcher(template); matcher.find();) {
+			placeholders++;
+		}
+		List<Substitution> substitutions = new ArrayList<Substitution>();
+		int substituted = 0;
+		for (Class<?> cls = response.getClass(); placeholders > substituted && cls != Message.class; cls = cls.getSuperclass()) {
+			for (Field fld : cls.getDeclaredFields()) {
+				if (Modifier.isStatic(fld.getModifiers()) || fld.getType() != String.class) {
+					continue;
+				}
+				fld.setAccessible(true);
+				String value = (String) fld.get(response);
+				if (value == null) {
+					continue;
+				}
+				List<String> literals = new ArrayList<String>();
+				List<FieldReader> fieldReaders = new ArrayList<FieldReader>();
+				Matcher matcher = PLACEHOLDER.matcher(value);
+				int start = 0;
+				while (matcher.find()) {
+					literals.add(value.substring(start, matcher.start()));
+					fieldReaders.add(readers.reader(requestType, matcher.group(1)));
+					start = matcher.end();
+				}
+				if (!fieldReaders.isEmpty()) {
+					literals.add(value.substring(start));
+					substitutions.add(new Substitution(fld, literals.toArray(new String[literals.size()]),
+							fieldReaders.toArray(new FieldReader[fieldReaders.size()])));
+					substituted += fieldReaders.size();
+				}
+			}
+		}
+		if (substituted != placeholders) {
+			throw new IllegalArgumentException("placeholders must be within text fields of the response");
+		}
+		return substitutions.toArray(new Substitution[substitutions.size()]);
+	}
+
+	/**
+	 * @return line of the rule in its file; earlier rules win
+	 */
+	public int getLine() {
+		return line;
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	/**
+	 * @return milliseconds to hold the response back for
+	 */
+	public long getDelay() {
+		return delay;
+	}
+
+	/**
+	 * @return name of the fault to inject, or null
+	 */
+	public String getFault() {
+		return fault;
+	}
+
+	/**
+	 * @return the delay and fault applied to the response on the wire, or
+	 *         null
+	 */
+	public Fault getWireFault() {
+		return wireFault;
+	}
+
+	private static Fault wireFault(long delay, String fault) {
+		Fault.Action action = Fault.Action.NONE;
+		if ("drop".equals(fault)) {
+			action = Fault.Action.DROP;
+		} else if ("corrupt".equals(fault)) {
+			action = Fault.Action.CORRUPT_CHECKSUM;
+		} else if ("storm".equals(fault)) {
+			action = Fault.Action.RESEND_STORM;
+		} else if ("reset".equals(fault)) {
+			action = Fault.Action.RESET;
+		}
+		if (delay == 0 && action == Fault.Action.NONE) {
+			return null;
+		}
+		return new Fault(TimeUnit.MILLISECONDS.toMicros(delay), action, STORM_LENGTH);
+	}
+
+	/**
+	 * @return true if the rule has a response template, otherwise the
+	 *         response comes from the driver
+	 */
+	public boolean hasResponse() {
+		return response != null;
+	}
+
+	FieldPredicate[] getPredicates() {
+		return predicates;
+	}
+
+	boolean matches(Message request) {
+		for (FieldPredicate predicate : predicates) {
+			if (!predicate.matches(request)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the templated response, SC Resend if the rule has no template
+	 */
+	public Message respond(Message request) throws Exception {
+		if (response == null) {
+			return new SCResend();
+		}
+		Message copy = response.clone();
+		for (Substitution substitution : substitutions) {
+			substitution.target.set(copy, substitution.resolve(request));
+		}
+		return copy;
+	}
+
+	@Override
+	public String toString() {
+		return "rule at line " + line;
+	}
+}
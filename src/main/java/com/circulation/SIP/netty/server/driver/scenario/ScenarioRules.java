@@ -0,0 +1,233 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver.scenario;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.circulation.SIP.annotations.Command;
+import com.circulation.SIP.messages.Message;
+
+/**
+ * A compiled set of scenario rules.
+ *
+ * Rules are read one per line:
+ *
+ * <pre>
+ * # command  predicates             =&gt; options          response template
+ * 63         AA=1234 AO=MAIN        =&gt; delay=250         64              00020200101    101010...AO${AO}|AA${AA}|AEJane Doe|BLY|
+ * 17         AB=BAD*                =&gt; fault=resend
+ * 11         patronIdentifier!=OK   =&gt; 12000NUY20200101    101010AO|AA${AA}|AB${AB}|AJ|AH|
+ * </pre>
+ *
+ * A predicate is field=value, field=prefix*, field=* (any value) or
+ * field!=value, where field is a SIP tag or a property of the request. The
+ * response is a message in wire format without sequence number and
+ * checksum, in whose variable length text fields ${field} is replaced by
+ * that field of the request. The first matching rule in the file applies.
+ *
+ * The resend fault answers with an SC Resend and error fails the request
+ * in the driver. Delays and the faults drop, corrupt (the checksum), storm
+ * (of SC Resends before the response) and reset (the connection) are
+ * applied on the wire by the server's fault injection, see
+ * {@link ScenarioEngine}; a rule with only those lets the driver respond.
+ *
+ * Rules are indexed by command and by the first exact predicate of each
+ * rule, so a request is only tested against the rules that can match it.
+ */
+public class ScenarioRules {
+	private static final Pattern OPTION = Pattern.compile("^(delay|fault)=(\\S+)\\s*");
+	private static final Pattern PREDICATE = Pattern.compile("^(\\w+)(!?=)(.*)$");
+
+	static final List<String> FAULTS = Arrays.asList("resend", "error", "drop", "corrupt", "storm", "reset");
+
+	/**
+	 * Rules of one command.
+	 */
+	private static final class CommandRules {
+		final Map<String, Map<String, List<ScenarioRule>>> indexed = new LinkedHashMap<String, Map<String, List<ScenarioRule>>>();
+		final Map<String, FieldReader> indexReaders = new HashMap<String, FieldReader>();
+		final List<ScenarioRule> unindexed = new ArrayList<ScenarioRule>();
+
+		void add(ScenarioRule rule) {
+			for (ScenarioRule.FieldPredicate predicate : rule.getPredicates()) {
+				if (predicate.isExact()) {
+					String field = FieldReaders.propertyName(predicate.name);
+					Map<String, List<ScenarioRule>> index = indexed.get(field);
+					if (index == null) {
+						index = new HashMap<String, List<ScenarioRule>>();
+						indexed.put(field, index);
+						indexReaders.put(field, predicate.reader);
+					}
+					List<ScenarioRule> rules = index.get(predicate.value);
+					if (rules == null) {
+						rules = new ArrayList<ScenarioRule>(1);
+						index.put(predicate.value, rules);
+					}
+					rules.add(rule);
+					return;
+				}
+			}
+			unindexed.add(rule);
+		}
+
+		ScenarioRule match(Message request) {
+			ScenarioRule best = null;
+			for (Map.Entry<String, Map<String, List<ScenarioRule>>> index : indexed.entrySet()) {
+				List<ScenarioRule> rules = index.getValue().get(indexReaders.get(index.getKey()).read(request));
+				if (rules != null) {
+					for (ScenarioRule rule : rules) {
+						if (best != null && rule.getLine() > best.getLine()) {
+							break;
+						}
+						if (rule.matches(request)) {
+							best = rule;
+							break;
+						}
+					}
+				}
+			}
+			for (ScenarioRule rule : unindexed) {
+				if (best != null && rule.getLine() > best.getLine()) {
+					break;
+				}
+				if (rule.matches(request)) {
+					return rule;
+				}
+			}
+			return best;
+		}
+	}
+
+	private final Map<Class<? extends Message>, CommandRules> commands = new HashMap<Class<? extends Message>, CommandRules>();
+	private final List<ScenarioRule> rules;
+
+	private ScenarioRules(List<ScenarioRule> rules) {
+		this.rules = Collections.unmodifiableList(rules);
+		for (ScenarioRule rule : rules) {
+			Class<? extends Message> type = Message.getMessageClass(rule.getCommand());
+			CommandRules commandRules = commands.get(type);
+			if (commandRules == null) {
+				commandRules = new CommandRules();
+				commands.put(type, commandRules);
+			}
+			commandRules.add(rule);
+		}
+	}
+
+	public List<ScenarioRule> getRules() {
+		return rules;
+	}
+
+	/**
+	 * @return the first rule matching the request, or null
+	 */
+	public ScenarioRule match(Message request) {
+		CommandRules commandRules = commands.get(request.getClass());
+		return commandRules == null ? null : commandRules.match(request);
+	}
+
+	/**
+	 * @throws ParseException with the line number of the first invalid rule
+	 */
+	public static ScenarioRules parse(Reader source) throws IOException, ParseException {
+		BufferedReader reader = new BufferedReader(source);
+		FieldReaders readers = new FieldReaders();
+		List<ScenarioRule> rules = new ArrayList<ScenarioRule>();
+		String text;
+		int line = 0;
+		while ((text = reader.readLine()) != null) {
+			line++;
+			text = text.trim();
+			if (text.isEmpty() || text.startsWith("#")) {
+				continue;
+			}
+			try {
+				rules.add(parseRule(line, text, readers));
+			} catch (ParseException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				String reason = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.getMessage();
+				ParseException parseException = new ParseException("Line " + line + ": " + reason, line);
+				parseException.initCause(ex);
+				throw parseException;
+			}
+		}
+		return new ScenarioRules(rules);
+	}
+
+	private static ScenarioRule parseRule(int line, String text, FieldReaders readers) throws Exception {
+		int arrow = text.indexOf("=>");
+		if (arrow < 0) {
+			throw new ParseException("Line " + line + ": missing =>", line);
+		}
+		String[] match = text.substring(0, arrow).trim().split("\\s+");
+		String command = match[0];
+		Class<? extends Message> type = Message.getMessageClass(command);
+		if (type == null || !type.isAnnotationPresent(Command.class)) {
+			throw new ParseException("Line " + line + ": unknown command " + command, line);
+		}
+		List<ScenarioRule.FieldPredicate> predicates = new ArrayList<ScenarioRule.FieldPredicate>();
+		for (int i = 1; i < match.length; i++) {
+			Matcher predicate = PREDICATE.matcher(match[i]);
+			if (!predicate.matches()) {
+				throw new ParseException("Line " + line + ": invalid predicate " + match[i], line);
+			}
+			String name = predicate.group(1);
+			boolean negated = predicate.group(2).equals("!=");
+			String value = predicate.group(3);
+			boolean prefix = value.endsWith("*");
+			if (prefix) {
+				value = value.substring(0, value.length() - 1);
+			}
+			predicates.add(new ScenarioRule.FieldPredicate(name, readers.reader(type, name), value, prefix, negated));
+		}
+
+		String rest = text.substring(arrow + 2).trim();
+		long delay = 0;
+		String fault = null;
+		Matcher option;
+		while ((option = OPTION.matcher(rest)).find()) {
+			if (option.group(1).equals("delay")) {
+				delay = Long.parseLong(option.group(2));
+			} else {
+				fault = option.group(2);
+				if (!FAULTS.contains(fault)) {
+					throw new ParseException("Line " + line + ": unknown fault " + fault + ", expected one of " + FAULTS, line);
+				}
+			}
+			rest = rest.substring(option.end());
+		}
+		String template = rest.isEmpty() ? null : rest;
+		if (template == null && fault == null && delay == 0) {
+			throw new ParseException("Line " + line + ": no response, delay or fault", line);
+		}
+		return new ScenarioRule(line, command, predicates.toArray(new ScenarioRule.FieldPredicate[predicates.size()]),
+				delay, fault, template, readers);
+	}
+}
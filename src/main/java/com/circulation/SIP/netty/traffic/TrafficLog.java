@@ -0,0 +1,142 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.traffic;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The binary format of traffic recordings.
+ *
+ * A recording starts with the magic bytes "SIPTRAF" and a version byte,
+ * followed by records of: the record type, the timestamp in microseconds
+ * since the epoch, the connection number and the length of the data as
+ * unsigned variable length integers, and the data itself. Timestamps are
+ * absolute so recordings can be appended to across restarts.
+ */
+public class TrafficLog implements Closeable {
+  static final byte[] MAGIC = { 'S', 'I', 'P', 'T', 'R', 'A', 'F' };
+  static final int VERSION = 1;
+
+  private final DataInputStream in;
+
+  public TrafficLog(InputStream in) throws IOException {
+    this.in = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+    readHeader(this.in);
+  }
+
+  public TrafficLog(File file) throws IOException {
+    this(new FileInputStream(file));
+  }
+
+  /**
+   * @return all records of a recording
+   */
+  public static List<TrafficRecord> readAll(File file) throws IOException {
+    try (TrafficLog log = new TrafficLog(file)) {
+      List<TrafficRecord> records = new ArrayList<TrafficRecord>();
+      TrafficRecord record;
+      while ((record = log.read()) != null) {
+        records.add(record);
+      }
+      return records;
+    }
+  }
+
+  /**
+   * @return the next record, or null at the end of the recording
+   */
+  public TrafficRecord read() throws IOException {
+    int type = in.read();
+    if (type < 0) {
+      return null;
+    }
+    if (type >= TrafficRecord.Type.values().length) {
+      throw new IOException("Invalid record type " + type);
+    }
+    try {
+      long timestamp = readVarLong(in);
+      int connection = (int) readVarLong(in);
+      byte[] data = new byte[(int) readVarLong(in)];
+      in.readFully(data);
+      return new TrafficRecord(TrafficRecord.Type.values()[type], timestamp, connection, data);
+    } catch (EOFException ex) {
+      // the last record was cut short, e.g. by a crash while recording
+      return null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  static void writeHeader(OutputStream out) throws IOException {
+    out.write(MAGIC);
+    out.write(VERSION);
+  }
+
+  private static void readHeader(DataInputStream in) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    in.readFully(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException("Not a traffic recording");
+    }
+    int version = in.read();
+    if (version != VERSION) {
+      throw new IOException("Unsupported traffic recording version " + version);
+    }
+  }
+
+  static void write(OutputStream out, TrafficRecord.Type type, long timestamp, int connection, byte[] data) throws IOException {
+    out.write(type.ordinal());
+    writeVarLong(out, timestamp);
+    writeVarLong(out, connection);
+    writeVarLong(out, data.length);
+    out.write(data);
+  }
+
+  private static void writeVarLong(OutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid variable length integer");
+  }
+}
@@ -0,0 +1,80 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.traffic;
+
+import java.nio.charset.Charset;
+
+/**
+ * One event of a recorded connection.
+ */
+public class TrafficRecord {
+  public enum Type {
+    /** connection accepted, data is the client address */
+    OPEN,
+    /** frame read from the client, without its terminator */
+    REQUEST,
+    /** bytes written to the client */
+    RESPONSE,
+    /** connection closed */
+    CLOSE
+  }
+
+  private final Type type;
+  private final long timestamp;
+  private final int connection;
+  private final byte[] data;
+
+  /**
+   * @param timestamp  microseconds since the epoch
+   * @param connection number of the connection within its recording
+   */
+  public TrafficRecord(Type type, long timestamp, int connection, byte[] data) {
+    this.type = type;
+    this.timestamp = timestamp;
+    this.connection = connection;
+    this.data = data;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public int getConnection() {
+    return connection;
+  }
+
+  public byte[] getData() {
+    return data;
+  }
+
+  /**
+   * @return the two character command code of a request or response, or
+   *         null
+   */
+  public String getCommand() {
+    return (type == Type.REQUEST || type == Type.RESPONSE) && data.length >= 2 ? new String(data, 0, 2, Charset.forName("US-ASCII")) : null;
+  }
+
+  @Override
+  public String toString() {
+    return type + " #" + connection + " @" + timestamp + " " + new String(data, Charset.forName("ISO-8859-1")).trim();
+  }
+}
@@ -0,0 +1,199 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.traffic;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Appends the traffic of a server to a recording, see {@link TrafficLog}.
+ *
+ * Records are queued by the event loops and written by a background
+ * thread, so recording never blocks request processing. When the queue is
+ * full, e.g. because the disk cannot keep up, records are dropped and
+ * counted rather than slowing the server down.
+ */
+public class TrafficRecorder implements Closeable {
+  private static final Log log = LogFactory.getLog(TrafficRecorder.class);
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
+
+  private static final TrafficRecord END = new TrafficRecord(TrafficRecord.Type.CLOSE, 0, -1, new byte[0]);
+
+  private final File file;
+  private final OutputStream out;
+  private final BlockingQueue<TrafficRecord> queue;
+  private final Thread writer;
+  private final long epochMicros;
+  private final long startNanos;
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicLong recorded = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean closed;
+
+  public TrafficRecorder(File file) throws IOException {
+    this(file, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Appends to the recording if the file exists. Connections are then
+   * numbered on from the highest number already recorded, so the
+   * connections of earlier runs are not merged with new ones on replay.
+   *
+   * @param queueCapacity records held in memory before new ones are
+   *                      dropped
+   */
+  public TrafficRecorder(File file, int queueCapacity) throws IOException {
+    this.file = file;
+    boolean exists = file.length() > 0;
+    if (exists) {
+      connections.set(lastConnection(file));
+    }
+    this.out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+    if (!exists) {
+      TrafficLog.writeHeader(out);
+    }
+    this.queue = new ArrayBlockingQueue<TrafficRecord>(queueCapacity);
+    this.epochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    this.startNanos = System.nanoTime();
+    this.writer = new Thread("TrafficRecorder-" + file.getName()) {
+      @Override
+      public void run() {
+        writeRecords();
+      }
+    };
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  private static int lastConnection(File file) throws IOException {
+    int last = 0;
+    try (TrafficLog log = new TrafficLog(file)) {
+      TrafficRecord record;
+      while ((record = log.read()) != null) {
+        last = Math.max(last, record.getConnection());
+      }
+    }
+    return last;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return a number for a new connection, unique within this recording
+   */
+  public int nextConnection() {
+    return connections.incrementAndGet();
+  }
+
+  /**
+   * Queues a record, timestamped now.
+   *
+   * @return false if the record was dropped
+   */
+  public boolean record(TrafficRecord.Type type, int connection, byte[] data) {
+    long timestamp = epochMicros + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    if (closed || !queue.offer(new TrafficRecord(type, timestamp, connection, data))) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  private void writeRecords() {
+    List<TrafficRecord> batch = new ArrayList<TrafficRecord>();
+    try {
+      while (true) {
+        batch.add(queue.take());
+        queue.drainTo(batch);
+        for (TrafficRecord record : batch) {
+          if (record == END) {
+            out.flush();
+            return;
+          }
+          TrafficLog.write(out, record.getType(), record.getTimestamp(), record.getConnection(), record.getData());
+          recorded.incrementAndGet();
+        }
+        batch.clear();
+        if (queue.isEmpty()) {
+          out.flush();
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (IOException ex) {
+      log.error("Traffic recording to " + file + " failed, recording stopped", ex);
+      closed = true;
+    }
+  }
+
+  /**
+   * @return records written to the recording
+   */
+  public long getRecordedCount() {
+    return recorded.get();
+  }
+
+  /**
+   * @return records lost because the queue was full or recording had
+   *         stopped
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Writes the records already queued and closes the recording.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed && !writer.isAlive()) {
+      out.close();
+      return;
+    }
+    closed = true;
+    try {
+      queue.put(END);
+      writer.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      out.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "recorded=" + getRecordedCount() + " dropped=" + getDroppedCount();
+  }
+}
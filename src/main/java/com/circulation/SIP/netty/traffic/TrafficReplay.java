@@ -0,0 +1,327 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.traffic;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-drives recorded sessions against a server, each connection on its
+ * own thread so the original concurrency is reproduced, and compares the
+ * response times with those recorded.
+ *
+ * Connections are opened and requests sent at their recorded times,
+ * divided by the speed factor. A connection reads each response where it
+ * was recorded, pairing responses with its outstanding requests in order,
+ * so a session that pipelined its requests is replayed pipelined and one
+ * that waited for each response waits again. A slower server delays the
+ * rest of that session.
+ *
+ * The recording is streamed, each record handed to the thread of its
+ * connection, so it need not fit in memory.
+ *
+ * <pre>
+ * java com.circulation.SIP.netty.traffic.TrafficReplay recording host port [speed]
+ * </pre>
+ */
+public class TrafficReplay {
+  private static final int RESPONSE_TIMEOUT = 30000;
+  /** records read ahead for one connection */
+  private static final int SESSION_BACKLOG = 1024;
+  /** marks the end of a recording that left a connection open */
+  private static final TrafficRecord END = new TrafficRecord(TrafficRecord.Type.CLOSE, 0, 0, new byte[0]);
+
+  private final TrafficLog log;
+  private final InetSocketAddress address;
+  private final double speed;
+  private final Map<String, Latencies> latencies = new TreeMap<String, Latencies>();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong mismatches = new AtomicLong();
+
+  /**
+   * Response times of one command, in microseconds.
+   */
+  public static class Latencies {
+    private final List<Long> recorded = new ArrayList<Long>();
+    private final List<Long> replayed = new ArrayList<Long>();
+
+    synchronized void add(long recordedMicros, long replayedMicros) {
+      recorded.add(recordedMicros);
+      replayed.add(replayedMicros);
+    }
+
+    public synchronized int getCount() {
+      return replayed.size();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the recorded response time at the percentile in milliseconds
+     */
+    public synchronized double getRecorded(double percentile) {
+      return percentile(recorded, percentile);
+    }
+
+    public synchronized double getReplayed(double percentile) {
+      return percentile(replayed, percentile);
+    }
+
+    private static double percentile(List<Long> values, double percentile) {
+      if (values.isEmpty()) {
+        return 0;
+      }
+      List<Long> sorted = new ArrayList<Long>(values);
+      Collections.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+      return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1))) / 1000.0;
+    }
+  }
+
+  /**
+   * @param speed 1 to replay in real time, 2 for twice as fast and so on
+   */
+  public TrafficReplay(TrafficLog log, InetSocketAddress address, double speed) {
+    if (speed <= 0) {
+      throw new IllegalArgumentException("speed must be positive");
+    }
+    this.log = log;
+    this.address = address;
+    this.speed = speed;
+  }
+
+  /**
+   * A request sent and not yet answered.
+   */
+  private static class Sent {
+    final TrafficRecord request;
+    final long nanos;
+
+    Sent(TrafficRecord request, long nanos) {
+      this.request = request;
+      this.nanos = nanos;
+    }
+  }
+
+  /**
+   * Replays the recording and waits for every session to finish.
+   */
+  public void run() throws IOException, InterruptedException {
+    Map<Integer, BlockingQueue<TrafficRecord>> sessions = new HashMap<Integer, BlockingQueue<TrafficRecord>>();
+    List<Thread> threads = new ArrayList<Thread>();
+    long origin = -1;
+    long start = 0;
+    try {
+      TrafficRecord record;
+      while ((record = log.read()) != null) {
+        if (origin < 0) {
+          origin = record.getTimestamp();
+          start = System.nanoTime();
+        }
+        BlockingQueue<TrafficRecord> session = sessions.get(record.getConnection());
+        if (session == null) {
+          if (record.getType() != TrafficRecord.Type.OPEN) {
+            // opened before the recording started
+            continue;
+          }
+          session = new ArrayBlockingQueue<TrafficRecord>(SESSION_BACKLOG);
+          sessions.put(record.getConnection(), session);
+          threads.add(start(record.getConnection(), session, origin, start));
+        }
+        session.put(record);
+        if (record.getType() == TrafficRecord.Type.CLOSE) {
+          sessions.remove(record.getConnection());
+        }
+      }
+    } finally {
+      for (BlockingQueue<TrafficRecord> session : sessions.values()) {
+        session.put(END);
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+  }
+
+  private Thread start(int connection, final BlockingQueue<TrafficRecord> session, final long origin, final long start) {
+    Thread thread = new Thread("TrafficReplay-" + connection) {
+      @Override
+      public void run() {
+        try {
+          replay(session, origin, start);
+        } catch (Exception ex) {
+          failures.incrementAndGet();
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  private static void skip(BlockingQueue<TrafficRecord> session) throws InterruptedException {
+    TrafficRecord record;
+    do {
+      record = session.take();
+    } while (record != END && record.getType() != TrafficRecord.Type.CLOSE);
+  }
+
+  /**
+   * Replays one connection, returning once its close or the end of the
+   * recording has been taken.
+   */
+  private void replay(BlockingQueue<TrafficRecord> session, long origin, long start) throws IOException, InterruptedException {
+    waitUntil(session.take().getTimestamp(), origin, start);
+    Socket socket = new Socket();
+    try {
+      socket.connect(address, RESPONSE_TIMEOUT);
+      socket.setTcpNoDelay(true);
+      socket.setSoTimeout(RESPONSE_TIMEOUT);
+      OutputStream out = socket.getOutputStream();
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      Queue<Sent> outstanding = new ArrayDeque<Sent>();
+      TrafficRecord record;
+      while ((record = session.take()) != END) {
+        if (record.getType() == TrafficRecord.Type.CLOSE) {
+          waitUntil(record.getTimestamp(), origin, start);
+          return;
+        } else if (record.getType() == TrafficRecord.Type.REQUEST) {
+          waitUntil(record.getTimestamp(), origin, start);
+          outstanding.add(new Sent(record, System.nanoTime()));
+          out.write(record.getData());
+          out.write('\r');
+          out.flush();
+        } else if (record.getType() == TrafficRecord.Type.RESPONSE) {
+          // responses come back in the order of their requests
+          Sent sent = outstanding.poll();
+          if (sent == null) {
+            continue;
+          }
+          String replayed = readResponse(in);
+          long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent.nanos);
+          if (!replayed.startsWith(record.getCommand())) {
+            mismatches.incrementAndGet();
+          }
+          latencies(sent.request.getCommand()).add(record.getTimestamp() - sent.request.getTimestamp(), micros);
+        }
+      }
+    } catch (IOException ex) {
+      // keeps the reader from blocking on a session nobody takes from
+      skip(session);
+      throw ex;
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static String readResponse(InputStream in) throws IOException {
+    StringBuilder response = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\r') {
+      if (b < 0) {
+        throw new IOException("Connection closed");
+      }
+      if (b != '\n') {
+        response.append((char) b);
+      }
+    }
+    return response.toString();
+  }
+
+  private void waitUntil(long timestamp, long origin, long start) throws InterruptedException {
+    long due = start + (long) (TimeUnit.MICROSECONDS.toNanos(timestamp - origin) / speed);
+    long wait = due - System.nanoTime();
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  private Latencies latencies(String command) {
+    synchronized (latencies) {
+      Latencies result = latencies.get(command);
+      if (result == null) {
+        result = new Latencies();
+        latencies.put(command, result);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * @return response times by request command code
+   */
+  public Map<String, Latencies> getLatencies() {
+    synchronized (latencies) {
+      return new TreeMap<String, Latencies>(latencies);
+    }
+  }
+
+  /**
+   * @return sessions that could not be replayed to the end
+   */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * @return responses whose command code differs from the one recorded
+   */
+  public long getMismatchCount() {
+    return mismatches.get();
+  }
+
+  public void report(PrintStream out) {
+    out.println(String.format("%-4s %8s %10s %10s %10s %10s %10s", "cmd", "count", "rec p50", "rep p50", "rec p99", "rep p99", "delta p99"));
+    for (Map.Entry<String, Latencies> entry : getLatencies().entrySet()) {
+      Latencies latency = entry.getValue();
+      out.println(String.format("%-4s %8d %8.2fms %8.2fms %8.2fms %8.2fms %+8.2fms", entry.getKey(), latency.getCount(),
+          latency.getRecorded(50), latency.getReplayed(50), latency.getRecorded(99), latency.getReplayed(99),
+          latency.getReplayed(99) - latency.getRecorded(99)));
+    }
+    out.println("failed sessions " + getFailureCount() + ", mismatched responses " + getMismatchCount());
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("usage: TrafficReplay recording host port [speed]");
+      System.exit(1);
+    }
+    double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+    try (TrafficLog log = new TrafficLog(new File(args[0]))) {
+      TrafficReplay replay = new TrafficReplay(log, new InetSocketAddress(args[1], Integer.parseInt(args[2])), speed);
+      replay.run();
+      replay.report(System.out);
+    }
+  }
+}
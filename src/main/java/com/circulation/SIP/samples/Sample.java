@@ -58,7 +58,7 @@ public class Sample {
       Sample.getItem();
 
       // Shut down netty server
-      server.stop();
+      server.stop().syncUninterruptibly();
     } catch (Exception ex) {
       Logger.getLogger(Sample.class.getName()).log(Level.SEVERE, null, ex);
     }
@@ -60,12 +60,16 @@ public class DummyDriver extends AbstractDriver
 {
 
   @Override
-  public ACSStatus Status(ACSStatus status, SCStatus msg) {
+  protected void initStatus(ACSStatus status) {
     status.setACSRenewalPolicy(false);
     status.setCheckInOk(true);
     status.setCheckOutOk(true);
     status.setOfflineOk(false);
     status.setStatusUpdateOk(true);
+  }
+
+  @Override
+  public ACSStatus Status(ACSStatus status, SCStatus msg) {
     return status;
   }
 
@@ -18,6 +18,7 @@ package com.circulation.SIP.samples.netty;
 
 import com.circulation.SIP.netty.server.driver.Driver;
 import com.circulation.SIP.netty.server.driver.DriverFactory;
+import com.circulation.SIP.netty.server.driver.DriverScope;
 
 /**
  *
@@ -31,4 +32,12 @@ public class DummyDriverFactory implements DriverFactory {
     return new DummyDriver();
   }
 
+  /**
+   * DummyDriver keeps no state, so one instance serves every request.
+   */
+  @Override
+  public DriverScope getScope() {
+    return DriverScope.SINGLETON;
+  }
+
 }
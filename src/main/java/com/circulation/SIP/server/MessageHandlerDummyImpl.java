@@ -16,13 +16,223 @@
  */
 package com.circulation.SIP.server;
 
-import com.circulation.SIP.dao.PulDao;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.circulation.SIP.dao.InMemoryRepositories;
+import com.circulation.SIP.dao.JdbcRepositories;
+import com.circulation.SIP.dao.Loan;
+import com.circulation.SIP.dao.PatronSummaries;
+import com.circulation.SIP.dao.RecordCache;
+import com.circulation.SIP.dao.Repositories;
+import com.circulation.SIP.dao.TransactionJournal;
 import com.circulation.SIP.messages.*;
 import com.circulation.SIP.types.enumerations.HoldMode;
 
 public class MessageHandlerDummyImpl implements MessageHandler {
+    private static Log logger = LogFactory.getLog(MessageHandlerDummyImpl.class);
+
+    public static final String PROP_CACHE_SIZE = "com.circulation.SIP.server.cacheSize";
+    public static final String PROP_CACHE_TTL = "com.circulation.SIP.server.cacheTtlSeconds";
+
+    /**
+     * Patron summaries kept, and seconds after which one is read again from
+     * the loans, see {@link PatronSummaries}.
+     */
+    public static final String PROP_SUMMARY_CACHE_SIZE = "com.circulation.SIP.server.summaryCacheSize";
+    public static final String PROP_SUMMARY_TTL = "com.circulation.SIP.server.summaryTtlSeconds";
+
+    public static final String PROP_OFFLINE_JOURNAL = "com.circulation.SIP.server.offlineJournal";
+    public static final String PROP_OFFLINE_SLOW_MILLIS = "com.circulation.SIP.server.offlineSlowMillis";
+
+    public static final String PROP_REPOSITORY = "com.circulation.SIP.server.repository";
+    public static final String PROP_SNAPSHOT = "com.circulation.SIP.server.snapshot";
+
+    /**
+     * Loan period of check outs and renewals that do not ask for a due
+     * date.
+     */
+    public static final String PROP_LOAN_DAYS = "com.circulation.SIP.server.loanDays";
+
+    /**
+     * Screen message of requests that failed because the database is
+     * unavailable, see {@link Repositories#isAvailable()}.
+     */
+    private static final String OFFLINE_MESSAGE = "System offline, please try again later.";
+
+    private final long loanMillis = TimeUnit.DAYS.toMillis(Integer.getInteger(PROP_LOAN_DAYS, 14));
+
+    private final Repositories repositories;
+
+    /**
+     * Counts and item lists of Patron Information, maintained by the
+     * transactions below.
+     */
+    private final PatronSummaries patronSummaries;
+
+    /**
+     * Offline mode, enabled by naming a journal file in the
+     * {@value #PROP_OFFLINE_JOURNAL} system property.
+     */
+    private final StoreAndForward storeAndForward;
+
+    /**
+     * Patron and item records by identifier. Entries are dropped when a
+     * transaction changes them, and otherwise served for the TTL at most.
+     */
+    private final RecordCache<String, PatronInformationResponse> patronCache = new RecordCache<String, PatronInformationResponse>(
+            Integer.getInteger(PROP_CACHE_SIZE, 10000), TimeUnit.SECONDS.toMillis(Integer.getInteger(PROP_CACHE_TTL, 60)));
+    private final RecordCache<String, ItemInformationResponse> itemCache = new RecordCache<String, ItemInformationResponse>(
+            Integer.getInteger(PROP_CACHE_SIZE, 10000), TimeUnit.SECONDS.toMillis(Integer.getInteger(PROP_CACHE_TTL, 60)));
+
+    /**
+     * Uses the repositories named by the {@value #PROP_REPOSITORY} system
+     * property: "jdbc", the default, or "memory".
+     */
+    public MessageHandlerDummyImpl() {
+        this(createRepositories());
+    }
+
+    public MessageHandlerDummyImpl(Repositories repositories) {
+        this.repositories = repositories;
+        this.patronSummaries = new PatronSummaries(repositories.loans(), Integer.getInteger(PROP_SUMMARY_CACHE_SIZE, 100000),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger(PROP_SUMMARY_TTL, 300)));
+        this.storeAndForward = createStoreAndForward();
+    }
+
+    /**
+     * In memory repositories are restored from and saved to the snapshot
+     * file named by the {@value #PROP_SNAPSHOT} system property, if any.
+     */
+    private static Repositories createRepositories() {
+        if (!"memory".equals(System.getProperty(PROP_REPOSITORY, "jdbc"))) {
+            return new JdbcRepositories();
+        }
+        String snapshot = System.getProperty(PROP_SNAPSHOT);
+        if (snapshot == null) {
+            return new InMemoryRepositories();
+        }
+        try {
+            final InMemoryRepositories repositories = new InMemoryRepositories(new File(snapshot));
+            Runtime.getRuntime().addShutdownHook(new Thread("sip-snapshot") {
+                @Override
+                public void run() {
+                    try {
+                        repositories.close();
+                    } catch (IOException ex) {
+                        logger.error("Cannot save snapshot", ex);
+                    }
+                }
+            });
+            return repositories;
+        } catch (IOException ex) {
+            logger.error("Cannot restore snapshot " + snapshot + ", starting empty", ex);
+            return new InMemoryRepositories();
+        }
+    }
+
+    public Repositories getRepositories() {
+        return repositories;
+    }
+
+    private StoreAndForward createStoreAndForward() {
+        String journal = System.getProperty(PROP_OFFLINE_JOURNAL);
+        if (journal == null) {
+            return null;
+        }
+        try {
+            return new StoreAndForward(new TransactionJournal(new File(journal), true), repositories,
+                    Long.getLong(PROP_OFFLINE_SLOW_MILLIS, 2000), 100, 5000);
+        } catch (IOException ex) {
+            logger.error("Cannot open offline journal " + journal + ", offline mode disabled", ex);
+            return null;
+        }
+    }
+
+    public PatronSummaries getPatronSummaries() {
+        return patronSummaries;
+    }
+
+    public StoreAndForward getStoreAndForward() {
+        return storeAndForward;
+    }
+
+    private boolean deferIfOffline(Message msg) {
+        try {
+            return storeAndForward != null && storeAndForward.deferIfOffline(msg);
+        } catch (IOException ex) {
+            logger.error("Cannot journal " + msg.getClass().getSimpleName(), ex);
+            return false;
+        }
+    }
+
+    private boolean defer(Message msg) {
+        try {
+            if (storeAndForward != null) {
+                storeAndForward.defer(msg);
+                return true;
+            }
+        } catch (IOException ex) {
+            logger.error("Cannot journal " + msg.getClass().getSimpleName(), ex);
+        }
+        return false;
+    }
+
+    private void recordDatabaseCall(long start, boolean ok) {
+        if (storeAndForward != null) {
+            storeAndForward.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), ok);
+        }
+    }
+
+    public RecordCache<String, PatronInformationResponse> getPatronCache() {
+        return patronCache;
+    }
+
+    public RecordCache<String, ItemInformationResponse> getItemCache() {
+        return itemCache;
+    }
+
+    private PatronInformationResponse findPatron(String patronIdentifier) {
+        PatronInformationResponse cached = patronCache.get(patronIdentifier);
+        if (cached == null) {
+            long stamp = patronCache.stamp();
+            cached = repositories.patrons().findPatron(patronIdentifier);
+            if (cached == null) {
+                // not found, or the lookup failed
+                return new PatronInformationResponse();
+            }
+            patronCache.put(patronIdentifier, cached, stamp);
+        }
+        return (PatronInformationResponse) cached.clone();
+    }
+
+    private ItemInformationResponse findItem(String itemIdentifier) {
+        ItemInformationResponse cached = itemCache.get(itemIdentifier);
+        if (cached == null) {
+            long stamp = itemCache.stamp();
+            cached = repositories.items().findItem(itemIdentifier);
+            if (cached == null) {
+                return new ItemInformationResponse();
+            }
+            itemCache.put(itemIdentifier, cached, stamp);
+        }
+        return (ItemInformationResponse) cached.clone();
+    }
 
-    PulDao pulDao = new PulDao();
+    private Date dueDate(Date requested) {
+        return requested != null ? requested : new Date(System.currentTimeMillis() + loanMillis);
+    }
+
+    private static String formatDate(Date date) {
+        return date == null ? null : new SimpleDateFormat("yyyyMMdd    HHmmss").format(date);
+    }
 
     @Override
     public ACSStatus Status(SCStatus msg) {
@@ -43,6 +253,8 @@ public class MessageHandlerDummyImpl implements MessageHandler {
         response.getSupportedMessages().setRenewAll(true);
         response.getSupportedMessages().setScAcsStatus(true);
         response.getSupportedMessages().setRequestScAcsResend(true);
+        response.setOfflineOk(storeAndForward != null);
+        response.setOnlineStatus(repositories.isAvailable());
         return response;
     }
 
@@ -57,11 +269,30 @@ public class MessageHandlerDummyImpl implements MessageHandler {
             CheckIn msg) {
         CheckInResponse checkInResponse = new CheckInResponse();
         checkInResponse.setItemIdentifier(msg.getItemIdentifier());
-        checkInResponse.setOk(pulDao.checkInItem(msg.getItemIdentifier()));
+        if (deferIfOffline(msg)) {
+            patronSummaries.checkedIn(msg.getItemIdentifier());
+            checkInResponse.setOk(true);
+            checkInResponse.setScreenMessage("CheckIn accepted offline.");
+            return checkInResponse;
+        }
+        long start = System.nanoTime();
+        Boolean onLoan = repositories.loans().checkIn(msg.getItemIdentifier());
+        checkInResponse.setOk(onLoan != null && onLoan);
+        // false means the item was not checked out, null that the call failed
+        boolean available = onLoan != null || repositories.isAvailable();
+        recordDatabaseCall(start, available);
+        itemCache.invalidate(msg.getItemIdentifier());
+        if (!available && defer(msg)) {
+            patronSummaries.checkedIn(msg.getItemIdentifier());
+            checkInResponse.setOk(true);
+            checkInResponse.setScreenMessage("CheckIn accepted offline.");
+            return checkInResponse;
+        }
         if(checkInResponse.isOk()){
+            patronSummaries.checkedIn(msg.getItemIdentifier());
             checkInResponse.setScreenMessage("CheckIn Successful.");
         }else{
-            checkInResponse.setScreenMessage("CheckIn failed.");
+            checkInResponse.setScreenMessage(available ? "CheckIn failed." : OFFLINE_MESSAGE);
         }
         return checkInResponse;
     }
@@ -71,11 +302,33 @@ public class MessageHandlerDummyImpl implements MessageHandler {
         CheckOutResponse checkOutResponse = new CheckOutResponse();
         checkOutResponse.setItemIdentifier(msg.getItemIdentifier());
         checkOutResponse.setPatronIdentifier(msg.getPatronIdentifier());
-        checkOutResponse.setOk(pulDao.checkoutItem(msg));
+        msg.setNbDueDate(dueDate(msg.getNbDueDate()));
+        checkOutResponse.setDueDate(formatDate(msg.getNbDueDate()));
+        if (deferIfOffline(msg)) {
+            patronSummaries.checkedOut(msg.getPatronIdentifier(), msg.getItemIdentifier(), msg.getNbDueDate());
+            checkOutResponse.setOk(true);
+            checkOutResponse.setScreenMessage("Checkout accepted offline.");
+            return checkOutResponse;
+        }
+        long start = System.nanoTime();
+        boolean ok = repositories.loans().checkOut(msg);
+        // false is a rejected check out, unless the database is unavailable
+        boolean available = ok || repositories.isAvailable();
+        recordDatabaseCall(start, available);
+        patronCache.invalidate(msg.getPatronIdentifier());
+        itemCache.invalidate(msg.getItemIdentifier());
+        if (!available && defer(msg)) {
+            patronSummaries.checkedOut(msg.getPatronIdentifier(), msg.getItemIdentifier(), msg.getNbDueDate());
+            checkOutResponse.setOk(true);
+            checkOutResponse.setScreenMessage("Checkout accepted offline.");
+            return checkOutResponse;
+        }
+        checkOutResponse.setOk(ok);
         if(checkOutResponse.isOk()){
+            patronSummaries.checkedOut(msg.getPatronIdentifier(), msg.getItemIdentifier(), msg.getNbDueDate());
             checkOutResponse.setScreenMessage("Checkout Successful.");
         }else{
-            checkOutResponse.setScreenMessage("Checkout failed.");
+            checkOutResponse.setScreenMessage(available ? "Checkout failed." : OFFLINE_MESSAGE);
         }
         return checkOutResponse;
     }
@@ -89,20 +342,33 @@ public class MessageHandlerDummyImpl implements MessageHandler {
     @Override
     public FeePaidResponse FeePaid(
             FeePaid msg) {
+        if (msg.getPatronIdentifier() != null) {
+            patronSummaries.feePaid(msg.getPatronIdentifier(), msg.getFeeIdentifier());
+        }
+        patronCache.invalidate(msg.getPatronIdentifier());
         return new FeePaidResponse();
     }
 
     @Override
     public HoldResponse Hold(Hold msg) {
         HoldResponse holdResponse = new HoldResponse();
+        boolean identified = msg.getPatronIdentifier() != null && msg.getItemIdentifier() != null;
         if(msg.getHoldMode().equals(HoldMode.ADD)) {
+            if (identified) {
+                patronSummaries.holdPlaced(msg.getPatronIdentifier(), msg.getItemIdentifier());
+            }
             holdResponse.setScreenMessage("Request placed.");
         }else{
+            if (identified) {
+                patronSummaries.holdCancelled(msg.getPatronIdentifier(), msg.getItemIdentifier());
+            }
             holdResponse.setScreenMessage("Request Cancelled.");
         }
         holdResponse.setAvailable(true);
         holdResponse.setOk(true);
         holdResponse.setPatronIdentifier(msg.getPatronIdentifier());
+        patronCache.invalidate(msg.getPatronIdentifier());
+        itemCache.invalidate(msg.getItemIdentifier());
         return holdResponse;
     }
 
@@ -110,8 +376,14 @@ public class MessageHandlerDummyImpl implements MessageHandler {
     public RecallResponse Recall(Recall msg) {
         RecallResponse recallResponse = new RecallResponse();
         if(msg.getHoldMode().equals(HoldMode.ADD)) {
+            if (msg.getItemIdentifier() != null) {
+                patronSummaries.recalled(msg.getItemIdentifier());
+            }
             recallResponse.setScreenMessage("Request placed.");
         }else{
+            if (msg.getItemIdentifier() != null) {
+                patronSummaries.recallCancelled(msg.getItemIdentifier());
+            }
             recallResponse.setScreenMessage("Request Cancelled.");
         }
         recallResponse.setAvailable(true);
@@ -124,9 +396,9 @@ public class MessageHandlerDummyImpl implements MessageHandler {
     public BibResponse Bib(Bib msg) {
         BibResponse bibResponse = new BibResponse();
         bibResponse.setItemIdentifier(msg.getItemIdentifier());
-        Integer existingBibId = pulDao.findBibByItemId(msg.getItemIdentifier());
+        Integer existingBibId = repositories.bibs().findBibId(msg.getItemIdentifier());
         if(existingBibId == null) {
-            Integer bibId = pulDao.createBib(msg);
+            Integer bibId = repositories.bibs().createBib(msg);
             if (bibId != null) {
                 bibResponse.setBibIdentifier("" + bibId);
                 bibResponse.setScreenMessage("Create Bib successful.");
@@ -143,12 +415,12 @@ public class MessageHandlerDummyImpl implements MessageHandler {
     @Override
     public ItemInformationResponse ItemInformation(
             ItemInformation msg) {
-        ItemInformationResponse itemInformationResponse = pulDao.findItemByItemId(msg.getItemIdentifier());
+        ItemInformationResponse itemInformationResponse = findItem(msg.getItemIdentifier());
         if(itemInformationResponse.getItemIdentifier()!=null){
             itemInformationResponse.setScreenMessage("Item Info retrieved successfully");
         }else{
             itemInformationResponse.setItemIdentifier(msg.getItemIdentifier());
-            itemInformationResponse.setScreenMessage("Item barcode not found");
+            itemInformationResponse.setScreenMessage(repositories.isAvailable() ? "Item barcode not found" : OFFLINE_MESSAGE);
         }
         return itemInformationResponse;
     }
@@ -156,13 +428,13 @@ public class MessageHandlerDummyImpl implements MessageHandler {
     @Override
     public ItemStatusUpdateResponse ItemStatusUpdate(
             ItemStatusUpdate msg) {
-
+        itemCache.invalidate(msg.getItemIdentifier());
         return new ItemStatusUpdateResponse();
     }
 
     @Override
     public LoginResponse Login(Login msg) {
-        return new LoginResponse(pulDao.validateLogin(msg.getLoginUserId(),msg.getLoginPassword()));
+        return new LoginResponse(repositories.logins().validateLogin(msg.getLoginUserId(),msg.getLoginPassword()));
     }
 
     @Override
@@ -174,8 +446,10 @@ public class MessageHandlerDummyImpl implements MessageHandler {
     @Override
     public PatronInformationResponse PatronInformation(
             PatronInformation msg) {
-        PatronInformationResponse patronInformationResponse = pulDao.findPatronByPatronId(msg.getPatronIdentifier());
+        PatronInformationResponse patronInformationResponse = findPatron(msg.getPatronIdentifier());
         if(patronInformationResponse.getPatronIdentifier()!=null){
+            patronSummaries.fill(msg.getPatronIdentifier(), patronInformationResponse, msg.getSummary(),
+                    msg.getStartItem(), msg.getEndItem());
             patronInformationResponse.setScreenMessage("Patron validated successfully");
         }else{
             patronInformationResponse.setPatronIdentifier(msg.getPatronIdentifier());
@@ -185,7 +459,7 @@ public class MessageHandlerDummyImpl implements MessageHandler {
             patronInformationResponse.setFineItemsCount(0);
             patronInformationResponse.setRecallItemsCount(0);
             patronInformationResponse.setOverdueItemsCount(0);
-            patronInformationResponse.setScreenMessage("Patron barcode not found");
+            patronInformationResponse.setScreenMessage(repositories.isAvailable() ? "Patron barcode not found" : OFFLINE_MESSAGE);
         }
         return patronInformationResponse;
     }
@@ -197,13 +471,51 @@ public class MessageHandlerDummyImpl implements MessageHandler {
 
     @Override
     public RenewResponse Renew(Renew msg) {
-        return new RenewResponse();
+        RenewResponse renewResponse = new RenewResponse();
+        renewResponse.setPatronIdentifier(msg.getPatronIdentifier());
+        renewResponse.setItemIdentifier(msg.getItemIdentifier());
+        renewResponse.setTitleIdentifier(msg.getTitleIdentifier());
+        Loan loan = null;
+        if (msg.getPatronIdentifier() != null && msg.getItemIdentifier() != null) {
+            loan = repositories.loans().renew(msg.getPatronIdentifier(), msg.getItemIdentifier(), dueDate(msg.getNbDueDate()));
+            patronCache.invalidate(msg.getPatronIdentifier());
+            itemCache.invalidate(msg.getItemIdentifier());
+        }
+        if (loan != null) {
+            patronSummaries.renewed(loan.getPatronIdentifier(), loan.getItemIdentifier(), loan.getDueDate());
+        }
+        renewResponse.setOk(loan != null);
+        renewResponse.setRenewalOk(loan != null);
+        if (loan != null) {
+            renewResponse.setDueDate(formatDate(loan.getDueDate()));
+            renewResponse.setTransactionId("" + loan.getTransactionId());
+            renewResponse.setScreenMessage("Renewal Successful.");
+        } else {
+            renewResponse.setScreenMessage(repositories.isAvailable() ? "Item is not on loan to patron." : OFFLINE_MESSAGE);
+        }
+        return renewResponse;
     }
 
     @Override
     public RenewAllResponse RenewAll(
             RenewAll msg) {
-        return new RenewAllResponse();
+        RenewAllResponse renewAllResponse = new RenewAllResponse();
+        List<Loan> renewed = msg.getPatronIdentifier() == null ? null
+                : repositories.loans().renewAll(msg.getPatronIdentifier(), dueDate(null));
+        renewAllResponse.setOk(renewed != null);
+        renewAllResponse.setRenewedCount(renewed == null ? 0 : renewed.size());
+        renewAllResponse.setUnrenewedCount(0);
+        if (renewed != null) {
+            patronCache.invalidate(msg.getPatronIdentifier());
+            for (Loan loan : renewed) {
+                patronSummaries.renewed(loan.getPatronIdentifier(), loan.getItemIdentifier(), loan.getDueDate());
+                itemCache.invalidate(loan.getItemIdentifier());
+            }
+            renewAllResponse.setScreenMessage(renewed.size() + " items renewed.");
+        } else if (msg.getPatronIdentifier() != null) {
+            renewAllResponse.setScreenMessage(repositories.isAvailable() ? "Renewal failed." : OFFLINE_MESSAGE);
+        }
+        return renewAllResponse;
     }
 
 }
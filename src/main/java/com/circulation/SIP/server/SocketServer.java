@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Properties;
 
+import com.circulation.SIP.dao.PulDao;
+
 
 public class SocketServer {
 	
@@ -33,6 +35,7 @@ public class SocketServer {
 	    try {
 	        in = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
 	        properties.load(in);
+	        PulDao.configure(properties);
 	        String nyplServerIp = properties.getProperty("ils.nypl.sip.server.url");
 		     String nyplServerPost = properties.getProperty("ils.nypl.sip.server.port");
 
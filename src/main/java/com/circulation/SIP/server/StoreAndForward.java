@@ -0,0 +1,234 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.circulation.SIP.dao.LoanRepository;
+import com.circulation.SIP.dao.Repositories;
+import com.circulation.SIP.dao.TransactionJournal;
+import com.circulation.SIP.messages.CheckIn;
+import com.circulation.SIP.messages.CheckOut;
+import com.circulation.SIP.messages.Message;
+
+/**
+ * Offline mode for write transactions.
+ *
+ * While the database is failing or slower than the configured threshold,
+ * or older transactions are still waiting in the journal, check outs and
+ * check ins are written to the journal and acknowledged at once. A
+ * background thread replays the journal to the database in batches, in
+ * order, and the handler goes back to writing directly once it is empty.
+ */
+public class StoreAndForward implements Closeable {
+    private static Log logger = LogFactory.getLog(StoreAndForward.class);
+
+    /**
+     * Failed replays of one transaction after which it is set aside so the
+     * ones behind it are not held up forever. Replays that fail while the
+     * database is unavailable are not counted.
+     */
+    private static final int MAX_ATTEMPTS = 100;
+
+    private final TransactionJournal journal;
+    private final Repositories repositories;
+    private final LoanRepository loans;
+    private final long slowMillis;
+    private final int batchSize;
+    private final long retryMillis;
+    private final ScheduledExecutorService forwarder;
+    private volatile boolean backendHealthy = true;
+    private int attempts;
+    private long replayed;
+    private long rejected;
+
+    /**
+     * @param slowMillis  a database call taking longer than this switches
+     *                    to offline mode
+     * @param batchSize   records replayed per batch
+     * @param retryMillis interval between replay attempts
+     */
+    public StoreAndForward(TransactionJournal journal, Repositories repositories, long slowMillis, int batchSize, long retryMillis) {
+        this.journal = journal;
+        this.repositories = repositories;
+        this.loans = repositories.loans();
+        this.slowMillis = slowMillis;
+        this.batchSize = batchSize;
+        this.retryMillis = retryMillis;
+        this.forwarder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sip-store-and-forward");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.forwarder.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                forward();
+            }
+        }, retryMillis, retryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isOffline() {
+        return !backendHealthy || !journal.isEmpty();
+    }
+
+    /**
+     * Records the outcome of a direct database call.
+     */
+    public void record(long millis, boolean ok) {
+        if (!ok || millis > slowMillis) {
+            if (backendHealthy) {
+                logger.warn("Database " + (ok ? "slow (" + millis + "ms)" : "failing") + ", switching to offline mode");
+            }
+            backendHealthy = false;
+        }
+    }
+
+    /**
+     * Journals the transaction if the handler is offline.
+     *
+     * @return true if it was journaled and should be acknowledged
+     */
+    public synchronized boolean deferIfOffline(Message request) throws IOException {
+        if (!isOffline()) {
+            return false;
+        }
+        defer(request);
+        return true;
+    }
+
+    public synchronized void defer(Message request) throws IOException {
+        try {
+            journal.append(request.encode());
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Cannot journal " + request.getClass().getSimpleName(), ex);
+        }
+    }
+
+    public long getPendingCount() {
+        return journal.getPendingCount();
+    }
+
+    public synchronized long getReplayedCount() {
+        return replayed;
+    }
+
+    /**
+     * @return number of transactions set aside after failing to replay
+     *         repeatedly, see {@link TransactionJournal#reject(String)}
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    private boolean replay(Message request) {
+        if (request instanceof CheckOut) {
+            // leaves the journal only once it is in the database
+            return loans.checkOutDurably((CheckOut) request);
+        }
+        if (request instanceof CheckIn) {
+            // false only means there was nothing checked out
+            return loans.checkIn(((CheckIn) request).getItemIdentifier()) != null;
+        }
+        logger.error("Cannot replay " + request.getClass().getSimpleName());
+        return false;
+    }
+
+    void forward() {
+        try {
+            List<String> batch = journal.readBatch(batchSize);
+            while (!batch.isEmpty()) {
+                int done = 0;
+                for (String record : batch) {
+                    long start = System.nanoTime();
+                    boolean ok;
+                    int maxAttempts = MAX_ATTEMPTS;
+                    try {
+                        ok = replay(Message.decode(record, null, false));
+                    } catch (Exception ex) {
+                        logger.error("Corrupt journal record: " + record, ex);
+                        ok = false;
+                        maxAttempts = 1;
+                    }
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    if (!ok && maxAttempts > 1 && !repositories.isAvailable()) {
+                        // the outage, not the record, failed it
+                        break;
+                    }
+                    if (!ok && ++attempts < maxAttempts) {
+                        break;
+                    }
+                    if (!ok) {
+                        logger.error("Setting aside transaction after " + attempts + " failed attempts: " + record);
+                        journal.reject(record);
+                    }
+                    synchronized (this) {
+                        if (ok) {
+                            replayed++;
+                        } else {
+                            rejected++;
+                        }
+                    }
+                    attempts = 0;
+                    done++;
+                    if (millis > slowMillis) {
+                        break;
+                    }
+                }
+                journal.commit(done);
+                if (done < batch.size()) {
+                    // the database is still unavailable or slow, try later
+                    return;
+                }
+                batch = journal.readBatch(batchSize);
+            }
+            synchronized (this) {
+                if (journal.isEmpty() && !backendHealthy) {
+                    logger.info("Journal replayed, leaving offline mode");
+                    backendHealthy = true;
+                }
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to replay journal", ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        forwarder.shutdown();
+        try {
+            forwarder.awaitTermination(retryMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+}
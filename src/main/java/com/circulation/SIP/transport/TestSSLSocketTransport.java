@@ -56,7 +56,7 @@ public class TestSSLSocketTransport {
 
 	@After
 	public void tearDown() throws Exception {
-    server.stop();
+    server.stop().syncUninterruptibly();
 	}
 
 	@Test
@@ -52,7 +52,7 @@ public class TestSocketTransport {
 
 	@After
 	public void tearDown() throws Exception {
-    server.stop();
+    server.stop().syncUninterruptibly();
 	}
 
 	@Test
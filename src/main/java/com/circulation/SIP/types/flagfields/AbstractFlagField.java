@@ -21,7 +21,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
-public abstract class AbstractFlagField implements Serializable {
+public abstract class AbstractFlagField implements Serializable, Cloneable {
 
     private static final long serialVersionUID = -3439876098750195408L;
     private String flags;
@@ -102,6 +102,15 @@ public abstract class AbstractFlagField implements Serializable {
         }
     }
 
+    @Override
+    public AbstractFlagField clone() {
+        try {
+            return (AbstractFlagField) super.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new java.lang.AssertionError(ex);
+        }
+    }
+
     public void clear() {
         this.flags = "";
         this.checkLength();
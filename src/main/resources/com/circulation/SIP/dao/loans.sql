@@ -0,0 +1,42 @@
+-- Loan tables used by PulDao (MySQL, InnoDB).
+--
+-- active_loan holds one row per item on loan, so finding, closing and
+-- renewing a loan are primary key or index lookups however long the
+-- check_out history grows.
+
+create table if not exists active_loan (
+    item_identifier    varchar(64) not null,
+    patron_identifier  varchar(64) not null,
+    transaction_id     bigint      not null,
+    check_out_date     datetime    not null,
+    due_date           datetime    null,
+    renewal_count      int         not null default 0,
+    primary key (item_identifier),
+    key active_loan_patron (patron_identifier)
+) engine = InnoDB;
+
+-- Loan history, one row per check out. Loans are closed by setting
+-- check_in_date; the open loan of an item or of a patron is found
+-- through the indexes on the identifier and check_in_date.
+
+create table if not exists check_out (
+    transaction_id     varchar(32) not null,
+    transaction_date   date        null,
+    patron_identifier  varchar(64) null,
+    item_identifier    varchar(64) null,
+    due_date           date        null,
+    check_in_date      datetime    null,
+    primary key (transaction_id),
+    key check_out_item (item_identifier, check_in_date),
+    key check_out_patron (patron_identifier, check_in_date)
+) engine = InnoDB;
+
+-- For a check_out table created before active_loan existed, instead:
+--
+-- alter table check_out
+--     add column check_in_date datetime null,
+--     add key check_out_item (item_identifier, check_in_date),
+--     add key check_out_patron (patron_identifier, check_in_date);
+--
+-- Check ins were not recorded before, so earlier rows stay open in the
+-- history and have no active loan.
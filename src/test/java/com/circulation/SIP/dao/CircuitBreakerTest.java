@@ -0,0 +1,103 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void staysClosedBelowTheThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 60000);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertEquals(0, breaker.getTripCount());
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 60000);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.recordFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(1, breaker.getTripCount());
+        assertEquals(2, breaker.getRejectedCount());
+        // late outcomes of calls let through before it opened change nothing
+        breaker.recordFailure();
+        assertEquals(1, breaker.getTripCount());
+    }
+
+    @Test
+    public void successfulTrialCloses() throws InterruptedException {
+        CircuitBreaker breaker = open(100);
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // only one trial at a time
+        assertFalse(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void failedTrialOpensAgain() throws InterruptedException {
+        CircuitBreaker breaker = open(100);
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(1, breaker.getTripCount());
+    }
+
+    @Test
+    public void lostTrialDoesNotBlockTheNextOne() throws InterruptedException {
+        CircuitBreaker breaker = open(100);
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest());
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAThresholdBelowOne() {
+        new CircuitBreaker("test", 0, 1000);
+    }
+
+    private static CircuitBreaker open(long openMillis) {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, openMillis);
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        return breaker;
+    }
+}
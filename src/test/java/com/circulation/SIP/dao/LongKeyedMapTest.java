@@ -0,0 +1,103 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongKeyedMapTest {
+
+    @Test
+    public void putGetRemove() {
+        LongKeyedMap<String> map = new LongKeyedMap<String>();
+        assertNull(map.put(1L, "a"));
+        assertEquals("a", map.put(1L, "b"));
+        assertEquals("b", map.get(1L));
+        assertNull(map.get(2L));
+        assertEquals(1, map.size());
+        assertEquals("b", map.remove(1L));
+        assertNull(map.remove(1L));
+        assertNull(map.get(1L));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void keysAfterARemovedOneAreStillFound() {
+        // far more keys than segments, so every segment's probe sequences
+        // collide and removals have to shift entries back
+        LongKeyedMap<Long> map = new LongKeyedMap<Long>();
+        int count = 5000;
+        for (long key = 0; key < count; key++) {
+            map.put(key, key);
+        }
+        for (long key = 0; key < count; key += 2) {
+            assertEquals(Long.valueOf(key), map.remove(key));
+        }
+        assertEquals(count / 2, map.size());
+        for (long key = 0; key < count; key++) {
+            if (key % 2 == 0) {
+                assertNull(map.get(key));
+            } else {
+                assertEquals(Long.valueOf(key), map.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void behavesLikeAHashMap() {
+        LongKeyedMap<Integer> map = new LongKeyedMap<Integer>();
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        Random random = new Random(45);
+        for (int i = 0; i < 200000; i++) {
+            long key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = -1000; key < 1000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        final Map<Long, Integer> visited = new HashMap<Long, Integer>();
+        map.forEach(new LongKeyedMap.Visitor<Integer>() {
+            @Override
+            public void visit(long key, Integer value) {
+                visited.put(key, value);
+            }
+        });
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void clearEmptiesTheMap() {
+        LongKeyedMap<String> map = new LongKeyedMap<String>();
+        for (long key = 0; key < 100; key++) {
+            map.put(key, "v");
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(5L));
+    }
+}
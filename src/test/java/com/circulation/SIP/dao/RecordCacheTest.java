@@ -0,0 +1,138 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class RecordCacheTest {
+
+    @Test
+    public void servesWhatWasPut() {
+        RecordCache<String, String> cache = new RecordCache<String, String>(10, 60000);
+        assertNull(cache.get("a"));
+        cache.put("a", "A", cache.stamp());
+        assertEquals("A", cache.get("a"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void scanEvictsRecordsSeenOnce() {
+        // 8 protected and 2 probationary entries
+        RecordCache<String, String> cache = new RecordCache<String, String>(10, 60000);
+        cache.put("a", "A", cache.stamp());
+        scan(cache, 5);
+        assertNull(cache.get("a"));
+        assertEquals(2, cache.size());
+        assertEquals(4, cache.getEvictionCount());
+    }
+
+    @Test
+    public void hitPromotesOutOfReachOfAScan() {
+        RecordCache<String, String> cache = new RecordCache<String, String>(10, 60000);
+        cache.put("a", "A", cache.stamp());
+        assertEquals("A", cache.get("a"));
+        scan(cache, 100);
+        assertEquals("A", cache.get("a"));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void fullProtectedSegmentDemotesItsEldest() {
+        RecordCache<String, String> cache = new RecordCache<String, String>(10, 60000);
+        for (int i = 0; i < 9; i++) {
+            cache.put("p" + i, "P", cache.stamp());
+            cache.get("p" + i);
+        }
+        // p0 went back to probation rather than being dropped
+        assertEquals(9, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+        scan(cache, 2);
+        assertNull(cache.get("p0"));
+        assertEquals("P", cache.get("p1"));
+    }
+
+    @Test
+    public void loadRacingAnInvalidationIsNotCached() {
+        RecordCache<String, String> cache = new RecordCache<String, String>(10, 60000);
+        long stamp = cache.stamp();
+        cache.invalidate("a");
+        cache.put("a", "stale", stamp);
+        assertNull(cache.get("a"));
+        stamp = cache.stamp();
+        cache.invalidateAll();
+        cache.put("a", "stale", stamp);
+        assertNull(cache.get("a"));
+        cache.put("a", "A", cache.stamp());
+        assertEquals("A", cache.get("a"));
+    }
+
+    @Test
+    public void invalidationLeavesLoadsOfOtherKeysAlone() {
+        RecordCache<String, String> cache = new RecordCache<String, String>(10, 60000);
+        long stamp = cache.stamp();
+        cache.invalidate("b");
+        cache.put("a", "A", stamp);
+        assertEquals("A", cache.get("a"));
+    }
+
+    @Test
+    public void forgottenInvalidationsRejectLoadsAsOld() {
+        RecordCache<String, String> cache = new RecordCache<String, String>(10, 60000);
+        long stamp = cache.stamp();
+        cache.invalidate("a");
+        for (int i = 0; i < 64; i++) {
+            cache.invalidate("other" + i);
+        }
+        cache.put("a", "stale", stamp);
+        assertNull(cache.get("a"));
+        cache.put("a", "A", cache.stamp());
+        assertEquals("A", cache.get("a"));
+    }
+
+    @Test
+    public void invalidateRemovesFromBothSegments() {
+        RecordCache<String, String> cache = new RecordCache<String, String>(10, 60000);
+        cache.put("a", "A", cache.stamp());
+        cache.get("a");
+        cache.put("b", "B", cache.stamp());
+        cache.invalidate("a");
+        cache.invalidate("b");
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expiredRecordsAreNotServed() throws InterruptedException {
+        RecordCache<String, String> cache = new RecordCache<String, String>(10, 50);
+        cache.put("a", "A", cache.stamp());
+        cache.put("b", "B", cache.stamp());
+        cache.get("b");
+        Thread.sleep(100);
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(0, cache.size());
+    }
+
+    private static void scan(RecordCache<String, String> cache, int count) {
+        for (int i = 0; i < count; i++) {
+            cache.put("scan" + i, "S", cache.stamp());
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatementCacheTest {
+    /**
+     * A statement of the fake connection, recording what was done to it.
+     */
+    private static final class FakeStatement {
+        final PreparedStatement statement;
+        boolean closed;
+        int cleared;
+
+        FakeStatement() {
+            statement = (PreparedStatement) Proxy.newProxyInstance(StatementCacheTest.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            String name = method.getName();
+                            if (name.equals("close")) {
+                                closed = true;
+                            } else if (name.equals("clearParameters")) {
+                                cleared++;
+                            } else if (name.equals("executeUpdate")) {
+                                return 1;
+                            } else if (name.equals("toString")) {
+                                return "fake statement";
+                            }
+                            return null;
+                        }
+                    });
+        }
+    }
+
+    private final List<FakeStatement> prepared = new ArrayList<FakeStatement>();
+    private Connection physical;
+    private Connection owner;
+    private AtomicLong hits;
+    private AtomicLong misses;
+
+    @Before
+    public void setUp() {
+        physical = (Connection) Proxy.newProxyInstance(StatementCacheTest.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("prepareStatement")) {
+                            FakeStatement statement = new FakeStatement();
+                            prepared.add(statement);
+                            return statement.statement;
+                        }
+                        return null;
+                    }
+                });
+        owner = (Connection) Proxy.newProxyInstance(StatementCacheTest.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    private PreparedStatement prepare(StatementCache cache, String sql) throws SQLException {
+        return cache.prepare(physical, owner, sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    @Test
+    public void closedStatementIsReused() throws SQLException {
+        StatementCache cache = new StatementCache(10, hits, misses);
+        PreparedStatement first = prepare(cache, "select 1");
+        assertSame(owner, first.getConnection());
+        first.close();
+        assertTrue(first.isClosed());
+        PreparedStatement second = prepare(cache, "select 1");
+        assertEquals(1, second.executeUpdate());
+        second.close();
+        assertEquals(1, prepared.size());
+        assertFalse(prepared.get(0).closed);
+        assertEquals(2, prepared.get(0).cleared);
+        assertEquals(1, hits.get());
+        assertEquals(1, misses.get());
+    }
+
+    @Test
+    public void closedProxyCannotBeUsed() throws SQLException {
+        StatementCache cache = new StatementCache(10, hits, misses);
+        PreparedStatement statement = prepare(cache, "select 1");
+        statement.close();
+        // closing twice does not release the statement from its next user
+        PreparedStatement next = prepare(cache, "select 1");
+        statement.close();
+        try {
+            statement.executeUpdate();
+            fail();
+        } catch (SQLException expected) {
+        }
+        assertEquals(1, next.executeUpdate());
+        assertNotSame(statement, prepare(cache, "select 1"));
+        assertEquals(2, prepared.size());
+    }
+
+    @Test
+    public void statementInUseIsNotShared() throws SQLException {
+        StatementCache cache = new StatementCache(10, hits, misses);
+        PreparedStatement first = prepare(cache, "select 1");
+        PreparedStatement second = prepare(cache, "select 1");
+        assertEquals(2, prepared.size());
+        assertEquals(2, misses.get());
+        // the second one is not cached, so closing it really closes it
+        second.close();
+        assertTrue(prepared.get(1).closed);
+        first.close();
+        assertFalse(prepared.get(0).closed);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evictionSkipsStatementsInUse() throws SQLException {
+        StatementCache cache = new StatementCache(1, hits, misses);
+        PreparedStatement held = prepare(cache, "select 1");
+        PreparedStatement other = prepare(cache, "select 2");
+        assertFalse(prepared.get(0).closed);
+        assertFalse(prepared.get(1).closed);
+        assertEquals(1, other.executeUpdate());
+        other.close();
+        held.close();
+        // the next statement prepared pushes out the least recently used
+        prepare(cache, "select 3").close();
+        assertEquals(1, cache.size());
+        assertTrue(prepared.get(0).closed);
+        assertTrue(prepared.get(1).closed);
+        assertFalse(prepared.get(2).closed);
+    }
+
+    @Test
+    public void resetReleasesStatementsLeftOpen() throws SQLException {
+        StatementCache cache = new StatementCache(10, hits, misses);
+        prepare(cache, "select 1");
+        cache.reset();
+        prepare(cache, "select 1");
+        assertEquals(1, prepared.size());
+        assertEquals(1, hits.get());
+    }
+
+    @Test
+    public void closeClosesEveryStatement() throws SQLException {
+        StatementCache cache = new StatementCache(10, hits, misses);
+        prepare(cache, "select 1").close();
+        prepare(cache, "select 2");
+        cache.close();
+        assertEquals(0, cache.size());
+        assertTrue(prepared.get(0).closed);
+        assertTrue(prepared.get(1).closed);
+    }
+}
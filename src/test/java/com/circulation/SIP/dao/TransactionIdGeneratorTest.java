@@ -0,0 +1,96 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TransactionIdGeneratorTest {
+
+    @Test
+    public void idsStrictlyIncrease() {
+        TransactionIdGenerator generator = new TransactionIdGenerator(7);
+        // many more ids than fit in one millisecond's sequence
+        long last = generator.next();
+        for (int i = 0; i < 1000000; i++) {
+            long id = generator.next();
+            assertTrue(id > last);
+            last = id;
+        }
+    }
+
+    @Test
+    public void idsAreUniqueAcrossThreads() throws InterruptedException {
+        final TransactionIdGenerator generator = new TransactionIdGenerator(1);
+        final List<long[]> results = new ArrayList<long[]>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final long[] ids = new long[50000];
+            results.add(ids);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = generator.next();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Set<Long> unique = new HashSet<Long>();
+        for (long[] ids : results) {
+            for (long id : ids) {
+                unique.add(id);
+            }
+        }
+        assertEquals(4 * 50000, unique.size());
+    }
+
+    @Test
+    public void idsCarryTheNodeAndTime() {
+        long before = System.currentTimeMillis();
+        long id = new TransactionIdGenerator(TransactionIdGenerator.MAX_NODE_ID).next();
+        long after = System.currentTimeMillis();
+        assertEquals(TransactionIdGenerator.MAX_NODE_ID, TransactionIdGenerator.getNodeId(id));
+        long timestamp = TransactionIdGenerator.getTimestamp(id);
+        assertTrue(timestamp >= before && timestamp <= after);
+        assertTrue(id > 0);
+    }
+
+    @Test
+    public void nodesDoNotCollide() {
+        assertNotEquals(new TransactionIdGenerator(1).next(), new TransactionIdGenerator(2).next());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANodeIdOutOfRange() {
+        new TransactionIdGenerator(TransactionIdGenerator.MAX_NODE_ID + 1);
+    }
+}
@@ -0,0 +1,72 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransactionJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsSurviveARestartUntilCommitted() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        TransactionJournal journal = new TransactionJournal(file, true);
+        journal.append("a");
+        journal.append("b");
+        journal.append("c");
+        assertEquals(Arrays.asList("a", "b"), journal.readBatch(2));
+        journal.commit(1);
+        journal.close();
+
+        journal = new TransactionJournal(file, true);
+        assertEquals(2, journal.getPendingCount());
+        assertEquals(Arrays.asList("b", "c"), journal.readBatch(10));
+        journal.commit(2);
+        assertTrue(journal.isEmpty());
+        assertEquals(0, file.length());
+        journal.close();
+    }
+
+    @Test
+    public void staleCheckpointBeyondTheJournalIsReset() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        // as left by a crash after truncating, before the checkpoint was reset
+        Files.write(new File(file.getPath() + ".checkpoint").toPath(), "1000".getBytes("UTF-8"));
+        file.createNewFile();
+
+        TransactionJournal journal = new TransactionJournal(file, true);
+        assertTrue(journal.isEmpty());
+        journal.append("a");
+        journal.close();
+
+        journal = new TransactionJournal(file, true);
+        assertEquals(1, journal.getPendingCount());
+        assertEquals(Arrays.asList("a"), journal.readBatch(10));
+        journal.close();
+    }
+}
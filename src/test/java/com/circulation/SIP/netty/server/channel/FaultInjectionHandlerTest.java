@@ -0,0 +1,194 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.circulation.SIP.messages.ItemInformation;
+import com.circulation.SIP.messages.ItemInformationResponse;
+import com.circulation.SIP.messages.Message;
+import com.circulation.SIP.messages.SCResend;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class FaultInjectionHandlerTest {
+  private static final Charset CHARSET = Charset.forName("US-ASCII");
+
+  private final Map<String, Fault> faults = new HashMap<String, Fault>();
+  private EmbeddedChannel channel;
+
+  @Before
+  public void setUp() {
+    FaultPolicy policy = new FaultPolicy() {
+      @Override
+      public Fault select(Message request) {
+        return faults.get(((ItemInformation) request).getItemIdentifier());
+      }
+    };
+    channel = new EmbeddedChannel(new FaultInjectionHandler(policy, CHARSET), new ChannelInboundHandlerAdapter() {
+      @Override
+      public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.writeAndFlush(new SCResend());
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    channel.finishAndReleaseAll();
+  }
+
+  private void request(String item) {
+    ItemInformation request = new ItemInformation();
+    request.setItemIdentifier(item);
+    channel.writeInbound(request);
+    assertTrue(channel.readInbound() instanceof ItemInformation);
+  }
+
+  private ChannelFuture respond(String item) {
+    ItemInformationResponse response = new ItemInformationResponse();
+    response.setItemIdentifier(item);
+    return channel.writeAndFlush(response);
+  }
+
+  private String nextResponse() {
+    Object written = channel.readOutbound();
+    return written == null ? null : ((ItemInformationResponse) written).getItemIdentifier();
+  }
+
+  private void runDueTasks(long millis) throws InterruptedException {
+    Thread.sleep(millis);
+    channel.runPendingTasks();
+  }
+
+  @Test
+  public void responseWithoutFaultIsWrittenAtOnce() {
+    request("a");
+    respond("a");
+    assertEquals("a", nextResponse());
+  }
+
+  @Test
+  public void delayedResponseIsWrittenLater() throws InterruptedException {
+    faults.put("a", Fault.delay(100000));
+    request("a");
+    respond("a");
+    assertNull(nextResponse());
+    runDueTasks(200);
+    assertEquals("a", nextResponse());
+  }
+
+  @Test
+  public void responsesKeepTheOrderOfTheirRequests() throws InterruptedException {
+    faults.put("slow", Fault.delay(100000));
+    faults.put("slower", Fault.delay(150000));
+    request("slower");
+    request("slow");
+    request("fast");
+    respond("slower");
+    respond("slow");
+    respond("fast");
+    // the fast response waits behind the delayed ones
+    assertNull(nextResponse());
+    runDueTasks(250);
+    assertEquals("slower", nextResponse());
+    assertEquals("slow", nextResponse());
+    assertEquals("fast", nextResponse());
+    assertNull(nextResponse());
+  }
+
+  @Test
+  public void droppedResponseIsNeverWritten() {
+    faults.put("a", new Fault(0, Fault.Action.DROP, 0));
+    request("a");
+    request("b");
+    assertTrue(respond("a").isSuccess());
+    respond("b");
+    assertEquals("b", nextResponse());
+    assertNull(nextResponse());
+  }
+
+  @Test
+  public void resendStormPrecedesTheResponse() {
+    faults.put("a", new Fault(0, Fault.Action.RESEND_STORM, 2));
+    request("a");
+    respond("a");
+    assertTrue(channel.readOutbound() instanceof SCResend);
+    assertTrue(channel.readOutbound() instanceof SCResend);
+    assertEquals("a", nextResponse());
+  }
+
+  @Test
+  public void corruptedResponseHasAWrongChecksum() throws Exception {
+    faults.put("a", new Fault(0, Fault.Action.CORRUPT_CHECKSUM, 0));
+    request("a");
+    ItemInformationResponse response = new ItemInformationResponse();
+    response.setItemIdentifier("a");
+    response.setSequenceCharacter('1');
+    String expected = response.encode();
+    channel.writeAndFlush(response);
+    ByteBuf written = channel.readOutbound();
+    String encoded = written.toString(CHARSET);
+    written.release();
+    assertTrue(encoded.endsWith("\r"));
+    encoded = encoded.substring(0, encoded.length() - 1);
+    assertEquals(expected.substring(0, expected.length() - 4), encoded.substring(0, encoded.length() - 4));
+    assertFalse(expected.equals(encoded));
+  }
+
+  @Test
+  public void resetClosesTheConnection() {
+    faults.put("a", new Fault(0, Fault.Action.RESET, 0));
+    request("a");
+    assertFalse(respond("a").isSuccess());
+    assertFalse(channel.isOpen());
+  }
+
+  @Test
+  public void errorResponseDoesNotTakeTheFaultOfARequest() throws InterruptedException {
+    faults.put("a", Fault.delay(100000));
+    request("a");
+    channel.pipeline().fireExceptionCaught(new IllegalStateException("undecodable frame"));
+    assertTrue(channel.readOutbound() instanceof SCResend);
+    respond("a");
+    assertNull(nextResponse());
+    runDueTasks(200);
+    assertEquals("a", nextResponse());
+  }
+
+  @Test
+  public void checksumIsChangedOnlyWhenPresent() {
+    assertEquals("98YAZ0001", FaultInjectionHandler.corruptChecksum("98YAZ0000"));
+    assertEquals("98YAZ0000", FaultInjectionHandler.corruptChecksum("98YAZFFFF"));
+    assertEquals("98Y", FaultInjectionHandler.corruptChecksum("98Y"));
+  }
+}
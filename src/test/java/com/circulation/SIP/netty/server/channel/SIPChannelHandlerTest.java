@@ -0,0 +1,171 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.circulation.SIP.messages.ItemInformation;
+import com.circulation.SIP.messages.ItemInformationResponse;
+import com.circulation.SIP.messages.Message;
+import com.circulation.SIP.messages.SCResend;
+import com.circulation.SIP.netty.server.driver.Driver;
+import com.circulation.SIP.samples.netty.DummyDriver;
+import com.circulation.SIP.samples.netty.DummyDriverFactory;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+
+public class SIPChannelHandlerTest {
+    /**
+     * Answers item information after the number of milliseconds following
+     * the '-' in the item identifier.
+     */
+    public static class SlowDriver extends DummyDriver {
+        @Override
+        public ItemInformationResponse ItemInformation(ItemInformation msg) {
+            try {
+                Thread.sleep(Long.parseLong(msg.getItemIdentifier().substring(msg.getItemIdentifier().indexOf('-') + 1)));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            ItemInformationResponse response = new ItemInformationResponse();
+            response.setItemIdentifier(msg.getItemIdentifier());
+            return response;
+        }
+    }
+
+    private DefaultEventExecutorGroup offload;
+    private EmbeddedChannel channel;
+    private final List<Message> written = new ArrayList<Message>();
+    private final List<Integer> flushes = new ArrayList<Integer>();
+
+    @Before
+    public void setUp() {
+        offload = new DefaultEventExecutorGroup(4);
+        SIPChannelHandler handler = new SIPChannelHandler(new DummyDriverFactory() {
+            @Override
+            public Driver getDriver() {
+                return new SlowDriver();
+            }
+        });
+        handler.setPipelining(offload, 16);
+        // keeps the writes away from the embedded transport, which runs the
+        // pending tasks from inside each write
+        channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                written.add((Message) msg);
+                promise.setSuccess();
+            }
+
+            @Override
+            public void flush(ChannelHandlerContext ctx) {
+                flushes.add(written.size());
+            }
+        }, handler);
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        offload.shutdownGracefully();
+    }
+
+    private void request(String item, char sequence) {
+        ItemInformation request = new ItemInformation();
+        request.setItemIdentifier(item);
+        request.setSequenceCharacter(sequence);
+        channel.writeInbound(request);
+    }
+
+    /**
+     * Runs the event loop tasks posted by the offload executor until the
+     * given number of responses has been written.
+     */
+    private List<Message> responses(int count) throws InterruptedException {
+        List<Message> responses = new ArrayList<Message>();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (responses.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            channel.runPendingTasks();
+            responses.addAll(written);
+            written.clear();
+        }
+        return responses;
+    }
+
+    private static String item(Message response) {
+        return ((ItemInformationResponse) response).getItemIdentifier();
+    }
+
+    @Test
+    public void responsesKeepTheOrderOfTheirRequests() throws InterruptedException {
+        request("a-300", '0');
+        request("b-0", '1');
+        request("c-150", '2');
+        List<Message> responses = responses(3);
+        assertEquals(3, responses.size());
+        assertEquals("a-300", item(responses.get(0)));
+        assertEquals("b-0", item(responses.get(1)));
+        assertEquals("c-150", item(responses.get(2)));
+        assertEquals(Character.valueOf('1'), responses.get(1).getSequenceCharacter());
+    }
+
+    @Test
+    public void errorResponseWaitsForTheResponsesAheadOfIt() throws InterruptedException {
+        request("a-200", '0');
+        channel.pipeline().fireExceptionCaught(new IllegalStateException("undecodable frame"));
+        assertTrue(written.isEmpty());
+        List<Message> responses = responses(2);
+        assertEquals(2, responses.size());
+        assertEquals("a-200", item(responses.get(0)));
+        assertTrue(responses.get(1) instanceof SCResend);
+    }
+
+    @Test
+    public void errorResponseWithNothingPendingIsWrittenAtOnce() {
+        channel.pipeline().fireExceptionCaught(new IllegalStateException("undecodable frame"));
+        assertEquals(1, written.size());
+        assertTrue(written.get(0) instanceof SCResend);
+        assertEquals(1, flushes.size());
+    }
+
+    @Test
+    public void completionsLandingTogetherAreFlushedOnce() throws InterruptedException {
+        request("a-50", '0');
+        request("b-100", '1');
+        // both complete before the event loop runs again, apart since the
+        // embedded event loop takes tasks from one thread at a time
+        Thread.sleep(300);
+        flushes.clear();
+        List<Message> responses = responses(2);
+        assertEquals(2, responses.size());
+        assertEquals(1, flushes.size());
+        assertEquals(Integer.valueOf(2), flushes.get(0));
+    }
+}
@@ -0,0 +1,130 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.server.driver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.circulation.SIP.messages.ItemInformation;
+import com.circulation.SIP.messages.ItemInformationResponse;
+import com.circulation.SIP.messages.Message;
+import com.circulation.SIP.samples.netty.DummyDriverFactory;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class SingleFlightInterceptorTest {
+    private final SingleFlightInterceptor singleFlight = new SingleFlightInterceptor();
+    private final ExecutorService offload = Executors.newFixedThreadPool(2);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        offload.shutdownNow();
+    }
+
+    private static ItemInformation request(String item) {
+        ItemInformation request = new ItemInformation();
+        request.setItemIdentifier(item);
+        return request;
+    }
+
+    /**
+     * Looks up an item, holding the first lookup until released.
+     */
+    private Future<Message> lookup(final String item, final Message answer) {
+        return offload.submit(new Callable<Message>() {
+            @Override
+            public Message call() throws Exception {
+                return singleFlight.intercept(null, request(item), new Invocation() {
+                    @Override
+                    public Message proceed(Driver driver, Message request) throws Exception {
+                        started.countDown();
+                        release.await();
+                        return answer;
+                    }
+                });
+            }
+        });
+    }
+
+    private void waitForWaiter() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (singleFlight.getCoalescedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void identicalLookupsAreCoalesced() throws Exception {
+        ItemInformationResponse answer = new ItemInformationResponse();
+        answer.setItemIdentifier("1234");
+        Future<Message> leader = lookup("1234", answer);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Message> follower = lookup("1234", null);
+        waitForWaiter();
+        release.countDown();
+        assertEquals("1234", ((ItemInformationResponse) leader.get(5, TimeUnit.SECONDS)).getItemIdentifier());
+        Message copy = follower.get(5, TimeUnit.SECONDS);
+        assertEquals("1234", ((ItemInformationResponse) copy).getItemIdentifier());
+        assertNotSame(answer, copy);
+        assertEquals(1, singleFlight.getLookupCount());
+        assertEquals(1, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    public void nullResponseIsSharedAsNull() throws Exception {
+        Future<Message> leader = lookup("1234", null);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Message> follower = lookup("1234", null);
+        waitForWaiter();
+        release.countDown();
+        assertNull(leader.get(5, TimeUnit.SECONDS));
+        assertNull(follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    public void requestsOnAnEventLoopAreRefused() throws Exception {
+        DriverLifecycle drivers = new DriverLifecycle(new SingleFlightDriverFactory(new DummyDriverFactory()));
+        assertTrue(drivers.isOffloadRequired());
+        EmbeddedChannel channel = new EmbeddedChannel();
+        try {
+            drivers.invoke(channel, request("1234"));
+            fail("processed on the event loop");
+        } catch (IllegalStateException ex) {
+            // expected
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+        assertFalse(new DriverLifecycle(new DummyDriverFactory()).isOffloadRequired());
+    }
+}
@@ -0,0 +1,115 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.netty.traffic;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrafficReplayTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private ServerSocket server;
+    private Thread acceptor;
+
+    /**
+     * Answers only once it has read two requests, like a server a client
+     * pipelined its requests to.
+     */
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        acceptor = new Thread() {
+            @Override
+            public void run() {
+                try (Socket socket = server.accept()) {
+                    InputStream in = socket.getInputStream();
+                    String first = readFrame(in);
+                    String second = readFrame(in);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("18" + first.substring(2) + "\r").getBytes(ASCII));
+                    out.write(("18" + second.substring(2) + "\r").getBytes(ASCII));
+                    out.flush();
+                    readFrame(in);
+                } catch (IOException ex) {
+                    // closed by the replay
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        acceptor.join(5000);
+    }
+
+    private static String readFrame(InputStream in) throws IOException {
+        StringBuilder frame = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            frame.append((char) b);
+        }
+        return frame.toString();
+    }
+
+    private static void record(OutputStream out, TrafficRecord.Type type, long timestamp, int connection, String data) throws IOException {
+        TrafficLog.write(out, type, timestamp, connection, data.getBytes(ASCII));
+    }
+
+    @Test
+    public void pipelinedResponsesArePairedInOrder() throws Exception {
+        long origin = 1000000;
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        TrafficLog.writeHeader(recording);
+        // a connection opened before the recording started is skipped
+        record(recording, TrafficRecord.Type.REQUEST, origin, 1, "17a");
+        record(recording, TrafficRecord.Type.OPEN, origin, 2, "127.0.0.1");
+        record(recording, TrafficRecord.Type.REQUEST, origin + 1000, 2, "17a");
+        record(recording, TrafficRecord.Type.REQUEST, origin + 2000, 2, "17b");
+        record(recording, TrafficRecord.Type.RESPONSE, origin + 5000, 2, "18a");
+        record(recording, TrafficRecord.Type.RESPONSE, origin + 6000, 2, "18b");
+        record(recording, TrafficRecord.Type.CLOSE, origin + 7000, 2, "");
+
+        TrafficReplay replay;
+        try (TrafficLog log = new TrafficLog(new ByteArrayInputStream(recording.toByteArray()))) {
+            replay = new TrafficReplay(log, new InetSocketAddress("127.0.0.1", server.getLocalPort()), 1);
+            replay.run();
+        }
+        assertEquals(0, replay.getFailureCount());
+        assertEquals(0, replay.getMismatchCount());
+        assertEquals(2, replay.getLatencies().get("17").getCount());
+        assertEquals(4.0, replay.getLatencies().get("17").getRecorded(100), 0.001);
+    }
+}
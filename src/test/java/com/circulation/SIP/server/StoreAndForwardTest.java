@@ -0,0 +1,112 @@
+/* 
+ * Copyright (C) 2020 Ceridwen Limited
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.circulation.SIP.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.circulation.SIP.dao.InMemoryRepositories;
+import com.circulation.SIP.dao.TransactionJournal;
+import com.circulation.SIP.messages.CheckIn;
+
+public class StoreAndForwardTest {
+    /**
+     * Repositories whose check ins fail while the database is down.
+     */
+    private static final class FailingRepositories extends InMemoryRepositories {
+        volatile boolean down = true;
+        volatile boolean reachable;
+
+        @Override
+        public Boolean checkIn(String itemIdentifier) {
+            return down ? null : super.checkIn(itemIdentifier);
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return !down || reachable;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FailingRepositories repositories;
+    private StoreAndForward storeAndForward;
+
+    @Before
+    public void setUp() throws IOException {
+        repositories = new FailingRepositories();
+        // replayed by the test rather than the background thread
+        storeAndForward = new StoreAndForward(new TransactionJournal(folder.newFile("journal"), false),
+                repositories, 1000, 10, 3600000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        storeAndForward.close();
+    }
+
+    private void deferCheckIn(String item) throws IOException {
+        CheckIn checkIn = new CheckIn();
+        checkIn.setItemIdentifier(item);
+        checkIn.setTransactionDate(new Date());
+        checkIn.setReturnDate(new Date());
+        storeAndForward.defer(checkIn);
+    }
+
+    @Test
+    public void checkInStaysJournaledWhileTheDatabaseIsDown() throws IOException {
+        deferCheckIn("item");
+        storeAndForward.forward();
+        assertEquals(1, storeAndForward.getPendingCount());
+        assertEquals(0, storeAndForward.getReplayedCount());
+        assertEquals(0, storeAndForward.getRejectedCount());
+
+        repositories.down = false;
+        storeAndForward.forward();
+        assertEquals(0, storeAndForward.getPendingCount());
+        assertEquals(1, storeAndForward.getReplayedCount());
+    }
+
+    @Test
+    public void failedCheckInIsRetriedWhileTheDatabaseIsReachable() throws IOException {
+        repositories.reachable = true;
+        deferCheckIn("item");
+        storeAndForward.forward();
+        storeAndForward.forward();
+        assertEquals(1, storeAndForward.getPendingCount());
+        assertEquals(0, storeAndForward.getReplayedCount());
+    }
+
+    @Test
+    public void checkInOfAnItemNotOnLoanIsReplayed() throws IOException {
+        repositories.down = false;
+        deferCheckIn("item");
+        storeAndForward.forward();
+        assertEquals(0, storeAndForward.getPendingCount());
+        assertEquals(1, storeAndForward.getReplayedCount());
+    }
+}